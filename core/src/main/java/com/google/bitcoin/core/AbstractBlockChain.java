@@ -18,10 +18,12 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
@@ -232,6 +234,19 @@ public abstract class AbstractBlockChain {
      */
     protected abstract void notSettingChainHead() throws BlockStoreException;
     
+    /**
+     * Called before a block that does not extend the current chain head is processed, ie for side chain blocks and
+     * re-organizations. Implementations that let blocks on top of the chain head complete verification in the
+     * background must wait for that work here, and commit or roll it back. The default implementation does nothing.
+     */
+    protected void finishPendingVerification() throws VerificationException, BlockStoreException {
+    }
+
+    /** Returns true if any {@link BlockChainListener}s (eg, wallets) are registered with this chain. */
+    protected boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
     /**
      * For a standard BlockChain, this should return blockStore.get(hash),
      * for a FullPrunedBlockChain blockStore.getOnceUndoableStoredBlock(hash)
@@ -289,7 +304,61 @@ public abstract class AbstractBlockChain {
                     block.toString(), e);
         }
     }
-    
+
+    /**
+     * <p>Checks a run of headers, such as a {@link HeadersMessage} carries, without adding them to the chain: each must
+     * follow the one before it, have valid proof of work, the difficulty the chain calls for at its height and pass any
+     * checkpoint there. The first must follow a block in the store, or one of the given headers which were checked
+     * earlier but are not in the store yet. Difficulty transitions look back through those too, so long runs of
+     * headers can be checked one message at a time before any of their blocks are added.</p>
+     *
+     * <p>Returns a {@link StoredBlock}, with height and chain work, for each header, or null if the first header
+     * doesn't follow any block that is known.</p>
+     *
+     * @param unstored headers checked earlier but not added to the chain yet, by hash
+     * @throws VerificationException if any of the headers is invalid, in which case none should be used
+     */
+    @Nullable
+    public List<StoredBlock> verifyHeaders(List<Block> headers, final Map<Sha256Hash, StoredBlock> unstored)
+            throws VerificationException, BlockStoreException {
+        checkArgument(!headers.isEmpty());
+        lock.lock();
+        try {
+            final Map<Sha256Hash, StoredBlock> checked = new HashMap<Sha256Hash, StoredBlock>(headers.size() * 2);
+            BlockLookup lookup = new BlockLookup() {
+                @Override
+                public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                    StoredBlock block = checked.get(hash);
+                    if (block == null)
+                        block = unstored.get(hash);
+                    return block != null ? block : blockStore.get(hash);
+                }
+            };
+            Sha256Hash firstPrevHash = headers.get(0).getPrevBlockHash();
+            StoredBlock prev = unstored.get(firstPrevHash);
+            if (prev == null)
+                prev = getStoredBlockInCurrentScope(firstPrevHash);
+            if (prev == null)
+                return null;
+            List<StoredBlock> result = new ArrayList<StoredBlock>(headers.size());
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(prev.getHeader().getHash()))
+                    throw new VerificationException("Header " + header.getHashAsString() + " does not follow " +
+                            prev.getHeader().getHashAsString());
+                header.verifyHeader();
+                checkDifficultyTransitions(prev, header, lookup);
+                if (!params.passesCheckpoint(prev.getHeight() + 1, header.getHash()))
+                    throw new VerificationException("Header failed checkpoint lockin at " + (prev.getHeight() + 1));
+                prev = prev.build(header);
+                checked.put(header.getHash(), prev);
+                result.add(prev);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -390,7 +459,7 @@ public abstract class AbstractBlockChain {
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                checkDifficultyTransitions(storedPrev, block);
+                checkDifficultyTransitions(storedPrev, block, storeLookup);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
@@ -442,6 +511,8 @@ public abstract class AbstractBlockChain {
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
             informListenersForNewBlock(block, NewBlockType.BEST_CHAIN, filteredTxHashList, filteredTxn, newStoredBlock);
         } else {
+            // Anything still being verified on top of the current head has to be settled before we look at forks.
+            finishPendingVerification();
             // This block connects to somewhere other than the top of the best known chain. We treat these differently.
             //
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
@@ -499,10 +570,8 @@ public abstract class AbstractBlockChain {
         if (filteredTxn != null) falsePositives.addAll(filteredTxn.values());
         for (final ListenerRegistration<BlockChainListener> registration : listeners) {
             if (registration.executor == Threading.SAME_THREAD) {
-                informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                informListenerForNewBlock(block, newBlockType, filteredTxHashList, filteredTxn,
                         newStoredBlock, first, registration.listener, falsePositives);
-                if (newBlockType == NewBlockType.BEST_CHAIN)
-                    registration.listener.notifyNewBestBlock(newStoredBlock);
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
                 final boolean notFirst = !first;
@@ -512,10 +581,8 @@ public abstract class AbstractBlockChain {
                         try {
                             // We can't do false-positive handling when executing on another thread
                             Set<Transaction> ignoredFalsePositives = Sets.newHashSet();
-                            informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                            informListenerForNewBlock(block, newBlockType, filteredTxHashList, filteredTxn,
                                     newStoredBlock, notFirst, registration.listener, ignoredFalsePositives);
-                            if (newBlockType == NewBlockType.BEST_CHAIN)
-                                registration.listener.notifyNewBestBlock(newStoredBlock);
                         } catch (VerificationException e) {
                             log.error("Block chain listener threw exception: ", e);
                             // Don't attempt to relay this back to the original peer thread if this was an async
@@ -531,6 +598,100 @@ public abstract class AbstractBlockChain {
         trackFalsePositives(falsePositives.size());
     }
 
+    private static void informListenerForNewBlock(Block block, NewBlockType newBlockType,
+                                                  @Nullable List<Sha256Hash> filteredTxHashList,
+                                                  @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                                                  StoredBlock newStoredBlock, boolean first,
+                                                  BlockChainListener listener,
+                                                  Set<Transaction> falsePositives) throws VerificationException {
+        if (listener instanceof BatchBlockChainListener) {
+            sendBlockToListener(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock, first,
+                    (BatchBlockChainListener) listener, falsePositives);
+        } else {
+            informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                    newStoredBlock, first, listener, falsePositives);
+            if (newBlockType == NewBlockType.BEST_CHAIN)
+                listener.notifyNewBestBlock(newStoredBlock);
+        }
+    }
+
+    private static void sendBlockToListener(Block block, NewBlockType newBlockType,
+                                            @Nullable List<Sha256Hash> filteredTxHashList,
+                                            @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                                            StoredBlock newStoredBlock, boolean first,
+                                            BatchBlockChainListener listener,
+                                            Set<Transaction> falsePositives) throws VerificationException {
+        // The same transactions as informListenerForNewTransactions would send, gathered up. Only the order of the
+        // relativity offsets matters, so those of the transactions left out can be skipped. A transaction that spends
+        // one sent earlier in the block may only become relevant once that one is received, so it is sent too and
+        // the listener checks it again.
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
+        Map<Sha256Hash, Transaction> relevant = new HashMap<Sha256Hash, Transaction>();
+        if (block.transactions != null) {
+            for (Transaction tx : block.transactions) {
+                Transaction received = getRelevantTransaction(listener, tx, !first, falsePositives);
+                if (received == null && spendsFrom(tx, relevant))
+                    received = first ? tx : cloneTransaction(tx);
+                if (received != null) {
+                    txHashes.add(received.getHash());
+                    relevant.put(received.getHash(), received);
+                }
+            }
+        } else if (filteredTxHashList != null) {
+            checkNotNull(filteredTxn);
+            for (Sha256Hash hash : filteredTxHashList) {
+                Transaction tx = filteredTxn.get(hash);
+                if (tx == null) {
+                    txHashes.add(hash);
+                    continue;
+                }
+                Transaction received = getRelevantTransaction(listener, tx, !first, falsePositives);
+                if (received == null && spendsFrom(tx, relevant))
+                    received = first ? tx : cloneTransaction(tx);
+                if (received != null) {
+                    txHashes.add(hash);
+                    relevant.put(hash, received);
+                }
+            }
+        }
+        listener.receiveBlock(newStoredBlock, newBlockType, txHashes, relevant);
+    }
+
+    @Nullable
+    private static Transaction getRelevantTransaction(BlockChainListener listener, Transaction tx, boolean clone,
+                                                      Set<Transaction> falsePositives) {
+        try {
+            if (!listener.isTransactionRelevant(tx))
+                return null;
+            falsePositives.remove(tx);
+            return clone ? cloneTransaction(tx) : tx;
+        } catch (ScriptException e) {
+            // We don't want scripts we don't understand to break the block chain so just note that this tx was
+            // not scanned here and continue.
+            log.warn("Failed to parse a script: " + e.toString());
+            return null;
+        }
+    }
+
+    private static Transaction cloneTransaction(Transaction tx) {
+        try {
+            return new Transaction(tx.params, tx.bitcoinSerialize());
+        } catch (ProtocolException e) {
+            // Failed to duplicate tx, should never happen.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean spendsFrom(Transaction tx, Map<Sha256Hash, Transaction> transactions) {
+        if (transactions.isEmpty())
+            return false;
+        for (TransactionInput input : tx.getInputs()) {
+            if (transactions.containsKey(input.getOutpoint().getHash()))
+                return true;
+        }
+        return false;
+    }
+
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
@@ -745,11 +906,34 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        if (blockStore instanceof HeightIndexedBlockStore)
+            updateHeightIndex((HeightIndexedBlockStore) blockStore, chainHead);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
     }
 
+    /**
+     * Brings the height index of the store in line with the new chain head, by walking back from it until reaching a
+     * block the index already has at its height. That is the previous chain head unless there was a re-org, in which
+     * case the blocks of the new chain down to the split point are indexed.
+     */
+    private static void updateHeightIndex(HeightIndexedBlockStore store, StoredBlock newHead) throws BlockStoreException {
+        LinkedList<StoredBlock> blocks = new LinkedList<StoredBlock>();
+        blocks.add(newHead);
+        if (!newHead.equals(store.getByHeight(newHead.getHeight()))) {
+            StoredBlock cursor = newHead;
+            while (cursor.getHeight() > 0) {
+                cursor = cursor.getPrev(store);
+                if (cursor == null || cursor.equals(store.getByHeight(cursor.getHeight())))
+                    break;
+                blocks.addFirst(cursor);
+            }
+        }
+        // Also called when the head is already indexed, as the chain may have become shorter.
+        store.indexBestChain(blocks);
+    }
+
     /**
      * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
      */
@@ -790,10 +974,24 @@ public abstract class AbstractBlockChain {
     // February 16th 2012
     private static final Date testnetDiffDate = new Date(1329264000000L);
 
+    // Finds the earlier blocks that difficulty checks look back through. They are normally in the store, but headers
+    // checked in bulk by verifyHeaders may not be yet.
+    private interface BlockLookup {
+        @Nullable StoredBlock get(Sha256Hash hash) throws BlockStoreException;
+    }
+
+    private final BlockLookup storeLookup = new BlockLookup() {
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            return blockStore.get(hash);
+        }
+    };
+
     /**
      * Throws an exception if the blocks difficulty is not correct.
      */
-    private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
+    private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockLookup lookup)
+            throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
         Block prev = storedPrev.getHeader();
         
@@ -804,7 +1002,7 @@ public abstract class AbstractBlockChain {
             // This should be a method of the NetworkParameters, which should in turn be using singletons and a subclass
             // for each network type. Then each network can define its own difficulty transition rules.
             if (params.getId().equals(NetworkParameters.ID_TESTNET) && nextBlock.getTime().after(testnetDiffDate)) {
-                checkTestnetDifficulty(storedPrev, prev, nextBlock);
+                checkTestnetDifficulty(storedPrev, prev, nextBlock, lookup);
                 return;
             }
 
@@ -819,14 +1017,14 @@ public abstract class AbstractBlockChain {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
+        StoredBlock cursor = lookup.get(prev.getHash());
         for (int i = 0; i < params.getInterval() - 1; i++) {
             if (cursor == null) {
                 // This should never happen. If it does, it means we are following an incorrect or busted chain.
                 throw new VerificationException(
                         "Difficulty transition point but we did not find a way back to the genesis block.");
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            cursor = lookup.get(cursor.getHeader().getPrevBlockHash());
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -862,7 +1060,8 @@ public abstract class AbstractBlockChain {
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
 
-    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
+    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next, BlockLookup lookup)
+            throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
         // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
@@ -877,7 +1076,7 @@ public abstract class AbstractBlockChain {
             while (!cursor.getHeader().equals(params.getGenesisBlock()) &&
                    cursor.getHeight() % params.getInterval() != 0 &&
                    cursor.getHeader().getDifficultyTargetAsInteger().equals(params.getProofOfWorkLimit()))
-                cursor = cursor.getPrev(blockStore);
+                cursor = checkNotNull(lookup.get(cursor.getHeader().getPrevBlockHash()));
             BigInteger cursorDifficulty = cursor.getHeader().getDifficultyTargetAsInteger();
             BigInteger newDifficulty = next.getDifficultyTargetAsInteger();
             if (!cursorDifficulty.equals(newDifficulty))
@@ -954,11 +1153,14 @@ public abstract class AbstractBlockChain {
 
     /**
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
-     * block. This is useful for turning transaction lock times into human readable times. Note that a height in
-     * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * block. This is useful for turning transaction lock times into human readable times. For a height in the past
+     * the time of the block is returned if the store has a {@link HeightIndexedBlockStore height index} that knows
+     * it, otherwise it is estimated too (we won't scan backwards through the chain to obtain the right answer).
      */
     public Date estimateBlockTime(int height) {
+        StoredBlock block = getBlockAtHeight(height);
+        if (block != null)
+            return new Date(block.getHeader().getTimeSeconds() * 1000);
         synchronized (chainHeadLock) {
             long offset = height - chainHead.getHeight();
             long headTime = chainHead.getHeader().getTimeSeconds();
@@ -967,11 +1169,32 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Returns the block of the best chain at the given height, if the block store keeps a
+     * {@link HeightIndexedBlockStore height index} and still has it, or null otherwise.
+     */
+    @Nullable
+    public StoredBlock getBlockAtHeight(int height) {
+        if (!(blockStore instanceof HeightIndexedBlockStore) || height > getBestChainHeight())
+            return null;
+        try {
+            return ((HeightIndexedBlockStore) blockStore).getByHeight(height);
+        } catch (BlockStoreException e) {
+            log.warn("Failed to look up block at height " + height, e);
+            return null;
+        }
+    }
+
     /**
      * Returns a future that completes when the block chain has reached the given height. Yields the
-     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread.
+     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread, or
+     * straight away if the chain is already past that height and the block can be found by
+     * {@link #getBlockAtHeight(int)}.
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
+        StoredBlock reached = getBlockAtHeight(height);
+        if (reached != null)
+            return Futures.immediateFuture(reached);
         final SettableFuture<StoredBlock> result = SettableFuture.create();
         addListener(new AbstractBlockChainListener() {
             @Override
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A {@link BlockChainListener} that is given everything a new block holds for it in one call, rather than one
+ * {@link #receiveFromBlock(Transaction, StoredBlock, BlockChain.NewBlockType, int)} or
+ * {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, BlockChain.NewBlockType, int)} call per
+ * transaction followed by {@link #notifyNewBestBlock(StoredBlock)}. This lets the listener do the work that comes with
+ * each of those calls once per block, which matters when catching up with the chain.</p>
+ *
+ * <p>The block chain still asks {@link #isTransactionRelevant(Transaction)} about each transaction first. Re-orgs are
+ * still delivered through {@link #reorganize(StoredBlock, List, List)}.</p>
+ *
+ * <p>As every transaction of the block is checked before any is received, one that spends another one sent for the
+ * same block is sent whether it was found relevant or not, and the listener has to check it again once the one it
+ * spends has been received.</p>
+ */
+public interface BatchBlockChainListener extends BlockChainListener {
+    /**
+     * <p>Called by the {@link BlockChain} when a new block arrives, instead of the per transaction methods and
+     * {@link #notifyNewBestBlock(StoredBlock)}. The new best block is implied when blockType is
+     * {@link BlockChain.NewBlockType#BEST_CHAIN}, and this is called even if there is no transaction for the
+     * listener in the block.</p>
+     *
+     * <p>txHashes lists the transactions of the block that concern the listener, in the order they appear in it, and
+     * the index of each in the list is its relativity offset. Those found in the transactions map are relevant
+     * transactions that are to be received as if by receiveFromBlock. The others were found in a filtered block
+     * without being sent again, because they were already received as pending transactions, and are to be handled as
+     * notifyTransactionIsInBlock would.</p>
+     */
+    void receiveBlock(StoredBlock block, BlockChain.NewBlockType blockType, List<Sha256Hash> txHashes,
+                      Map<Sha256Hash, Transaction> transactions) throws VerificationException;
+}
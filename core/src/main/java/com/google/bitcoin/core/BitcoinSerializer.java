@@ -20,11 +20,13 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -98,19 +100,7 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = makeHeader(name, message, null);
         out.write(header);
         out.write(message);
 
@@ -122,11 +112,50 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        EncodedMessage encoded = encode(message);
+        out.write(encoded.header);
+        out.write(encoded.payload);
+    }
+
+    /**
+     * <p>Serializes the message, header and all, into a form that can be written to any number of connections without
+     * being serialized or hashed again. See {@link EncodedMessage}.</p>
+     *
+     * <p>A message that still holds the bytes it was parsed from, which is the case in parse retain mode, is encoded
+     * from those bytes and the checksum that came with them, without copying the bytes or working out the checksum
+     * again.</p>
+     */
+    public EncodedMessage encode(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        // The checksum that came with a message is only good for as long as the message holds the exact bytes that
+        // were parsed, as it doesn't otherwise know whether serializing it again gives the same bytes.
+        byte[] checksum = message.isCached() ? message.getChecksum() : null;
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] header = makeHeader(name, payload, checksum);
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(payload));
+        return new EncodedMessage(name, header, payload);
+    }
+
+    private byte[] makeHeader(String name, byte[] payload, @Nullable byte[] checksum) {
+        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+
+        if (checksum == null)
+            checksum = doubleDigest(payload);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
     }
 
     /**
@@ -162,16 +191,19 @@ public class BitcoinSerializer {
     }
 
     /**
-     * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * <p>Deserialize payload only.  You must provide a header, typically obtained by calling
+     * {@link BitcoinSerializer#deserializeHeader}.</p>
+     *
+     * <p>The checksum is worked out over the payload where it is in the buffer. If the buffer is backed by an array and
+     * the serializer neither parses lazily nor retains bytes, blocks, transactions and inventory messages are parsed
+     * straight out of that array, as they keep no reference to it afterwards. Other messages are copied out first.</p>
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
 
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        byte[] hash = doubleDigest(in, header.size);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -179,27 +211,59 @@ public class BitcoinSerializer {
                     " vs " + bytesToHexString(header.checksum));
         }
 
+        byte[] payloadBytes;
+        int offset;
+        boolean inPlace = in.hasArray() && canParseInPlace(header.command);
+        if (inPlace) {
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    toHexString(payloadBytes, offset, header.size));
         }
 
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    toHexString(payloadBytes, offset, header.size) + "\n", e);
         }
+        // Whatever lies past the payload in the array isn't part of the message.
+        if (inPlace && message.getMessageSize() > header.size)
+            throw new ProtocolException("Message of " + header.size + " bytes parsed as " + message.getMessageSize());
+        return message;
+    }
+
+    private boolean canParseInPlace(String command) {
+        return !parseLazy && !parseRetain &&
+                (command.equals("block") || command.equals("tx") || command.equals("inv"));
+    }
+
+    private static String toHexString(byte[] bytes, int offset, int length) {
+        if (offset == 0 && length == bytes.length)
+            return Utils.bytesToHexString(bytes);
+        return Utils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + length));
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash,
+                                byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
+        // Only the messages that canParseInPlace() lists can start at an offset.
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) {
-            message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
+            message = new InventoryMessage(params, payloadBytes, offset, parseLazy, parseRetain, length);
         } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
+            message = new Block(params, payloadBytes, offset, parseLazy, parseRetain, length);
         } else if (command.equals("merkleblock")) {
             message = new FilteredBlock(params, payloadBytes);
         } else if (command.equals("getdata")) {
@@ -209,7 +273,7 @@ public class BitcoinSerializer {
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(params, payloadBytes);
         } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
+            Transaction tx = new Transaction(params, payloadBytes, offset, null, parseLazy, parseRetain, length);
             if (hash != null)
                 tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
             message = tx;
@@ -275,6 +339,42 @@ public class BitcoinSerializer {
         return parseRetain;
     }
 
+    /**
+     * <p>A message as it is sent on the wire: the header, with its checksum worked out, and the payload. It is made by
+     * {@link BitcoinSerializer#encode(Message)} and never changes afterwards, so it can be handed to many connections
+     * and threads at once, for instance to broadcast a transaction to all peers.</p>
+     *
+     * <p>The payload may be the very array the message holds, so that a large message that is sent as it was received
+     * is not copied. Neither array must be changed.</p>
+     */
+    public static class EncodedMessage {
+        private final String command;
+        private final byte[] header;
+        private final byte[] payload;
+
+        private EncodedMessage(String command, byte[] header, byte[] payload) {
+            this.command = command;
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /** Returns the length of the message on the wire, header included. */
+        public int getLength() {
+            return header.length + payload.length;
+        }
+
+        /**
+         * Returns new buffers over the header and the payload, in that order, for a single write. The buffers share
+         * the arrays of this message but nothing else, so each write can move their positions as it likes.
+         */
+        public ByteBuffer[] getBuffers() {
+            return new ByteBuffer[] { ByteBuffer.wrap(header), ByteBuffer.wrap(payload) };
+        }
+    }
 
     public static class BitcoinPacketHeader {
         /** The largest number of bytes that a header can represent */
@@ -131,6 +131,12 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /** Constructs a block by reading length bytes from payloadBytes starting at offset. */
+    Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
 
     /**
      * Construct a block initialized with all the given fields.
@@ -189,7 +195,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor - offset)));
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -201,7 +207,9 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        // The block may be only part of the array, in which case its length is known.
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
+        if (end == cursor) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
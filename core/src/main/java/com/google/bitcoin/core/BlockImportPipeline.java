@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Feeds a long, ordered run of blocks (eg, from a {@link com.google.bitcoin.utils.BlockFileLoader}) into a block
+ * chain using three overlapping stages:</p>
+ *
+ * <ol>
+ *     <li>Parsing and the context free checks of {@link Block#verify()}: proof of work, merkle root and transaction
+ *     sanity. These run on a pool of threads for a window of blocks ahead of the one being connected.</li>
+ *     <li>Applying the block to the UTXO set, on the calling thread via {@link AbstractBlockChain#add(Block)}.</li>
+ *     <li>Checking scripts. A {@link FullPrunedBlockChain} does this in the background whilst the next blocks go
+ *     through stage two, see {@link FullPrunedBlockChain#setVerificationPipelineDepth(int)}.</li>
+ * </ol>
+ *
+ * <p>The chain repeats the stage one checks under its lock, but finds the transactions already parsed and hashed.
+ * If any block fails, the chain is rolled back to the block before it and the failure is thrown from
+ * {@link #importBlocks(Iterator)}. As a block can be rolled back after it became the chain head, the overlap of
+ * stages two and three is only used while the chain has no listeners such as wallets.</p>
+ */
+public class BlockImportPipeline {
+    private static final Logger log = LoggerFactory.getLogger(BlockImportPipeline.class);
+
+    /** The default number of blocks whose scripts may be checked in the background. */
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    private final AbstractBlockChain chain;
+    private final ExecutorService parseExecutor;
+    private final int lookahead;
+    private final int pipelineDepth;
+
+    /** Creates a pipeline using one parsing thread per processor and {@link #DEFAULT_PIPELINE_DEPTH}. */
+    public BlockImportPipeline(AbstractBlockChain chain) {
+        this(chain, Runtime.getRuntime().availableProcessors(), DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * Creates a pipeline that pre-verifies blocks on the given number of threads and lets up to pipelineDepth blocks
+     * finish their script checks in the background (only used if the chain is a {@link FullPrunedBlockChain}).
+     */
+    public BlockImportPipeline(AbstractBlockChain chain, int numParseThreads, int pipelineDepth) {
+        checkArgument(numParseThreads > 0);
+        checkArgument(pipelineDepth > 0);
+        this.chain = chain;
+        this.pipelineDepth = pipelineDepth;
+        this.lookahead = numParseThreads * 2;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.parseExecutor = Executors.newFixedThreadPool(numParseThreads, new ThreadFactory() {
+            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Block import thread " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds all blocks from the iterator to the chain, in order, and returns how many were connected (blocks that
+     * didn't connect are kept as orphans by the chain, as usual). When this returns normally every block has been
+     * fully verified and committed.
+     */
+    public int importBlocks(Iterator<Block> blocks) throws VerificationException, PrunedException, BlockStoreException {
+        FullPrunedBlockChain fullChain = chain instanceof FullPrunedBlockChain ? (FullPrunedBlockChain) chain : null;
+        int previousDepth = 0;
+        if (fullChain != null) {
+            previousDepth = fullChain.getVerificationPipelineDepth();
+            fullChain.setVerificationPipelineDepth(pipelineDepth);
+        }
+        LinkedList<Future<Block>> window = new LinkedList<Future<Block>>();
+        int connected = 0;
+        boolean success = false;
+        try {
+            while (true) {
+                while (window.size() < lookahead && blocks.hasNext())
+                    window.add(parseExecutor.submit(new PreVerifier(blocks.next())));
+                if (window.isEmpty())
+                    break;
+                Block block = getPreVerified(window.removeFirst());
+                if (chain.add(block))
+                    connected++;
+            }
+            if (fullChain != null)
+                fullChain.flushVerificationPipeline();
+            success = true;
+        } finally {
+            for (Future<Block> future : window)
+                future.cancel(false);
+            if (fullChain != null) {
+                if (!success)
+                    flushQuietly(fullChain);
+                fullChain.setVerificationPipelineDepth(previousDepth);
+            }
+        }
+        return connected;
+    }
+
+    /** Stops the parsing threads. The pipeline cannot be used afterwards. */
+    public void shutdown() {
+        parseExecutor.shutdownNow();
+    }
+
+    private static Block getPreVerified(Future<Block> future) throws VerificationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VerificationException)
+                throw (VerificationException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Leaves the chain in a committed state after a failure, without hiding the original exception.
+    private static void flushQuietly(FullPrunedBlockChain chain) {
+        try {
+            chain.flushVerificationPipeline();
+        } catch (VerificationException e) {
+            log.error("Block pending in the verification pipeline failed as well", e);
+        } catch (BlockStoreException e) {
+            log.error("Failed to flush verification pipeline", e);
+        }
+    }
+
+    /** Stage one: forces parsing and transaction hashing, then runs the checks that don't need the chain. */
+    private static class PreVerifier implements Callable<Block> {
+        private final Block block;
+
+        PreVerifier(Block block) {
+            this.block = block;
+        }
+
+        @Override
+        public Block call() throws VerificationException {
+            block.verify();
+            return block;
+        }
+    }
+}
@@ -119,6 +119,18 @@ public class BloomFilter extends Message {
         return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
     }
 
+    /**
+     * Returns the false positive rate of this filter as it is now, worked out from the bits that are actually set
+     * rather than from a number of elements. Unlike {@link BloomFilter#getFalsePositiveRate(int)} this takes into
+     * account elements that were inserted more than once, or filters that were merged into this one.
+     */
+    public double getCurrentFalsePositiveRate() {
+        int bitsSet = 0;
+        for (byte b : data)
+            bitsSet += Integer.bitCount(b & 0xff);
+        return Math.pow((double) bitsSet / (data.length * 8), hashFuncs);
+    }
+
     @Override
     public String toString() {
         return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
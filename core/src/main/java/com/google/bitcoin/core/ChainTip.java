@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Counts the blocks and the work added to the best chain as a {@link Wallet} sees it. Transaction confidences that
+ * are attached to a tip work out their depth and work done from it when asked, so the wallet only has to move the tip
+ * when a block arrives rather than update every transaction it has ever seen.</p>
+ *
+ * <p>The counts start at zero when the tip is created and only the difference between two readings means anything.
+ * The tip also knows which of its confidences have listeners of their own, so that the wallet can tell just those
+ * about their new depth.</p>
+ *
+ * <p>Lastly the tip counts its own moves and, separately, any change to the confidences attached to it, so that the
+ * wallet can tell whether anything its balance depends on changed with a single read.</p>
+ */
+class ChainTip {
+    private long blocks;
+    private BigInteger work = BigInteger.ZERO;
+    private final Set<TransactionConfidence> subscribers = new HashSet<TransactionConfidence>();
+    private int moves;
+    private int confidenceChanges;
+
+    synchronized long getBlocks() {
+        return blocks;
+    }
+
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    /** Moves the tip up by the given number of blocks and amount of work, or down if they are negative. */
+    synchronized void move(int blocks, BigInteger work) {
+        this.blocks += blocks;
+        this.work = this.work.add(work);
+        moves++;
+    }
+
+    /** Called by an attached confidence whenever something about it changes. */
+    synchronized void confidenceChanged() {
+        confidenceChanges++;
+    }
+
+    /** Returns a number that goes up whenever the tip moves. */
+    synchronized int getMoves() {
+        return moves;
+    }
+
+    /** Returns a number that goes up whenever an attached confidence changes. */
+    synchronized int getConfidenceChanges() {
+        return confidenceChanges;
+    }
+
+    synchronized void subscribe(TransactionConfidence confidence) {
+        subscribers.add(confidence);
+    }
+
+    synchronized void unsubscribe(TransactionConfidence confidence) {
+        subscribers.remove(confidence);
+    }
+
+    /** Returns a snapshot of the attached confidences that have listeners other than the wallet's own. */
+    synchronized List<TransactionConfidence> getSubscribers() {
+        return new ArrayList<TransactionConfidence>(subscribers);
+    }
+}
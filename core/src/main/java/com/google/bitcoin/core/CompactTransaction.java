@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.wallet.WalletTransaction;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A spent or dead transaction that a {@link Wallet} holds in serialized form, see
+ * {@link Wallet#compactHistory(int)}. It is immutable and much smaller than a {@link Transaction} with its inputs,
+ * outputs, scripts and confidence: the transaction is kept as the bytes the wallet file stores it as, along with the
+ * few things the wallet needs to know about it without decoding them.</p>
+ *
+ * <p>While the transaction is building it keeps getting deeper, like a {@link TransactionConfidence} does. Its depth
+ * and work done are worked out from the wallet's chain tip when asked for.</p>
+ */
+public class CompactTransaction {
+    private final Sha256Hash hash;
+    private final WalletTransaction.Pool pool;
+    private final byte[] data;
+    // The transactions that spend its outputs, 32 bytes each.
+    private final byte[] spentBy;
+    @Nullable private final Sha256Hash overridingHash;
+
+    @Nullable private final ChainTip tip;
+    private final int depth;
+    private final BigInteger workDone;
+    private final long tipBlocks;
+    private final BigInteger tipWork;
+
+    CompactTransaction(WalletTransaction.Pool pool, Transaction tx, byte[] data, ChainTip tip) {
+        checkArgument(pool == WalletTransaction.Pool.SPENT || pool == WalletTransaction.Pool.DEAD);
+        this.hash = tx.getHash();
+        this.pool = pool;
+        this.data = checkNotNull(data);
+        List<Sha256Hash> spenders = new ArrayList<Sha256Hash>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spender = output.getSpentBy();
+            if (spender != null && spender.getParentTransaction() != null)
+                spenders.add(spender.getParentTransaction().getHash());
+        }
+        this.spentBy = new byte[spenders.size() * 32];
+        for (int i = 0; i < spenders.size(); i++)
+            System.arraycopy(spenders.get(i).getBytes(), 0, spentBy, i * 32, 32);
+        TransactionConfidence confidence = tx.getConfidence();
+        // Only dead transactions can have been overridden, the confidence won't say for any others.
+        Transaction overriding = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD ?
+                confidence.getOverridingTransaction() : null;
+        this.overridingHash = overriding != null ? overriding.getHash() : null;
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+            this.tip = tip;
+            this.depth = confidence.getDepthInBlocks();
+            this.workDone = confidence.getWorkDone();
+            this.tipBlocks = tip.getBlocks();
+            this.tipWork = tip.getWork();
+        } else {
+            this.tip = null;
+            this.depth = 0;
+            this.workDone = BigInteger.ZERO;
+            this.tipBlocks = 0;
+            this.tipWork = BigInteger.ZERO;
+        }
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    /** Returns the pool the transaction was in, which is either spent or dead. */
+    public WalletTransaction.Pool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the transaction as the wallet file stores it, which is how
+     * {@link com.google.bitcoin.store.WalletProtobufSerializer} writes and reads it. The array must not be changed.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /** Returns the hashes of the wallet transactions that spend outputs of this one. */
+    public List<Sha256Hash> getSpentBy() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(spentBy.length / 32);
+        for (int i = 0; i < spentBy.length; i += 32) {
+            byte[] bytes = new byte[32];
+            System.arraycopy(spentBy, i, bytes, 0, 32);
+            hashes.add(new Sha256Hash(bytes));
+        }
+        return hashes;
+    }
+
+    /** Returns the hash of the transaction that made this one dead, if it is known. */
+    @Nullable
+    public Sha256Hash getOverridingTransactionHash() {
+        return overridingHash;
+    }
+
+    /** Returns how deep the transaction is now if it is building, or zero otherwise. */
+    public int getDepthInBlocks() {
+        if (tip == null)
+            return depth;
+        return depth + (int) (tip.getBlocks() - tipBlocks);
+    }
+
+    /** Returns the work done on the transaction now if it is building, or zero otherwise. */
+    public BigInteger getWorkDone() {
+        if (tip == null)
+            return workDone;
+        return workDone.add(tip.getWork().subtract(tipWork));
+    }
+}
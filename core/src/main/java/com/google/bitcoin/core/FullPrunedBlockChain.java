@@ -27,9 +27,9 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -76,6 +76,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        this.committedHead = chainHead;
     }
 
     @Override
@@ -109,37 +110,159 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public void setRunScripts(boolean value) {
         this.runScripts = value;
     }
-    
+
+    /**
+     * <p>Sets how many blocks on top of the chain head may still have their scripts checked in the background when the
+     * next block is connected. With a depth of one (the default) each block is fully verified and committed to the
+     * store before {@link #add(Block)} returns. With a larger depth the UTXO set changes of the next block are applied
+     * to the still uncommitted store batch of the previous ones whilst their signatures are checked, and the batch is
+     * committed once every block in it has passed.</p>
+     *
+     * <p>If a block turns out to be invalid, the store is rolled back to the last commit, the blocks before the bad
+     * one are connected again and the failure is thrown from whichever call to add discovered it. Until then
+     * {@link #getChainHead()} may return a block whose scripts haven't been checked yet, so this is only used while
+     * no {@link BlockChainListener}s (eg, wallets) are registered: they would be told about blocks that could later
+     * disappear. It is intended for bulk imports, see {@link BlockImportPipeline}. Call
+     * {@link #flushVerificationPipeline()} when done.</p>
+     */
+    public void setVerificationPipelineDepth(int depth) {
+        checkArgument(depth > 0);
+        lock.lock();
+        try {
+            this.verificationPipelineDepth = depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depth set by {@link #setVerificationPipelineDepth(int)}. */
+    public int getVerificationPipelineDepth() {
+        lock.lock();
+        try {
+            return verificationPipelineDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the scripts of all blocks connected so far to be checked and commits them to the store. Throws if one
+     * of them turned out to be invalid, in which case the chain head is rolled back to the block before it.
+     */
+    public void flushVerificationPipeline() throws VerificationException, BlockStoreException {
+        lock.lock();
+        try {
+            drainPipeline();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    // Runs signature checks in parallel with the UTXO pass. Shared across blocks and survives verification failures.
+    private final ScriptVerificationEngine scriptVerifier = new ScriptVerificationEngine();
+
+    /** A block connected on top of the chain head whose store changes are part of the uncommitted batch. */
+    private static class PendingBlock {
+        final Block block;
+        final ScriptVerificationEngine.Batch scriptChecks;
+        // Set once the block has been added to the store and made the chain head.
+        @Nullable StoredBlock storedBlock;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+        PendingBlock(Block block, ScriptVerificationEngine.Batch scriptChecks) {
+            this.block = block;
+            this.scriptChecks = scriptChecks;
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
-                }
+    // The fields below are guarded by lock.
+    private int verificationPipelineDepth = 1;
+    // Blocks whose changes are in the open store batch, oldest first. Empty unless pipelining.
+    private final LinkedList<PendingBlock> uncommittedBlocks = new LinkedList<PendingBlock>();
+    // Set by connectTransactions when the block's scripts are left running, picked up by doSetChainHead.
+    @Nullable private PendingBlock connectingBlock;
+    // True while connecting blocks again after a rollback. Their scripts were checked already.
+    private boolean replaying;
+    // The newest chain head whose store batch has been committed. The chain is reset to it when the pipeline is
+    // rolled back, as aborting the batch does not undo setVerifiedChainHead in every store.
+    private StoredBlock committedHead;
+
+    private boolean isPipelining() {
+        return verificationPipelineDepth > 1 && runScripts && !replaying && !hasListeners();
+    }
+
+    /**
+     * Waits for the script checks of all uncommitted blocks. If they pass the store batch is committed, otherwise the
+     * pipeline is rolled back and the failure of the first bad block is thrown.
+     */
+    private void drainPipeline() throws VerificationException, BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        if (uncommittedBlocks.isEmpty())
+            return;
+        try {
+            for (PendingBlock pending : uncommittedBlocks)
+                pending.scriptChecks.verify();
+        } catch (VerificationException e) {
+            throw checkNotNull(rollBackPipeline());
+        }
+        blockStore.commitDatabaseBatchWrite();
+        committedHead = checkNotNull(uncommittedBlocks.getLast().storedBlock);
+        uncommittedBlocks.clear();
+    }
+
+    /**
+     * Throws away the open store batch, which holds the changes of every uncommitted block, and connects those blocks
+     * that passed verification again, committing each one. Returns the failure of the first bad block, if any.
+     */
+    @Nullable
+    private VerificationException rollBackPipeline() throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        if (connectingBlock != null) {
+            connectingBlock.scriptChecks.cancel();
+            connectingBlock = null;
+        }
+        List<Block> verified = new ArrayList<Block>(uncommittedBlocks.size());
+        VerificationException failure = null;
+        for (PendingBlock pending : uncommittedBlocks) {
+            if (failure != null) {
+                // Builds on a bad block, so it can't be valid either.
+                pending.scriptChecks.cancel();
+                continue;
+            }
+            try {
+                pending.scriptChecks.verify();
+                verified.add(pending.block);
             } catch (VerificationException e) {
-                return e;
+                failure = new VerificationException("Could not verify block " + pending.block.getHashAsString(), e);
+            }
+        }
+        uncommittedBlocks.clear();
+        blockStore.abortDatabaseBatchWrite();
+        log.info("Rolled back verification pipeline, reconnecting {} verified blocks", verified.size());
+        replaying = true;
+        try {
+            blockStore.beginDatabaseBatchWrite();
+            setChainHead(committedHead);
+            for (Block block : verified) {
+                StoredBlock prev = getChainHead();
+                TransactionOutputChanges txOutChanges = connectTransactions(prev.getHeight() + 1, block);
+                setChainHead(addToBlockStore(prev, block.cloneAsHeader(), txOutChanges));
             }
-            return null;
+        } catch (VerificationException e) {
+            // These blocks already passed every check once.
+            throw new RuntimeException(e);
+        } finally {
+            replaying = false;
         }
+        return failure;
     }
-    
+
+    @Override
+    protected void finishPendingVerification() throws VerificationException, BlockStoreException {
+        drainPipeline();
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -149,6 +272,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
+        // Only blocks that go on top of the current head are left to finish verifying in the background. The new head
+        // of a re-org is connected here too, but its store batch also holds the disconnects of the old chain.
+        final boolean pipelined = isPipelining() &&
+                block.getPrevBlockHash().equals(getChainHead().getHeader().getHash());
+        if (!pipelined || uncommittedBlocks.size() >= verificationPipelineDepth)
+            drainPipeline();
+
         blockStore.beginDatabaseBatchWrite();
 
         LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
@@ -156,10 +286,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationEngine.Batch scriptChecks = scriptVerifier.newBatch();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -181,7 +308,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 BigInteger valueIn = BigInteger.ZERO;
                 BigInteger valueOut = BigInteger.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
@@ -198,14 +325,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
                         // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
                         valueIn = valueIn.add(prevOut.getValue());
+                        Script prevOutScript = new Script(prevOut.getScriptBytes());
                         if (enforcePayToScriptHash) {
-                            if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
+                            if (prevOutScript.isPayToScriptHash())
                                 sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                             if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
                         
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                        prevOutScripts.add(prevOutScript);
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
@@ -234,35 +362,32 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
                 
-                if (!isCoinBase && runScripts) {
+                if (!isCoinBase && runScripts && !replaying) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptChecks.submit(tx, prevOutScripts, enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            if (pipelined)
+                connectingBlock = new PendingBlock(block, scriptChecks);
+            else
+                scriptChecks.verify();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
-            throw e;
+            scriptChecks.cancel();
+            if (uncommittedBlocks.isEmpty()) {
+                blockStore.abortDatabaseBatchWrite();
+                throw e;
+            }
+            // A bad block further down would explain this failure, so report that one first.
+            VerificationException earlier = rollBackPipeline();
+            throw earlier != null ? earlier : e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scriptChecks.cancel();
+            if (uncommittedBlocks.isEmpty())
+                blockStore.abortDatabaseBatchWrite();
+            else
+                rollBackPipeline();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
@@ -286,6 +411,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.Batch scriptChecks = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -303,14 +429,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptChecks = scriptVerifier.newBatch();
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
                     BigInteger valueOut = BigInteger.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
@@ -321,15 +445,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
                                 throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
                             valueIn = valueIn.add(prevOut.getValue());
+                            Script prevOutScript = new Script(prevOut.getScriptBytes());
                             if (enforcePayToScriptHash) {
-                                Script script = new Script(prevOut.getScriptBytes());
-                                if (script.isPayToScriptHash())
+                                if (prevOutScript.isPayToScriptHash())
                                     sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                                 if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                     throw new VerificationException("Too many P2SH SigOps in block");
                             }
                             
-                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                            prevOutScripts.add(prevOutScript);
                             
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -358,28 +482,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptChecks.submit(tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptChecks.verify();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -394,11 +504,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptChecks != null)
+                scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptChecks != null)
+                scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -434,12 +546,29 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
-        blockStore.commitDatabaseBatchWrite();
+        if (connectingBlock != null) {
+            // Scripts are still being checked, keep the batch open. See setVerificationPipelineDepth.
+            connectingBlock.storedBlock = chainHead;
+            uncommittedBlocks.add(connectingBlock);
+            connectingBlock = null;
+        } else {
+            checkState(uncommittedBlocks.isEmpty());
+            blockStore.commitDatabaseBatchWrite();
+            committedHead = chainHead;
+        }
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
-        blockStore.abortDatabaseBatchWrite();
+        if (connectingBlock != null) {
+            // The block was connected but then failed, its changes are mixed in with those of the pending blocks.
+            VerificationException e = rollBackPipeline();
+            if (e != null)
+                log.error("Rolled back verification pipeline", e);
+        } else if (uncommittedBlocks.isEmpty()) {
+            blockStore.abortDatabaseBatchWrite();
+        }
+        // Otherwise the block failed before touching the store, so the pending blocks can stay as they are.
     }
 
     @Override
@@ -0,0 +1,623 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first. Headers are fetched from one peer, the download peer, in batches of up
+ * to {@link HeadersMessage#MAX_HEADERS} and checked a batch at a time with
+ * {@link AbstractBlockChain#verifyHeaders(List, Map)}. Headers from before the fast catchup time go into the chain as
+ * they are. For the others the blocks, or filtered blocks if a Bloom filter is in use, are requested from all the peers
+ * given to {@link #addPeer(Peer)} at once, and added to the chain in order as they come in.</p>
+ *
+ * <p>As the header of every block is known to connect before the block is requested, blocks don't end up waiting as
+ * orphans while the chain catches up with them, and the download isn't limited by the bandwidth of the one peer.
+ * Only a window of blocks beyond the last one added is requested at a time, so that the blocks waiting in memory for
+ * the ones before them stay few.</p>
+ *
+ * <p>A {@link PeerGroup} sets one up when asked to with {@link PeerGroup#setHeadersFirstDownload(boolean)}. Its peers
+ * hand it the headers and blocks they receive.</p>
+ */
+public class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    // How many blocks are requested from one peer at a time.
+    static final int MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    // How far beyond the next block to add to the chain blocks are requested.
+    static final int MAX_BLOCKS_AHEAD = 256;
+    // How many checked headers may wait for their blocks before no more headers are requested.
+    static final int MAX_PENDING_HEADERS = 5 * HeadersMessage.MAX_HEADERS;
+    // How long a peer has to answer a request before it is made again, of another peer if there is one.
+    static final long REQUEST_TIMEOUT_MSEC = 30 * 1000;
+    // How many times a block may fail to be added to the chain before the download gives up on it.
+    static final int MAX_ATTEMPTS_PER_BLOCK = 3;
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final ReentrantLock lock = Threading.lock("headersfirstdownload");
+
+    // The peer headers are fetched from, and when the outstanding getheaders was sent to it, or zero if none is.
+    @Nullable @GuardedBy("lock") private Peer headersPeer;
+    @GuardedBy("lock") private long headersRequestTime;
+    // Whether the peer may have more headers than it has sent us so far.
+    @GuardedBy("lock") private boolean moreHeaders;
+    // Whether a header from after the fast catchup time has been seen, after which all blocks are downloaded.
+    @GuardedBy("lock") private boolean passedFastCatchupTime;
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+
+    // Peers blocks are requested from, and for some of them the height from which they said they didn't have blocks.
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<Peer>();
+    @GuardedBy("lock") private final Map<Peer, Integer> missingFromHeight = new HashMap<Peer, Integer>();
+
+    // Headers which have been checked but whose blocks are not in the chain yet, in chain order, and the last of them.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredBlock> pendingHeaders =
+            new LinkedHashMap<Sha256Hash, StoredBlock>();
+    @Nullable @GuardedBy("lock") private StoredBlock pendingTip;
+    // Blocks of pending headers that have been requested and not received yet.
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // Blocks or filtered blocks of pending headers which have been received, or just the headers if only those are
+    // needed, waiting for the blocks before them to be added.
+    @GuardedBy("lock") private final Map<Sha256Hash, Received> received = new HashMap<Sha256Hash, Received>();
+    // Blocks of pending headers which have failed to be added to the chain, and the peers that sent them.
+    @GuardedBy("lock") private final Map<Sha256Hash, Failures> failures = new HashMap<Sha256Hash, Failures>();
+    // Whether a thread is adding blocks to the chain, which it does without the lock held.
+    @GuardedBy("lock") private boolean adding;
+    // Requests to send once the lock is released, so that a connection which closes as they are written doesn't call
+    // back into the peer group whilst the lock is held.
+    @GuardedBy("lock") private final List<Outgoing> outgoing = new ArrayList<Outgoing>();
+
+    private static class Request {
+        final Peer peer;
+        final long time;
+
+        Request(Peer peer, long time) {
+            this.peer = peer;
+            this.time = time;
+        }
+    }
+
+    private static class Received {
+        final Message block;
+        // The peer that sent the block, or null if only its header is needed.
+        @Nullable final Peer peer;
+
+        Received(Message block, @Nullable Peer peer) {
+            this.block = block;
+            this.peer = peer;
+        }
+    }
+
+    private static class Failures {
+        final Set<Peer> peers = new HashSet<Peer>();
+        int count;
+    }
+
+    private static class Outgoing {
+        final Peer peer;
+        final Message message;
+
+        Outgoing(Peer peer, Message message) {
+            this.peer = peer;
+            this.message = message;
+        }
+    }
+
+    public HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
+    }
+
+    /**
+     * Sets the time before which only headers are added to the chain, and whether filtered blocks are requested from
+     * peers that can send them, rather than full blocks. Neither applies when the chain verifies transactions.
+     */
+    public void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a peer that blocks can be requested from. */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.contains(peer))
+                peers.add(peer);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /**
+     * Removes a peer, usually because it disconnected. The blocks it was asked for are asked of other peers, and if it
+     * was the peer headers came from, no more are requested until {@link #start(Peer)} is called with another.
+     */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            peers.remove(peer);
+            missingFromHeight.remove(peer);
+            Iterator<Request> it = requests.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().peer == peer)
+                    it.remove();
+            }
+            if (peer == headersPeer) {
+                headersPeer = null;
+                headersRequestTime = 0;
+            }
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /**
+     * Starts, or carries on, downloading the chain with headers from the given peer, which is also added as a peer
+     * blocks can be requested from.
+     */
+    public void start(Peer peer) {
+        lock.lock();
+        try {
+            headersPeer = peer;
+            headersRequestTime = 0;
+            moreHeaders = true;
+            if (!peers.contains(peer))
+                peers.add(peer);
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Returns the number of headers which have been checked and are waiting for their blocks to be added. */
+    public int getPendingHeaderCount() {
+        lock.lock();
+        try {
+            return pendingHeaders.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes again any requests which peers haven't answered in time. Should be called every few seconds. */
+    public void checkRequests() {
+        lock.lock();
+        try {
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /**
+     * Called with the headers received from a peer. They are ignored unless the peer is the one headers are fetched
+     * from.
+     *
+     * @throws VerificationException if the headers are invalid
+     * @throws ProtocolException if they don't connect to the chain
+     */
+    void receiveHeaders(Peer peer, HeadersMessage m) throws ProtocolException {
+        List<Block> headers = m.getBlockHeaders();
+        lock.lock();
+        try {
+            if (peer != headersPeer) {
+                log.debug("{}: Ignoring headers from a peer we did not request them from", peer);
+                return;
+            }
+            headersRequestTime = 0;
+            moreHeaders = headers.size() >= HeadersMessage.MAX_HEADERS;
+            // Skip headers we already have, which the peer sends if our locator didn't tell it where we are.
+            BlockStore store = chain.getBlockStore();
+            int start = 0;
+            while (start < headers.size() && (pendingHeaders.containsKey(headers.get(start).getHash()) ||
+                    store.get(headers.get(start).getHash()) != null))
+                start++;
+            if (start < headers.size()) {
+                List<StoredBlock> checked = chain.verifyHeaders(headers.subList(start, headers.size()), pendingHeaders);
+                if (checked == null)
+                    throw new ProtocolException("Got unconnected header from peer: " + headers.get(start).getHashAsString());
+                addPendingHeadersLocked(checked);
+            }
+            requestLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+        addReadyBlocks();
+    }
+
+    /**
+     * Called with a block received from a peer. Returns false if it isn't one this download asked the peer for or is
+     * about to ask for, in which case the peer handles it as it would without one.
+     */
+    boolean receiveBlock(Peer peer, Block block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    /** As {@link #receiveBlock(Peer, Block)}, for a filtered block that has all its transactions. */
+    boolean receiveFilteredBlock(Peer peer, FilteredBlock block) {
+        return receive(peer, block.getHash(), block);
+    }
+
+    /** Called when the headers peer announces blocks. Requests more headers if it doesn't know all of them. */
+    void blocksAnnounced(Peer peer, List<Sha256Hash> hashes) {
+        lock.lock();
+        try {
+            if (peer != headersPeer)
+                return;
+            for (Sha256Hash hash : hashes) {
+                if (!pendingHeaders.containsKey(hash) && chain.getBlockStore().get(hash) == null) {
+                    moreHeaders = true;
+                    break;
+                }
+            }
+            requestLocked();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    /** Called when a peer says it doesn't have things it was asked for. Blocks among them are asked of other peers. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            boolean changed = false;
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request == null || request.peer != peer)
+                    continue;
+                requests.remove(item.hash);
+                int height = pendingHeaders.get(item.hash).getHeight();
+                Integer missing = missingFromHeight.get(peer);
+                if (missing == null || height < missing)
+                    missingFromHeight.put(peer, height);
+                changed = true;
+            }
+            if (changed)
+                requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+    }
+
+    private boolean receive(Peer peer, Sha256Hash hash, Message block) {
+        lock.lock();
+        try {
+            // Only blocks asked of this peer, or which would be asked for soon, are kept. Otherwise a peer could fill
+            // memory with the blocks of all the pending headers.
+            Request request = requests.get(hash);
+            if ((request == null || request.peer != peer) && !isInWindowLocked(hash))
+                return false;
+            // A peer whose copy of the block failed isn't asked for it again, nor is another copy from it kept.
+            Failures failed = failures.get(hash);
+            if (failed != null && failed.peers.contains(peer))
+                return false;
+            requests.remove(hash);
+            if (!received.containsKey(hash))
+                received.put(hash, new Received(block, peer));
+            requestLocked();
+        } finally {
+            lock.unlock();
+        }
+        sendOutgoing();
+        addReadyBlocks();
+        return true;
+    }
+
+    // Returns whether the block is among the first MAX_BLOCKS_AHEAD pending ones, which are the ones requested.
+    @GuardedBy("lock")
+    private boolean isInWindowLocked(Sha256Hash hash) {
+        int ahead = 0;
+        for (Sha256Hash pending : pendingHeaders.keySet()) {
+            if (ahead++ >= MAX_BLOCKS_AHEAD)
+                return false;
+            if (pending.equals(hash))
+                return true;
+        }
+        return false;
+    }
+
+    @GuardedBy("lock")
+    private void addPendingHeadersLocked(List<StoredBlock> checked) {
+        // If the headers don't follow on from the last pending one, the peer has switched to another fork. Drop the
+        // pending headers after the point they split at, they'll be fetched again if the peer switches back.
+        Sha256Hash prevHash = checked.get(0).getHeader().getPrevBlockHash();
+        if (pendingTip != null && !pendingTip.getHeader().getHash().equals(prevHash)) {
+            boolean drop = !pendingHeaders.containsKey(prevHash);
+            Iterator<Sha256Hash> it = pendingHeaders.keySet().iterator();
+            while (it.hasNext()) {
+                Sha256Hash hash = it.next();
+                if (drop) {
+                    it.remove();
+                    requests.remove(hash);
+                    received.remove(hash);
+                    failures.remove(hash);
+                } else if (hash.equals(prevHash)) {
+                    drop = true;
+                    pendingTip = pendingHeaders.get(hash);
+                }
+            }
+            if (pendingHeaders.isEmpty())
+                pendingTip = null;
+            log.info("Headers from {} fork from the pending headers at {}", headersPeer, prevHash);
+        }
+        for (StoredBlock stored : checked) {
+            Block header = stored.getHeader();
+            Sha256Hash hash = header.getHash();
+            pendingHeaders.put(hash, stored);
+            pendingTip = stored;
+            // Blocks from before the fast catchup time can't have transactions relevant to us, so only their headers
+            // are added to the chain, but only so long as all the headers before them were.
+            if (!passedFastCatchupTime && !chain.shouldVerifyTransactions() &&
+                    header.getTimeSeconds() < fastCatchupTimeSecs) {
+                received.put(hash, new Received(header, null));
+            } else {
+                passedFastCatchupTime = true;
+            }
+        }
+    }
+
+    // Asks for more headers and blocks if there is room for them, and again for those not received in time.
+    @GuardedBy("lock")
+    private void requestLocked() {
+        long now = Utils.currentTimeMillis();
+        if (headersPeer != null && moreHeaders && pendingHeaders.size() < MAX_PENDING_HEADERS &&
+                (headersRequestTime == 0 || now - headersRequestTime > REQUEST_TIMEOUT_MSEC)) {
+            try {
+                GetHeadersMessage getheaders = new GetHeadersMessage(params, buildLocatorLocked(), Sha256Hash.ZERO_HASH);
+                outgoing.add(new Outgoing(headersPeer, getheaders));
+                headersRequestTime = now;
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        Map<Peer, Integer> inFlight = new HashMap<Peer, Integer>();
+        Iterator<Map.Entry<Sha256Hash, Request>> it = requests.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Sha256Hash, Request> entry = it.next();
+            Request request = entry.getValue();
+            if (now - request.time > REQUEST_TIMEOUT_MSEC) {
+                log.info("{}: Timed out waiting for block {}", request.peer, entry.getKey());
+                it.remove();
+            } else {
+                Integer count = inFlight.get(request.peer);
+                inFlight.put(request.peer, count == null ? 1 : count + 1);
+            }
+        }
+
+        Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+        boolean filtered = useFilteredBlocks && !chain.shouldVerifyTransactions();
+        int ahead = 0;
+        for (StoredBlock stored : pendingHeaders.values()) {
+            if (ahead++ >= MAX_BLOCKS_AHEAD)
+                break;
+            Sha256Hash hash = stored.getHeader().getHash();
+            if (received.containsKey(hash) || requests.containsKey(hash))
+                continue;
+            Failures failed = failures.get(hash);
+            Peer peer = selectPeerLocked(stored.getHeight(), inFlight, failed == null ? null : failed.peers);
+            if (peer == null)
+                continue;
+            GetDataMessage getdata = getdatas.get(peer);
+            if (getdata == null) {
+                getdata = new GetDataMessage(params);
+                getdatas.put(peer, getdata);
+            }
+            if (filtered && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
+            else
+                getdata.addBlock(hash);
+            requests.put(hash, new Request(peer, now));
+            Integer count = inFlight.get(peer);
+            inFlight.put(peer, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            Peer peer = entry.getKey();
+            outgoing.add(new Outgoing(peer, entry.getValue()));
+            // A ping after the filtered blocks makes the peer send a pong, which shows the transactions of the last
+            // of them have all been sent.
+            if (filtered && peer.getPeerVersionMessage().isBloomFilteringSupported())
+                outgoing.add(new Outgoing(peer, new Ping((long) (Math.random() * Long.MAX_VALUE))));
+        }
+    }
+
+    private void sendOutgoing() {
+        List<Outgoing> messages;
+        lock.lock();
+        try {
+            if (outgoing.isEmpty())
+                return;
+            messages = new ArrayList<Outgoing>(outgoing);
+            outgoing.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Outgoing message : messages) {
+            try {
+                message.peer.sendMessage(message.message);
+            } catch (NotYetConnectedException e) {
+                log.warn("{}: Could not send {}, not connected", message.peer, message.message.getClass().getSimpleName());
+            }
+        }
+    }
+
+    // Returns the peer with the fewest blocks in flight which has room for more and should have the block at the given
+    // height, other than the excluded ones, or null if there isn't one.
+    @Nullable
+    @GuardedBy("lock")
+    private Peer selectPeerLocked(int height, Map<Peer, Integer> inFlight, @Nullable Set<Peer> excluded) {
+        Peer best = null;
+        int bestCount = MAX_BLOCKS_IN_FLIGHT_PER_PEER;
+        for (Peer peer : peers) {
+            Integer missing = missingFromHeight.get(peer);
+            if (peer.getBestHeight() < height || (missing != null && missing <= height))
+                continue;
+            if (excluded != null && excluded.contains(peer))
+                continue;
+            Integer count = inFlight.get(peer);
+            if (count == null)
+                count = 0;
+            if (count < bestCount) {
+                best = peer;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    // Lists the hashes of the last pending header and of the 99 blocks before it, then the genesis block, for the peer
+    // to find where its chain forks from ours.
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocatorLocked() throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(101);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = pendingTip != null ? pendingTip : chain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            Sha256Hash prevHash = cursor.getHeader().getPrevBlockHash();
+            StoredBlock prev = pendingHeaders.get(prevHash);
+            cursor = prev != null ? prev : store.get(prevHash);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    // Adds the blocks that have been received to the chain, in order, until it reaches one that hasn't been. This is
+    // done without the lock held, so that the chain and its listeners don't run under it, but by one thread at a time.
+    private void addReadyBlocks() {
+        while (true) {
+            Sha256Hash hash;
+            Received next;
+            Peer notifyPeer;
+            lock.lock();
+            try {
+                if (adding || pendingHeaders.isEmpty())
+                    return;
+                hash = pendingHeaders.keySet().iterator().next();
+                next = received.get(hash);
+                if (next == null)
+                    return;
+                adding = true;
+                notifyPeer = headersPeer;
+            } finally {
+                lock.unlock();
+            }
+
+            Message block = next.block;
+            Block header = block instanceof FilteredBlock ? ((FilteredBlock) block).getBlockHeader() : (Block) block;
+            boolean added = false;
+            boolean invalid = false;
+            try {
+                if (block instanceof FilteredBlock)
+                    added = chain.add((FilteredBlock) block);
+                else
+                    added = chain.add((Block) block);
+                if (!added)
+                    log.warn("{}: Block {} did not connect although its header did", next.peer, hash);
+            } catch (VerificationException e) {
+                log.warn("{}: Block verification failed", next.peer, e);
+                invalid = true;
+            } catch (PrunedException e) {
+                // Unreachable when in SPV mode.
+                throw new RuntimeException(e);
+            } finally {
+                lock.lock();
+                try {
+                    adding = false;
+                    received.remove(hash);
+                    if (added) {
+                        pendingHeaders.remove(hash);
+                        failures.remove(hash);
+                        if (pendingHeaders.isEmpty())
+                            pendingTip = null;
+                    } else {
+                        blockFailedLocked(hash, next.peer);
+                    }
+                    requestLocked();
+                } finally {
+                    lock.unlock();
+                }
+                sendOutgoing();
+            }
+            // A peer that sends an invalid block is not one to download the chain from.
+            if (invalid && next.peer != null)
+                next.peer.close();
+            if (added && notifyPeer != null)
+                notifyPeer.invokeOnBlocksDownloaded(header);
+        }
+    }
+
+    // Called when the first pending block couldn't be added to the chain. It is asked for again of a peer other than
+    // the one that sent it, unless it has failed too often or no other peer is left to ask, in which case the download
+    // gives up on it and the headers after it, which can't be added without it.
+    @GuardedBy("lock")
+    private void blockFailedLocked(Sha256Hash hash, @Nullable Peer peer) {
+        Failures failed = failures.get(hash);
+        if (failed == null) {
+            failed = new Failures();
+            failures.put(hash, failed);
+        }
+        failed.count++;
+        if (peer != null)
+            failed.peers.add(peer);
+        if (failed.count < MAX_ATTEMPTS_PER_BLOCK && !failed.peers.containsAll(peers))
+            return;
+        log.warn("Giving up on block {} after {} failed attempts, dropping {} pending headers", hash, failed.count,
+                pendingHeaders.size());
+        pendingHeaders.clear();
+        pendingTip = null;
+        requests.clear();
+        received.clear();
+        failures.clear();
+        // Fetching the same headers straight away would only fail the same way. More are asked for when the headers
+        // peer announces a block, or another peer becomes the headers peer.
+        moreHeaders = false;
+    }
+}
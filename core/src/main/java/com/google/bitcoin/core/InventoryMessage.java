@@ -48,6 +48,12 @@ public class InventoryMessage extends ListMessage {
         super(params, msg, parseLazy, parseRetain, length);
     }
 
+    /** Constructs an inventory message by reading length bytes from msg starting at offset. */
+    InventoryMessage(NetworkParameters params, byte[] msg, int offset, boolean parseLazy, boolean parseRetain,
+                     int length) throws ProtocolException {
+        super(params, msg, offset, parseLazy, parseRetain, length);
+    }
+
     public InventoryMessage(NetworkParameters params) {
         super(params);
     }
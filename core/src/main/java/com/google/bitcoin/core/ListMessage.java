@@ -44,6 +44,11 @@ public abstract class ListMessage extends Message {
         super(params, msg, 0, parseLazy, parseRetain, length);
     }
 
+    ListMessage(NetworkParameters params, byte[] msg, int offset, boolean parseLazy, boolean parseRetain, int length)
+            throws ProtocolException {
+        super(params, msg, offset, parseLazy, parseRetain, length);
+    }
+
 
     public ListMessage(NetworkParameters params) {
         super(params);
@@ -83,7 +88,7 @@ public abstract class ListMessage extends Message {
         // An inv is vector<CInv> where CInv is int+hash. The int is either 1 or 2 for tx or block.
         items = new ArrayList<InventoryItem>((int) arrayLen);
         for (int i = 0; i < arrayLen; i++) {
-            if (cursor + InventoryItem.MESSAGE_LENGTH > bytes.length) {
+            if (cursor + InventoryItem.MESSAGE_LENGTH > offset + length) {
                 throw new ProtocolException("Ran off the end of the INV");
             }
             int typeCode = (int) readUint32();
@@ -117,6 +117,14 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // If set, the chain is downloaded headers first by this, which the headers and blocks we receive are handed to.
+    @Nullable private volatile HeadersFirstDownload vHeadersFirstDownload;
+    // Blocks and transactions the peer asked for, which are held back whilst it is not writable so that they don't pile
+    // up in the outbound queue. The peer is disconnected if it asks for more than MAX_DEFERRED_DATA without reading.
+    @GuardedBy("lock") private final LinkedList<Message> deferredData = new LinkedList<Message>();
+    // Whether a thread is sending the deferred data, which it does without the lock held.
+    @GuardedBy("lock") private boolean sendingDeferredData;
+    private static final int MAX_DEFERRED_DATA = 1000;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -422,6 +430,10 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        // Blocks asked for as part of a headers first download are asked of other peers.
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null)
+            download.notFound(this, m.getItems());
     }
 
     private void processAlert(AlertMessage m) {
@@ -449,6 +461,12 @@ public class Peer extends PeerSocketHandler {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null && blockChain != null) {
+            download.receiveHeaders(this, m);
+            return;
+        }
+
         lock.lock();
         try {
             if (blockChain == null) {
@@ -532,8 +550,54 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", getAddress(), items.size());
-        for (Message item : items) {
-            sendMessage(item);
+        boolean tooMuch;
+        lock.lock();
+        try {
+            // Only a peer that already has data waiting for it can be asking for more than it reads.
+            tooMuch = !deferredData.isEmpty() && deferredData.size() + items.size() > MAX_DEFERRED_DATA;
+            if (!tooMuch)
+                deferredData.addAll(items);
+        } finally {
+            lock.unlock();
+        }
+        if (tooMuch) {
+            log.warn("{}: Asked for more data than it is reading, disconnecting", getAddress());
+            close();
+            return;
+        }
+        sendDeferredData();
+    }
+
+    @Override
+    protected void writabilityChanged(boolean writable) {
+        if (writable)
+            sendDeferredData();
+    }
+
+    // Sends the data the peer asked for, in order, for as long as it keeps up with what we send. Called again when it
+    // becomes writable. Only one thread sends at a time, and the lock isn't held whilst sending.
+    private void sendDeferredData() {
+        while (isWritable()) {
+            Message next;
+            lock.lock();
+            try {
+                if (sendingDeferredData || deferredData.isEmpty())
+                    return;
+                next = deferredData.poll();
+                sendingDeferredData = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                sendMessage(next);
+            } finally {
+                lock.lock();
+                try {
+                    sendingDeferredData = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
         }
     }
 
@@ -781,6 +845,10 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Blocks of a headers first download can come from any peer, not just the download peer.
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null && download.receiveBlock(this, m))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -837,6 +905,9 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null && download.receiveFilteredBlock(this, m))
+            return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -917,7 +988,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1001,6 +1072,17 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        // When downloading headers first, new blocks are found by fetching their headers, which comes to the same
+        // thing as fetching the blocks themselves once the chain has caught up.
+        HeadersFirstDownload download = vHeadersFirstDownload;
+        if (download != null && blocks.size() > 0 && downloadData && blockChain != null) {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(blocks.size());
+            for (InventoryItem item : blocks)
+                hashes.add(item.hash);
+            download.blocksAnnounced(this, hashes);
+            blocks.clear();
+        }
+
         lock.lock();
         try {
             if (blocks.size() > 0 && downloadData && blockChain != null) {
@@ -1247,6 +1329,11 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            HeadersFirstDownload download = vHeadersFirstDownload;
+            if (download != null) {
+                download.start(this);
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1257,6 +1344,15 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Makes chain downloads started with {@link #startBlockChainDownload()} go through the given headers first download,
+     * and hands it the headers and blocks received from this peer, or stops doing so if null is given. Set by
+     * {@link PeerGroup#setHeadersFirstDownload(boolean)}.
+     */
+    void setHeadersFirstDownload(@Nullable HeadersFirstDownload download) {
+        vHeadersFirstDownload = download;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
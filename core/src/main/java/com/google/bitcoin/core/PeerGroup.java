@@ -103,12 +103,16 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // Runs a background thread that we use for scheduling pings to our peers, so we can measure their performance
     // and network latency. We ping peers every pingIntervalMsec milliseconds.
     private volatile Timer vPingTimer;
+    // How often to look for requests of a headers first download which have timed out.
+    private static final long HEADERS_FIRST_CHECK_INTERVAL_MSEC = 5000;
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
+    // If set, the chain is downloaded headers first, with blocks fetched from all peers at once.
+    @Nullable private volatile HeadersFirstDownload vHeadersFirstDownload;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
@@ -175,7 +179,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
      * to whom anonymity is of utmost concern, 0.001 (0.1%) should provide very good privacy.</p>
      */
     public static final double DEFAULT_BLOOM_FILTER_FP_RATE = 0.0005;
-    /** Maximum increase in FP rate before forced refresh of the bloom filter */
+    /**
+     * Maximum increase in FP rate before forced refresh of the bloom filter, and before the filter is grown to hold
+     * more elements.
+     */
     public static final double MAX_FP_RATE_INCREASE = 2.0f;
     // The false positive rate for bloomFilter
     private double bloomFilterFPRate = DEFAULT_BLOOM_FILTER_FP_RATE;
@@ -588,6 +595,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        // Requests of a headers first download that peers sit on are made again of other peers.
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                HeadersFirstDownload download = vHeadersFirstDownload;
+                if (download != null)
+                    download.checkRequests();
+            }
+        }, HEADERS_FIRST_CHECK_INTERVAL_MSEC, HEADERS_FIRST_CHECK_INTERVAL_MSEC);
         channels.startAndWait();
     }
 
@@ -695,16 +711,24 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
 
             if (elements > 0) {
-                // We stair-step our element count so that we avoid creating a filter with different parameters
-                // as much as possible as that results in a loss of privacy.
+                // We avoid creating a filter with different parameters as much as possible as that results in a loss
+                // of privacy, and as it makes the providers build their filters from scratch rather than adding the
+                // new elements to the ones they have. So we only grow the filter once it holds more elements than it
+                // was sized for and the false positive rate measured from its bits is well past the target.
                 // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
                 // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
+                if (lastBloomFilterElementCount == 0)
+                    lastBloomFilterElementCount = elements + 100;
                 BloomFilter.BloomUpdate bloomFlags =
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
-                BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
-                for (PeerFilterProvider p : peerFilterProviders)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+                BloomFilter filter = mergeBloomFilters(bloomFlags);
+                double measuredFPRate = filter.getCurrentFalsePositiveRate();
+                if (elements > lastBloomFilterElementCount && measuredFPRate > bloomFilterFPRate * MAX_FP_RATE_INCREASE) {
+                    log.info("Bloom filter for {} elements has a false positive rate of {}, resizing for {} elements",
+                            lastBloomFilterElementCount, measuredFPRate, elements + 100);
+                    lastBloomFilterElementCount = elements + 100;
+                    filter = mergeBloomFilters(bloomFlags);
+                }
                 if (forceFilterUpdate || !filter.equals(bloomFilter)) {
                     bloomFilter = filter;
                     for (Peer peer : peers)
@@ -727,6 +751,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
     
+    private BloomFilter mergeBloomFilters(BloomFilter.BloomUpdate bloomFlags) {
+        BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
+        for (PeerFilterProvider p : peerFilterProviders)
+            filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+        return filter;
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -876,6 +907,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            HeadersFirstDownload download = vHeadersFirstDownload;
+            if (download != null) {
+                peer.setHeadersFirstDownload(download);
+                download.addPeer(peer);
+            }
             // Re-evaluate download peers.
             Peer newDownloadPeer = selectDownloadPeer(peers);
             if (downloadPeer != newDownloadPeer) {
@@ -984,6 +1020,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     peer.addEventListener(downloadListener, Threading.SAME_THREAD);
                 downloadPeer.setDownloadData(true);
                 downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
+                HeadersFirstDownload download = vHeadersFirstDownload;
+                if (download != null)
+                    download.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
             }
         } finally {
             lock.unlock();
@@ -1013,6 +1052,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
             }
+            HeadersFirstDownload download = vHeadersFirstDownload;
+            if (download != null)
+                download.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
         } finally {
             lock.unlock();
         }
@@ -1033,6 +1075,42 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Sets whether the chain is downloaded headers first. If so, headers are fetched from the download peer in
+     * batches of up to 2000 and checked a batch at a time, then the blocks after the fast catchup time are fetched from
+     * all connected peers at once and added to the chain in order. Otherwise the download peer is asked for the blocks
+     * a few hundred at a time, as it announces them.</p>
+     *
+     * <p>Downloading headers first uses the bandwidth of all peers and avoids holding blocks as orphans until those
+     * before them arrive, but older peers may not send headers. Call this before starting the chain download. See
+     * {@link HeadersFirstDownload}.</p>
+     */
+    public void setHeadersFirstDownload(boolean enabled) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Need a block chain to download");
+            HeadersFirstDownload download = null;
+            if (enabled) {
+                if (vHeadersFirstDownload != null)
+                    return;
+                download = new HeadersFirstDownload(params, chain);
+                download.setDownloadParameters(fastCatchupTimeSecs, bloomFilter != null);
+                for (Peer peer : peers)
+                    download.addPeer(peer);
+            }
+            vHeadersFirstDownload = download;
+            for (Peer peer : peers)
+                peer.setHeadersFirstDownload(download);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain is downloaded headers first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        return vHeadersFirstDownload != null;
+    }
+
     protected void handlePeerDeath(final Peer peer) {
         // Peer deaths can occur during startup if a connect attempt after peer discovery aborts immediately.
         final State state = state();
@@ -1048,6 +1126,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died", address);
+            HeadersFirstDownload download = vHeadersFirstDownload;
+            if (download != null)
+                download.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
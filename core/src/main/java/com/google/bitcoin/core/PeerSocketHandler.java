@@ -17,20 +17,24 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.AbstractTimeoutHandler;
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.FlowControlledWriteTarget;
 import com.google.bitcoin.net.MessageWriteTarget;
 import com.google.bitcoin.net.StreamParser;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -47,13 +51,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
     // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked
-    @VisibleForTesting MessageWriteTarget writeTarget = null;
+    @VisibleForTesting volatile MessageWriteTarget writeTarget = null;
+    // The low and high watermarks set for the outbound queue of writeTarget, if any were
+    @GuardedBy("lock") private long[] outboundWatermarks;
+
+    // Messages which ask for something or keep the connection alive, and which are sent ahead of bulk data, such as
+    // blocks and transactions we are sending, when a slow peer has a queue of it. Their order among themselves is kept.
+    private static final Set<String> PRIORITY_COMMANDS = ImmutableSet.of("version", "verack", "ping", "pong",
+            "getdata", "getblocks", "getheaders", "getaddr", "filterload", "mempool");
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. These come
+    // from a pool shared by all peers, and blocks and transactions are parsed straight out of them.
+    private static final ByteBufferPool largeReadBuffers = new ByteBufferPool(16 * 1024 * 1024);
+    private ByteBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
@@ -74,20 +86,100 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
+        checkConnected();
+        sendMessage(serializer.encode(message));
+    }
+
+    /**
+     * Sends a message that has already been serialized, see {@link BitcoinSerializer#encode(Message)}. The same
+     * encoded message can be sent to any number of peers, which is cheaper than sending them the message itself when
+     * it is large. Throws NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public void sendMessage(BitcoinSerializer.EncodedMessage message) throws NotYetConnectedException {
+        checkConnected();
+        try {
+            if (writeTarget instanceof FlowControlledWriteTarget) {
+                boolean priority = PRIORITY_COMMANDS.contains(message.getCommand());
+                ((FlowControlledWriteTarget) writeTarget).writeBytes(message.getBuffers(), priority);
+            } else {
+                writeTarget.writeBytes(message.getBuffers());
+            }
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Returns false if what we send to the peer is backing up, because the peer or the network to it is slower than
+     * we are sending. Large messages, like transactions being broadcast, are best sent to other peers meanwhile.
+     * Returns false if not connected.
+     */
+    public boolean isWritable() {
+        MessageWriteTarget target = writeTarget;
+        if (target instanceof FlowControlledWriteTarget)
+            return ((FlowControlledWriteTarget) target).isWritable();
+        // Other targets write on the sending thread, which holds the sender back by itself.
+        return target != null;
+    }
+
+    /**
+     * Called when the peer stops being writable, or becomes writable again, see {@link #isWritable()}. Does nothing
+     * by default.
+     */
+    protected void writabilityChanged(boolean writable) {
+    }
+
+    /**
+     * Sets how many bytes may wait to be sent to the peer before it stops being writable (the high watermark), and
+     * how few must be left for it to be writable again (the low watermark). See {@link #isWritable()}.
+     */
+    public void setOutboundWatermarks(long lowWatermark, long highWatermark) {
+        checkArgument(0 <= lowWatermark && lowWatermark <= highWatermark);
+        MessageWriteTarget target;
         lock.lock();
         try {
-            if (writeTarget == null)
-                throw new NotYetConnectedException();
+            outboundWatermarks = new long[] { lowWatermark, highWatermark };
+            target = writeTarget;
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (target instanceof FlowControlledWriteTarget)
+            ((FlowControlledWriteTarget) target).setWatermarks(lowWatermark, highWatermark);
+    }
+
+    /** Returns the number of bytes waiting to be sent to the peer, or zero if that isn't known. */
+    public long getOutboundQueuedBytes() {
+        MessageWriteTarget target = writeTarget;
+        return target instanceof FlowControlledWriteTarget ? ((FlowControlledWriteTarget) target).getQueuedBytes() : 0;
+    }
+
+    /** Returns the number of messages waiting to be sent to the peer, or zero if that isn't known. */
+    public int getOutboundQueuedMessageCount() {
+        MessageWriteTarget target = writeTarget;
+        return target instanceof FlowControlledWriteTarget ?
+                ((FlowControlledWriteTarget) target).getQueuedMessageCount() : 0;
+    }
+
+    /** Returns the number of bytes sent to the peer so far, or zero if that isn't known. */
+    public long getBytesSent() {
+        MessageWriteTarget target = writeTarget;
+        return target instanceof FlowControlledWriteTarget ? ((FlowControlledWriteTarget) target).getBytesWritten() : 0;
+    }
+
+    /** Returns the number of bytes per second recently sent to the peer, or zero if that isn't known. */
+    public long getBytesSentPerSecond() {
+        MessageWriteTarget target = writeTarget;
+        return target instanceof FlowControlledWriteTarget ?
+                ((FlowControlledWriteTarget) target).getBytesWrittenPerSecond() : 0;
+    }
+
+    private void checkConnected() throws NotYetConnectedException {
+        lock.lock();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
-        } catch (IOException e) {
-            exceptionCaught(e);
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -130,15 +222,26 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.remaining());
+                    ByteBuffer newBytes = buff.duplicate();
+                    newBytes.limit(buff.position() + bytesToGet);
+                    largeReadBuffer.put(newBytes);
+                    buff.position(buff.position() + bytesToGet);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (!largeReadBuffer.hasRemaining()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        ByteBuffer payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        payload.flip();
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, payload);
+                        } finally {
+                            // The message keeps no reference to the buffer's array once it's parsed.
+                            largeReadBuffers.release(payload);
+                        }
                         header = null;
+                        processMessage(message);
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
@@ -157,9 +260,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = largeReadBuffers.acquire(header.size);
+                            largeReadBuffer.put(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -193,13 +295,31 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         checkArgument(writeTarget != null);
         lock.lock();
         boolean closeNow = false;
+        long[] watermarks;
         try {
             checkArgument(this.writeTarget == null);
             closeNow = closePending;
             this.writeTarget = writeTarget;
+            watermarks = outboundWatermarks;
         } finally {
             lock.unlock();
         }
+        if (writeTarget instanceof FlowControlledWriteTarget) {
+            FlowControlledWriteTarget target = (FlowControlledWriteTarget) writeTarget;
+            if (watermarks != null)
+                target.setWatermarks(watermarks[0], watermarks[1]);
+            target.setWritabilityListener(new FlowControlledWriteTarget.Listener() {
+                @Override
+                public void onWritabilityChanged(boolean writable) {
+                    if (writable)
+                        log.info("{}: Caught up with what we send", getAddress());
+                    else
+                        log.info("{}: Falling behind with what we send, {} bytes waiting", getAddress(),
+                                getOutboundQueuedBytes());
+                    PeerSocketHandler.this.writabilityChanged(writable);
+                }
+            });
+        }
         if (closeNow)
             writeTarget.closeConnection();
     }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A long lived pool of threads that runs the script (signature) checks of blocks being connected by a
+ * {@link FullPrunedBlockChain}. Checks are grouped into a {@link Batch} per block: the chain submits each transaction
+ * as soon as its inputs have been looked up in the UTXO set, so signature checking runs in parallel with the rest of
+ * the UTXO pass, and then calls {@link Batch#verify()} to wait for the outcome.</p>
+ *
+ * <p>Queued transactions are run largest (by input count) first, so a single huge transaction submitted late in a block
+ * doesn't leave all but one core idle at the end. A failing check cancels the rest of its batch without disturbing
+ * the pool, which is reused for the next block.</p>
+ *
+ * <p>There are no dependencies between the checks of a batch: each job is handed the connected output scripts up
+ * front, so a transaction that spends an output created earlier in the same block can be verified in any order.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    // Idle worker threads exit after this long, so an unused chain doesn't pin threads forever.
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    // Used to keep jobs with equal input counts in submission order.
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Creates an engine with one worker thread per available processor. */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates an engine with the given number of worker threads. */
+    public ScriptVerificationEngine(int numThreads) {
+        checkArgument(numThreads > 0);
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Script verification thread " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Starts a new, empty batch of checks. A batch should be used for a single block only. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /** Returns the number of transactions waiting to be picked up by a worker thread. */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops the worker threads. Checks that were queued but not started are dropped, so any outstanding batch will
+     * never complete. The engine cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The set of checks for one block. Not thread safe: a batch is filled and waited on by the thread connecting the
+     * block, the worker threads only report results back to it.
+     */
+    public class Batch {
+        // Guarded by this.
+        private int pending;
+        @Nullable private VerificationException failure;
+        private volatile boolean cancelled;
+
+        private Batch() {}
+
+        /**
+         * Queues the checks for every input of the given transaction. prevOutScripts must contain the scriptPubKey of
+         * the connected output for each input, in input order. Because the checks run on another thread the
+         * transaction must not be modified after this call.
+         */
+        public void submit(Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash) {
+            checkArgument(tx.getInputs().size() == prevOutScripts.size());
+            checkState(!cancelled, "Batch was cancelled");
+            synchronized (this) {
+                pending++;
+            }
+            executor.execute(new Job(this, tx, prevOutScripts, enforcePayToScriptHash, sequence.getAndIncrement()));
+        }
+
+        /**
+         * Blocks until every submitted transaction was verified, or until the first failure. In the latter case the
+         * rest of the batch is cancelled and the failure is rethrown.
+         */
+        public void verify() throws VerificationException {
+            VerificationException e;
+            synchronized (this) {
+                try {
+                    while (pending > 0 && failure == null)
+                        wait();
+                } catch (InterruptedException thrownE) {
+                    throw new RuntimeException(thrownE); // Shouldn't happen
+                }
+                e = failure;
+            }
+            if (e != null) {
+                cancel();
+                throw e;
+            }
+        }
+
+        /**
+         * Drops any checks of this batch that haven't started yet. Checks that are already running finish in the
+         * background and their results are ignored.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private synchronized void complete(@Nullable VerificationException e) {
+            pending--;
+            if (e != null && failure == null)
+                failure = e;
+            notifyAll();
+        }
+    }
+
+    /** Verifies all inputs of a single transaction. Ordered so that the priority queue hands out big ones first. */
+    private static class Job implements Runnable, Comparable<Job> {
+        final Batch batch;
+        final Transaction tx;
+        final List<Script> prevOutScripts;
+        final boolean enforcePayToScriptHash;
+        final int numInputs;
+        final long sequence;
+
+        Job(Batch batch, Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash, long sequence) {
+            this.batch = batch;
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+            this.numInputs = prevOutScripts.size();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (batch.cancelled) {
+                batch.complete(null);
+                return;
+            }
+            // Stays set if the check dies with an Error, so the batch can't be mistaken for a success.
+            VerificationException result = new VerificationException("Script verification did not complete");
+            try {
+                for (int index = 0; index < numInputs; index++) {
+                    if (batch.cancelled)
+                        break;
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScripts.get(index),
+                            enforcePayToScriptHash);
+                }
+                result = null;
+            } catch (VerificationException e) {
+                result = e;
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                result = new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e);
+            } finally {
+                batch.complete(result);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (numInputs != other.numInputs)
+                return numInputs > other.numInputs ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
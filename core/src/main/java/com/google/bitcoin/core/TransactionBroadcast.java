@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -100,12 +101,21 @@ public class TransactionBroadcast {
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
-            peers = peers.subList(0, numToBroadcastTo);
+            // Prefer peers which are keeping up with what we send them: one with a backlog would get the transaction
+            // late, and the backlog would only grow.
+            List<Peer> writablePeers = new ArrayList<Peer>(peers.size());
+            List<Peer> slowPeers = new ArrayList<Peer>();
+            for (Peer peer : peers)
+                (peer.isWritable() ? writablePeers : slowPeers).add(peer);
+            writablePeers.addAll(slowPeers);
+            peers = writablePeers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Serialize the transaction once for all the peers, rather than once for each of them.
+            BitcoinSerializer.EncodedMessage encodedTx = new BitcoinSerializer(pinnedTx.getParams()).encode(pinnedTx);
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(pinnedTx);
+                    peer.sendMessage(encodedTx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
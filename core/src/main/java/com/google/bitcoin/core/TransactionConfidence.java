@@ -23,9 +23,13 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.HashSet;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -75,6 +79,14 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // If set, depth and workDone are as of the given reading of the tip, and a BUILDING transaction is buried by
+    // however far the tip moved since then.
+    @Nullable private transient ChainTip tip;
+    private transient long tipBlocks;
+    private transient BigInteger tipWork;
+    // Listeners that just pass changes on, like the one each wallet adds to its transactions. They don't make the
+    // depth of this transaction worth telling anybody about on every block.
+    @Nullable private transient Set<Listener> relayListeners;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -189,6 +201,7 @@ public class TransactionConfidence implements Serializable {
     public void addEventListener(Listener listener, Executor executor) {
         Preconditions.checkNotNull(listener);
         listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        updateSubscription();
     }
 
     /**
@@ -207,7 +220,88 @@ public class TransactionConfidence implements Serializable {
 
     public boolean removeEventListener(Listener listener) {
         Preconditions.checkNotNull(listener);
-        return ListenerRegistration.removeFromList(listener, listeners);
+        boolean removed = ListenerRegistration.removeFromList(listener, listeners);
+        synchronized (this) {
+            if (relayListeners != null)
+                relayListeners.remove(listener);
+        }
+        updateSubscription();
+        return removed;
+    }
+
+    /** Returns the transaction this confidence belongs to. */
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Adds a listener that is run on the user thread like any other, but that doesn't count as somebody being
+     * interested in the depth of this transaction, see {@link #setChainTip(ChainTip)}.
+     */
+    synchronized void addRelayListener(Listener listener) {
+        Preconditions.checkNotNull(listener);
+        if (relayListeners == null)
+            relayListeners = new HashSet<Listener>();
+        relayListeners.add(listener);
+        listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, Threading.USER_THREAD));
+    }
+
+    /**
+     * <p>Makes this confidence work out its depth and work done from the given tip from now on, instead of waiting
+     * for {@link #notifyWorkDone(Block)} to be called for every block. If it has listeners other than relay listeners
+     * it also subscribes to the tip, so the owner of the tip knows to tell it about new depths.</p>
+     *
+     * <p>Pass null to go back to only changing when told to.</p>
+     */
+    synchronized void setChainTip(@Nullable ChainTip tip) {
+        if (tip == this.tip)
+            return;
+        rebase();
+        if (this.tip != null)
+            this.tip.unsubscribe(this);
+        this.tip = tip;
+        readTip();
+        updateSubscription();
+    }
+
+    /**
+     * Called for transactions that appeared in the block the tip is being moved onto, as they were already given a
+     * depth of one and the work of that block when they appeared.
+     */
+    synchronized void skipTipMove(ChainTip tip, BigInteger work) {
+        if (tip != this.tip)
+            return;
+        tipBlocks++;
+        tipWork = tipWork.add(work);
+    }
+
+    private synchronized void updateSubscription() {
+        if (tip == null || listeners == null)
+            return;
+        int relays = relayListeners == null ? 0 : relayListeners.size();
+        if (listeners.size() > relays)
+            tip.subscribe(this);
+        else
+            tip.unsubscribe(this);
+    }
+
+    // Folds the distance the tip moved into depth and workDone, and takes a new reading of the tip.
+    private void rebase() {
+        depth = getDepthInBlocks();
+        workDone = getWorkDone();
+        readTip();
+    }
+
+    private void readTip() {
+        if (tip != null) {
+            tipBlocks = tip.getBlocks();
+            tipWork = tip.getWork();
+        }
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        rebase();
+        out.defaultWriteObject();
     }
 
     /**
@@ -227,9 +321,11 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        setConfidenceType(ConfidenceType.BUILDING);
+        rebase();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
-        setConfidenceType(ConfidenceType.BUILDING);
+        changed();
     }
 
     /**
@@ -247,7 +343,9 @@ public class TransactionConfidence implements Serializable {
         // Don't inform the event listeners if the confidence didn't really change.
         if (confidenceType == this.confidenceType)
             return;
+        rebase();
         this.confidenceType = confidenceType;
+        changed();
         if (confidenceType == ConfidenceType.PENDING) {
             depth = 0;
             appearedAtChainHeight = -1;
@@ -267,6 +365,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized boolean markBroadcastBy(PeerAddress address) {
         if (!broadcastBy.addIfAbsent(address))
             return false;  // Duplicate.
+        changed();
         if (getConfidenceType() == ConfidenceType.UNKNOWN) {
             this.confidenceType = ConfidenceType.PENDING;
         }
@@ -331,8 +430,10 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        rebase();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
+        changed();
         return true;
     }
 
@@ -347,14 +448,18 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (tip == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + (int) (tip.getBlocks() - tipBlocks);
     }
 
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        rebase();
         this.depth = depth;
+        changed();
     }
 
     /**
@@ -365,11 +470,15 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (tip == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(tip.getWork().subtract(tipWork));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        rebase();
         this.workDone = workDone;
+        changed();
     }
 
     /**
@@ -394,6 +503,7 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
         this.overridingTransaction = overridingTransaction;
+        changed();
         setConfidenceType(ConfidenceType.DEAD);
     }
 
@@ -445,6 +555,14 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setSource(Source source) {
         this.source = source;
+        changed();
+    }
+
+    // Tells the tip, if any, about every change, so the wallet can tell cheaply whether any of its transactions changed
+    // since it last looked, including changes nobody called queueListeners() for.
+    private void changed() {
+        if (tip != null)
+            tip.confidenceChanged();
     }
 
     /**
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Works out how big a transaction will be once it is serialized and signed, from the shape of its parts rather
+ * than by serializing it. This is what {@link Wallet#completeTx(Wallet.SendRequest)} uses to decide how much fee to
+ * pay while it is still choosing which outputs to spend.</p>
+ *
+ * <p>The size of an input depends on the script it will be given, which depends on the script of the output it
+ * spends. Signatures vary in length by a byte or two, so the sizes given for input scripts are upper bounds.</p>
+ */
+public class TransactionSizeEstimator {
+    /**
+     * The most a signature can take in an input script: a push opcode, up to 72 bytes of DER encoded signature and
+     * the sighash flags byte.
+     */
+    public static final int MAX_SIGNATURE_PUSH_SIZE = 74;
+
+    private TransactionSizeEstimator() {}
+
+    /**
+     * Returns the serialized size of the transaction as it is now, with the input scripts it currently has. This is
+     * the same as the length of {@link Transaction#bitcoinSerialize()} but doesn't serialize anything.
+     */
+    public static int getSize(Transaction tx) {
+        int size = 4 + VarInt.sizeOf(tx.getInputs().size()) + VarInt.sizeOf(tx.getOutputs().size()) + 4;
+        for (TransactionInput input : tx.getInputs())
+            size += getInputSize(input.getScriptBytes().length);
+        for (TransactionOutput output : tx.getOutputs())
+            size += getOutputSize(output.getScriptBytes().length);
+        return size;
+    }
+
+    /** Returns the serialized size of an input with an input script of the given length. */
+    public static int getInputSize(int scriptSigLength) {
+        // Outpoint hash and index, script and sequence number.
+        return 32 + 4 + VarInt.sizeOf(scriptSigLength) + scriptSigLength + 4;
+    }
+
+    /** Returns the serialized size of an output with an output script of the given length. */
+    public static int getOutputSize(int scriptPubKeyLength) {
+        return 8 + VarInt.sizeOf(scriptPubKeyLength) + scriptPubKeyLength;
+    }
+
+    /** Returns the serialized size of an output sending to the given address. */
+    public static int getOutputSize(Address address) {
+        // HASH160 <hash> EQUAL, or DUP HASH160 <hash> EQUALVERIFY CHECKSIG.
+        return getOutputSize(address.isP2SHAddress() ? 23 : 25);
+    }
+
+    /**
+     * Returns the most bytes an input script spending the given output script can take.
+     *
+     * @param scriptPubKey the script of the output being spent
+     * @param pubKeyLength the length of the public key that goes in the input script when spending a pay to address
+     *                     output, either 33 or 65 bytes; it is not used for other kinds of output
+     * @param redeemScript the script whose hash a pay to script hash output commits to, or null for other outputs
+     * @throws IllegalArgumentException if the output script isn't a standard form, or is pay to script hash and no
+     *                                  redeem script was given
+     */
+    public static int getScriptSigSize(Script scriptPubKey, int pubKeyLength, @Nullable Script redeemScript) {
+        if (scriptPubKey.isSentToRawPubKey()) {
+            return MAX_SIGNATURE_PUSH_SIZE;
+        } else if (scriptPubKey.isSentToAddress()) {
+            return MAX_SIGNATURE_PUSH_SIZE + getPushSize(pubKeyLength);
+        } else if (scriptPubKey.isSentToMultiSig()) {
+            // An extra OP_0 because of the off by one bug in CHECKMULTISIG, then a signature for each of the keys
+            // that are required.
+            int required = Script.decodeFromOpN(scriptPubKey.getChunks().get(0).data[0]);
+            return 1 + required * MAX_SIGNATURE_PUSH_SIZE;
+        } else if (scriptPubKey.isPayToScriptHash()) {
+            checkArgument(redeemScript != null, "Spending a pay to script hash output needs its redeem script");
+            checkArgument(!redeemScript.isPayToScriptHash(), "Redeem script can't itself be pay to script hash");
+            return getScriptSigSize(redeemScript, pubKeyLength, null) + getPushSize(redeemScript.getProgram().length);
+        }
+        throw new IllegalArgumentException("Can't estimate the size of an input spending " + scriptPubKey);
+    }
+
+    /** Returns the number of bytes needed to push data of the given length onto the stack. */
+    static int getPushSize(int length) {
+        if (length < ScriptOpCodes.OP_PUSHDATA1)
+            return 1 + length;
+        else if (length <= 0xff)
+            return 2 + length;
+        else if (length <= 0xffff)
+            return 3 + length;
+        else
+            return 5 + length;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -203,6 +204,22 @@ public class Utils {
         }
     }
 
+    /**
+     * Calculates the SHA-256 hash of the given number of bytes from the buffer's position, and then hashes the
+     * resulting hash again, without copying the bytes out of the buffer or moving its position. The resulting hash is
+     * in big endian form.
+     */
+    public static byte[] doubleDigest(ByteBuffer input, int length) {
+        ByteBuffer range = input.duplicate();
+        range.limit(range.position() + length);
+        synchronized (digest) {
+            digest.reset();
+            digest.update(range);
+            byte[] first = digest.digest();
+            return digest.digest(first);
+        }
+    }
+
     public static byte[] singleDigest(byte[] input, int offset, int length) {
         synchronized (digest) {
             digest.reset();
@@ -45,7 +45,9 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
@@ -95,11 +97,17 @@ import static com.google.common.base.Preconditions.*;
  * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.google.bitcoin.wallet.WalletFiles.Listener)}
  * for more information about this.</p>
  */
-public class Wallet implements Serializable, BlockChainListener, PeerFilterProvider {
+public class Wallet implements Serializable, BatchBlockChainListener, PeerFilterProvider {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
 
+    /**
+     * Transactions shallower than this many blocks get a DEPTH confidence change on every block by default, which
+     * covers the maturity of coinbases on the main network. See {@link #setDepthEventThreshold(int)}.
+     */
+    public static final int DEFAULT_DEPTH_EVENT_THRESHOLD = 100;
+
     protected final ReentrantLock lock = Threading.lock("wallet");
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
@@ -131,10 +139,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // The keys of the keychain by public key hash and by public key, so finding the key for an output doesn't mean
+    // going through all of them. Kept in step with the keychain by addKeys, removeKey, encrypt and decrypt. They are
+    // only changed under the lock, but are read without it.
+    private transient volatile ConcurrentHashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+    private transient volatile ConcurrentHashMap<ByteBuffer, ECKey> keysByPubKey;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // The filter last built by getBloomFilter(int, double, long), with the parameters it was built for. Keys and scripts
+    // added since are inserted into it as they come, so a wallet with many keys doesn't have to hash all of them again
+    // the next time a filter with the same parameters is needed. Removing a key throws it away.
+    @Nullable private transient BloomFilter bloomFilterCache;
+    private transient int bloomFilterCacheSize;
+    private transient double bloomFilterCacheFPRate;
+    private transient long bloomFilterCacheTweak;
+
     private final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -151,6 +172,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the blocks and work of the best chain. The confidences of our transactions are attached to it and work out
+    // their depth from it when asked, so a new block doesn't have to touch every transaction in the wallet.
+    private transient ChainTip chainTip;
+    // BUILDING transactions that are still shallower than depthEventThreshold. They get a DEPTH confidence event on
+    // every block, as do those with confidence listeners of their own. Others are left alone.
+    private transient HashSet<Transaction> shallowTransactions;
+    private transient volatile int depthEventThreshold;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -159,6 +187,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // Set while receiveBlock goes through a block, which then does the checks, events and saving that come after
+    // each transaction once for all of them.
+    private boolean insideBlock;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     private volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
@@ -170,6 +201,57 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private transient CoinSelector coinSelector = new DefaultCoinSelector();
 
+    // The outputs we could spend and the watched outputs of each transaction in the unspent and pending pools, kept
+    // up to date as transactions change so polling the balance doesn't have to look at every output in the wallet.
+    // transactionChanged() marks a transaction stale, and the stale ones are worked out again, together with the
+    // transactions they spend from, the next time the candidates are needed. The ESTIMATED balance is a running total
+    // of the candidates. Changes to the keys or the watched scripts make them all stale, see
+    // invalidateSpendCandidates(). The AVAILABLE balance also depends on the confidence of the transactions, which
+    // can change without the wallet knowing, so it is kept until the candidates change or the chain tip counts a
+    // confidence change of one of the transactions attached to it. New blocks only matter if the balance depends on
+    // depth, see availableBalanceDependsOnDepth().
+    private transient Map<Sha256Hash, List<TransactionOutput>> spendCandidates;
+    private transient Map<Sha256Hash, List<TransactionOutput>> watchedCandidates;
+    private transient Set<Transaction> staleCandidates;
+    private transient boolean allCandidatesStale;
+    private transient BigInteger estimatedBalance;
+    @Nullable private transient BigInteger availableBalance;
+    private transient int availableBalanceChanges;
+    private transient int availableBalanceMoves;
+    private transient boolean availableBalanceDependsOnDepth;
+
+    // When set, read methods don't wait for another thread that holds the lock, but answer from what was published
+    // at the end of the last change to the wallet. See setReadsFromSnapshot() and publishSnapshot().
+    private volatile boolean readsFromSnapshot;
+    @Nullable private transient volatile BigInteger snapshotAvailableBalance;
+    @Nullable private transient volatile BigInteger snapshotEstimatedBalance;
+    @Nullable private transient volatile List<ECKey> snapshotKeys;
+    private transient boolean snapshotKeysStale;
+    @Nullable private transient volatile TransactionSnapshot snapshotTransactions;
+
+    // What changed since saveChangesToFileStream last took the changes, kept while trackChanges is set so that
+    // WalletFiles can append them to a journal rather than save the whole wallet. A transaction is listed when it is
+    // added, moves pool, has an output spent or shows up in another block, and transactions it spends from are taken
+    // to have changed with it. Changes that can't be expressed as additions, like removing a key or encrypting the
+    // keys, set changesNeedFullSave instead.
+    private transient boolean trackChanges;
+    private transient LinkedHashSet<Transaction> changedTransactions;
+    private transient List<ECKey> addedKeys;
+    private transient List<Script> addedScripts;
+    private transient Set<String> changedExtensions;
+    private transient boolean changesNeedFullSave;
+    // The number of the last batch of changes that was taken.
+    private transient long changesSequence;
+
+    // Transactions that were left out when the wallet was read, to be added by completeLoading() before anything
+    // that may need them. The unspent and pending pools are always complete, so balances don't need them.
+    @Nullable private transient DeferredTransactions deferredTransactions;
+
+    // Spent and dead transactions held in serialized form, see compactHistory(). They aren't in any of the pools or in
+    // the transactions map until inflate() puts them back.
+    private transient HashMap<Sha256Hash, CompactTransaction> compacted;
+    private transient int historyCompactionDepth;
+
     // The keyCrypter for the wallet. This specifies the algorithm used for encrypting and decrypting the private keys.
     private KeyCrypter keyCrypter;
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
@@ -193,10 +275,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         this.params = checkNotNull(params);
         keychain = new ArrayList<ECKey>();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
+        unspent = new PoolMap();
+        spent = new PoolMap();
+        pending = new PoolMap();
+        dead = new PoolMap();
         transactions = new HashMap<Sha256Hash, Transaction>();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
@@ -214,6 +296,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        changedTransactions = new LinkedHashSet<Transaction>();
+        addedKeys = new ArrayList<ECKey>();
+        addedScripts = new ArrayList<Script>();
+        changedExtensions = new HashSet<String>();
+        compacted = new HashMap<Sha256Hash, CompactTransaction>();
+        chainTip = new ChainTip();
+        spendCandidates = new HashMap<Sha256Hash, List<TransactionOutput>>();
+        watchedCandidates = new HashMap<Sha256Hash, List<TransactionOutput>>();
+        staleCandidates = new HashSet<Transaction>();
+        allCandidatesStale = true;
+        shallowTransactions = new HashSet<Transaction>();
+        depthEventThreshold = DEFAULT_DEPTH_EVENT_THRESHOLD;
+        for (Transaction tx : transactions.values())
+            trackDepth(tx);
+        rebuildKeyIndexes();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -226,9 +323,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        transactionChanged(tx);
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
+                        // The AVAILABLE balance counts our own pending transactions once enough peers announce them.
+                        publishSnapshot();
                     } finally {
                         lock.unlock();
                     }
@@ -246,7 +346,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns a snapshot of the keychain. This view is not live.
      */
     public List<ECKey> getKeys() {
-        lock.lock();
+        if (!lockForRead()) {
+            List<ECKey> keys = snapshotKeys;
+            if (keys != null)
+                return new ArrayList<ECKey>(keys);
+            lock.lock();
+        }
         try {
             return new ArrayList<ECKey>(keychain);
         } finally {
@@ -274,7 +379,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            boolean removed = keychain.remove(key);
+            if (removed) {
+                snapshotKeysStale = true;
+                keysByPubKeyHash.remove(ByteBuffer.wrap(key.getPubKeyHash()));
+                keysByPubKey.remove(ByteBuffer.wrap(key.getPubKey()));
+                bloomFilterCache = null;
+                invalidateSpendCandidates();
+                changesNeedFullSave = true;
+                publishSnapshot();
+            }
+            return removed;
         } finally {
             lock.unlock();
         }
@@ -368,6 +483,154 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Whether {@link #getBalance(BalanceType)}, {@link #getTransactions(boolean)}, {@link #getTransaction(Sha256Hash)}
+     * and {@link #getKeys()} wait for another thread that is changing the wallet, such as one receiving a large block
+     * or going through a re-org, or answer straight away from a snapshot. The snapshot is taken at the end of each change
+     * to the wallet, so it is consistent but can be out of date while the wallet is busy; a transaction that is being
+     * received is not found by hash until the change is over, for instance. Off by default, in which case reads always
+     * see the latest state.</p>
+     *
+     * <p>Finding keys by public key or hash never waits, whether this is set or not.</p>
+     *
+     * <p>Note that this property is not serialized.</p>
+     */
+    public void setReadsFromSnapshot(boolean readsFromSnapshot) {
+        lock.lock();
+        try {
+            // Anything published before would be out of date by now.
+            snapshotAvailableBalance = null;
+            snapshotEstimatedBalance = null;
+            snapshotKeys = null;
+            snapshotTransactions = null;
+            this.readsFromSnapshot = readsFromSnapshot;
+            publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the lock for a read method, or returns false if reads come from snapshots and another thread holds it.
+    private boolean lockForRead() {
+        if (!readsFromSnapshot) {
+            lock.lock();
+            return true;
+        }
+        return lock.tryLock();
+    }
+
+    // Publishes what read methods answer with while another thread holds the lock. Called at the end of each change
+    // to the wallet with the lock still held, so readers never see one half done. A change made from inside another
+    // one is published when the outer one is over.
+    private void publishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!readsFromSnapshot || lock.getHoldCount() != 1)
+            return;
+        // Only what changed is copied, so that publishing costs about as much as the change itself did. The balances
+        // are kept up to date as transactions change anyway, see getBalance(BalanceType).
+        if (snapshotKeys == null || snapshotKeysStale) {
+            snapshotKeys = Collections.unmodifiableList(new ArrayList<ECKey>(keychain));
+            snapshotKeysStale = false;
+        }
+        if (deferredTransactions == null && compacted.isEmpty()) {
+            TransactionSnapshot old = snapshotTransactions;
+            snapshotTransactions = new TransactionSnapshot(
+                    PoolSnapshot.of(unspent, old != null ? old.unspent : null),
+                    PoolSnapshot.of(spent, old != null ? old.spent : null),
+                    PoolSnapshot.of(pending, old != null ? old.pending : null),
+                    PoolSnapshot.of(dead, old != null ? old.dead : null));
+        } else {
+            // Not every transaction is at hand without loading or inflating it, so those reads wait for the lock.
+            snapshotTransactions = null;
+        }
+        snapshotEstimatedBalance = getBalance(BalanceType.ESTIMATED);
+        snapshotAvailableBalance = getBalance(BalanceType.AVAILABLE);
+    }
+
+    // A transaction pool that counts the changes to which transactions it holds, so that publishSnapshot() can tell
+    // which pools to copy again. The pools are only ever changed through put, remove and clear.
+    private static class PoolMap extends HashMap<Sha256Hash, Transaction> {
+        private static final long serialVersionUID = 1L;
+        private int changes;
+
+        @Override
+        public Transaction put(Sha256Hash hash, Transaction tx) {
+            changes++;
+            return super.put(hash, tx);
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> txns) {
+            changes++;
+            super.putAll(txns);
+        }
+
+        @Override
+        public Transaction remove(Object hash) {
+            changes++;
+            return super.remove(hash);
+        }
+
+        @Override
+        public void clear() {
+            changes++;
+            super.clear();
+        }
+    }
+
+    // A copy of one pool as it was at the end of a change.
+    private static class PoolSnapshot {
+        final Map<Sha256Hash, Transaction> transactions;
+        // The changes the pool had seen when it was copied, or -1 if it can't tell.
+        final int changes;
+
+        private PoolSnapshot(Map<Sha256Hash, Transaction> transactions, int changes) {
+            this.transactions = transactions;
+            this.changes = changes;
+        }
+
+        // Returns the old copy if the pool didn't change since it was made, or a new one. Pools of wallets that were
+        // deserialized from before pools counted their changes are plain maps, and are copied each time.
+        static PoolSnapshot of(Map<Sha256Hash, Transaction> pool, @Nullable PoolSnapshot old) {
+            int changes = pool instanceof PoolMap ? ((PoolMap) pool).changes : -1;
+            if (old != null && changes >= 0 && old.changes == changes)
+                return old;
+            return new PoolSnapshot(Collections.unmodifiableMap(new HashMap<Sha256Hash, Transaction>(pool)), changes);
+        }
+    }
+
+    // The wallet transactions as they were at the end of the last change.
+    private static class TransactionSnapshot {
+        final PoolSnapshot unspent, spent, pending, dead;
+
+        TransactionSnapshot(PoolSnapshot unspent, PoolSnapshot spent, PoolSnapshot pending, PoolSnapshot dead) {
+            this.unspent = unspent;
+            this.spent = spent;
+            this.pending = pending;
+            this.dead = dead;
+        }
+
+        @Nullable
+        Transaction get(Sha256Hash hash) {
+            for (PoolSnapshot pool : new PoolSnapshot[] {unspent, spent, pending, dead}) {
+                Transaction tx = pool.transactions.get(hash);
+                if (tx != null)
+                    return tx;
+            }
+            return null;
+        }
+
+        Set<Transaction> getTransactions(boolean includeDead) {
+            Set<Transaction> txns = new HashSet<Transaction>();
+            txns.addAll(unspent.transactions.values());
+            txns.addAll(spent.transactions.values());
+            txns.addAll(pending.transactions.values());
+            if (includeDead)
+                txns.addAll(dead.transactions.values());
+            return txns;
+        }
+    }
+
     /**
      * Sets the {@link RiskAnalysis} implementation to use for deciding whether received pending transactions are risky
      * or not. If the analyzer says a transaction is risky, by default it will be dropped. You can customize this
@@ -466,16 +729,441 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Sets whether the wallet keeps track of what changes in it, so that
+     * {@link #saveChangesToFileStream(java.io.OutputStream)} can save just that. This is turned on by
+     * {@link WalletFiles#enableJournal(long, java.util.concurrent.TimeUnit)} and isn't normally useful otherwise.</p>
+     */
+    public void setTrackChanges(boolean trackChanges) {
+        lock.lock();
+        try {
+            this.trackChanges = trackChanges;
+            clearChanges();
+            // Nothing has been saved yet that changes could be applied to.
+            changesNeedFullSave = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Saves the whole wallet like {@link #saveToFileStream(java.io.OutputStream)}, as the starting point for the
+     * batches of changes saved by {@link #saveChangesToFileStream(java.io.OutputStream)} afterwards.</p>
+     *
+     * @return the number of the last batch of changes saved, all of which this wallet already includes
+     */
+    public long saveSnapshotToFileStream(OutputStream f) throws IOException {
+        lock.lock();
+        try {
+            completeLoading();
+            checkState(trackChanges, "Not tracking changes");
+            saveToFileStream(f);
+            clearChanges();
+            return changesSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Saves what changed in the wallet since the last batch of changes or snapshot was saved: the transactions that
+     * were added or changed, with their pools and confidences, the keys, watched scripts and extensions that were
+     * added or updated, and the last block seen and other settings. See
+     * {@link WalletProtobufSerializer#writeWalletChanges} for the format. Batches are numbered upwards from one.</p>
+     *
+     * <p>Some changes, like removing a key, encrypting the wallet or a re-organize, can only be saved by saving the
+     * whole wallet again. If one of them happened nothing is written and -1 is returned, and the wallet should be
+     * saved with {@link #saveSnapshotToFileStream(java.io.OutputStream)} instead.</p>
+     *
+     * @return the number of the batch saved, or -1 if the whole wallet must be saved
+     */
+    public long saveChangesToFileStream(OutputStream f) throws IOException {
+        lock.lock();
+        try {
+            completeLoading();
+            checkState(trackChanges, "Not tracking changes");
+            if (changesNeedFullSave)
+                return -1;
+            // Whether an output is spent is saved with the transaction it belongs to.
+            Set<Transaction> txns = new LinkedHashSet<Transaction>(changedTransactions);
+            for (Transaction tx : changedTransactions) {
+                for (TransactionInput input : tx.getInputs()) {
+                    Transaction connected = input.getOutpoint().fromTx;
+                    if (connected != null && transactions.get(connected.getHash()) == connected)
+                        txns.add(connected);
+                }
+            }
+            List<WalletTransaction> walletTxns = new ArrayList<WalletTransaction>(txns.size());
+            for (Transaction tx : txns) {
+                Pool pool = getPool(tx);
+                if (pool == null) {
+                    // It was removed from the wallet.
+                    changesNeedFullSave = true;
+                    return -1;
+                }
+                walletTxns.add(new WalletTransaction(pool, tx));
+            }
+            List<WalletExtension> extensionsChanged = new ArrayList<WalletExtension>();
+            for (String id : changedExtensions)
+                extensionsChanged.add(extensions.get(id));
+            long sequence = changesSequence + 1;
+            new WalletProtobufSerializer().writeWalletChanges(this, sequence, walletTxns, addedKeys, addedScripts,
+                    extensionsChanged, f);
+            changesSequence = sequence;
+            clearChanges();
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Transactions that are still being read from disk when the rest of the wallet is already usable, see
+     * {@link WalletProtobufSerializer#setLazyLoading(boolean)}.</p>
+     */
+    public interface DeferredTransactions {
+        /**
+         * Waits until the transactions have been read, connects them to the other transactions of the wallet and
+         * returns them. It is called with the wallet locked, and only once unless it throws.
+         */
+        List<WalletTransaction> complete() throws UnreadableWalletException;
+    }
+
+    /**
+     * <p>Hands the wallet transactions it doesn't have yet, which are added the first time anything other than the
+     * balance, the keys or the unspent and pending transactions is asked for, or when {@link #finishLoading()} is
+     * called. The unspent and pending pools must already be complete, including whether their outputs are spent.
+     * This is meant for deserialization code such as {@link WalletProtobufSerializer} and isn't normally useful for
+     * applications.</p>
+     */
+    public void setDeferredTransactions(DeferredTransactions deferred) {
+        lock.lock();
+        try {
+            checkState(deferredTransactions == null, "Wallet already has transactions being loaded");
+            deferredTransactions = checkNotNull(deferred);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if some transactions are still being read, see {@link #setDeferredTransactions(DeferredTransactions)}.
+     */
+    public boolean isLoading() {
+        lock.lock();
+        try {
+            return deferredTransactions != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all the transactions of a wallet that was read lazily are loaded and adds them to the wallet. This
+     * happens by itself when they are needed, so calling it is only useful to choose when the wait happens.
+     *
+     * @throws IllegalStateException if the transactions could not be read
+     */
+    public void finishLoading() {
+        lock.lock();
+        try {
+            completeLoading();
+            publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completeLoading() {
+        checkState(lock.isHeldByCurrentThread());
+        if (deferredTransactions == null)
+            return;
+        List<WalletTransaction> wtxs;
+        try {
+            wtxs = deferredTransactions.complete();
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not finish loading the wallet", e);
+        }
+        deferredTransactions = null;
+        addSavedTransactions(wtxs);
+        log.info("Finished loading {} transactions", wtxs.size());
+    }
+
+    // Adds transactions that were in the wallet all along, so they aren't changes to be saved.
+    private void addSavedTransactions(List<WalletTransaction> wtxs) {
+        boolean tracking = trackChanges;
+        trackChanges = false;
+        try {
+            for (WalletTransaction wtx : wtxs)
+                addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+        } finally {
+            trackChanges = tracking;
+        }
+    }
+
+    /**
+     * <p>Holds the spent and dead transactions that are buried at least minDepth blocks deep as
+     * {@link CompactTransaction}s, which take a fraction of the memory, and returns how many there were. A long lived
+     * wallet is mostly made of such transactions, and they are rarely needed.</p>
+     *
+     * <p>A transaction is only compacted together with the wallet transactions it spends from, and not while an unspent
+     * or pending transaction spends from it or it is tied to a transaction that stays by being double spent. They are
+     * inflated again, as new objects, when something needs them: the methods that return all the transactions inflate
+     * all of them, {@link #getTransaction(Sha256Hash)} inflates the one asked for and those it spends from, and
+     * receiving a transaction inflates those it spends from. Inflating a transaction also inflates the compacted
+     * transactions that spend from it. Balances and spending never need them. Until they are inflated, the spent
+     * transactions that spend from compacted ones don't count those inputs in
+     * {@link Transaction#getValueSentFromMe(Wallet)}.</p>
+     */
+    public int compactHistory(int minDepth) {
+        checkArgument(minDepth > 0);
+        lock.lock();
+        try {
+            int compactedCount = compactHistoryLocked(minDepth);
+            publishSnapshot();
+            return compactedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the wallet call {@link #compactHistory(int)} with the given depth each time a block arrives. Zero, the
+     * default, turns it off.
+     */
+    public void setHistoryCompactionDepth(int minDepth) {
+        checkArgument(minDepth >= 0);
+        lock.lock();
+        try {
+            historyCompactionDepth = minDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int compactHistoryLocked(int minDepth) {
+        checkState(lock.isHeldByCurrentThread());
+        if (deferredTransactions != null)
+            return 0;
+        Set<Transaction> candidates = new HashSet<Transaction>();
+        for (Transaction tx : spent.values()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= minDepth)
+                candidates.add(tx);
+        }
+        candidates.addAll(dead.values());
+        Map<Transaction, List<Transaction>> overridden = new HashMap<Transaction, List<Transaction>>();
+        for (Transaction tx : dead.values()) {
+            Transaction overriding = getOverridingTransaction(tx);
+            if (overriding == null)
+                continue;
+            List<Transaction> txns = overridden.get(overriding);
+            if (txns == null) {
+                txns = new ArrayList<Transaction>();
+                overridden.put(overriding, txns);
+            }
+            txns.add(tx);
+        }
+        // Drop the candidates tied to transactions that stay, until the rest only depend on each other.
+        LinkedList<Transaction> work = new LinkedList<Transaction>(candidates);
+        while (!work.isEmpty()) {
+            Transaction tx = work.poll();
+            if (!candidates.contains(tx) || canCompact(tx, candidates, overridden))
+                continue;
+            candidates.remove(tx);
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spender = output.getSpentBy();
+                if (spender != null && spender.getParentTransaction() != null)
+                    work.add(spender.getParentTransaction());
+            }
+            Transaction overriding = getOverridingTransaction(tx);
+            if (overriding != null)
+                work.add(overriding);
+            if (overridden.containsKey(tx))
+                work.addAll(overridden.get(tx));
+        }
+        if (candidates.isEmpty())
+            return 0;
+
+        List<CompactTransaction> compactTxns = new ArrayList<CompactTransaction>(candidates.size());
+        for (Transaction tx : candidates) {
+            Pool pool = checkNotNull(getPool(tx));
+            byte[] data = WalletProtobufSerializer.serializeTransaction(new WalletTransaction(pool, tx));
+            compactTxns.add(new CompactTransaction(pool, tx, data, chainTip));
+        }
+        for (Transaction tx : candidates) {
+            // Spending transactions that stay lose their link to this one until it is inflated again.
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spender = output.getSpentBy();
+                if (spender != null && !candidates.contains(spender.getParentTransaction()))
+                    spender.getOutpoint().fromTx = null;
+            }
+            Sha256Hash hash = tx.getHash();
+            spent.remove(hash);
+            dead.remove(hash);
+            transactions.remove(hash);
+            shallowTransactions.remove(tx);
+            confidenceChanged.remove(tx);
+            tx.getConfidence().setChainTip(null);
+        }
+        for (CompactTransaction ctx : compactTxns)
+            compacted.put(ctx.getHash(), ctx);
+        log.info("Compacted {} transactions", compactTxns.size());
+        return compactTxns.size();
+    }
+
+    private boolean canCompact(Transaction tx, Set<Transaction> candidates,
+                               Map<Transaction, List<Transaction>> overridden) {
+        // The outputs it spends would look unspent without it.
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction from = input.getOutpoint().fromTx;
+            if (from != null && isInWallet(from) && !candidates.contains(from))
+                return false;
+        }
+        // Unspent and pending transactions are always kept connected to what they spend from.
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spender = output.getSpentBy();
+            Transaction to = spender != null ? spender.getParentTransaction() : null;
+            if (to != null && !candidates.contains(to) &&
+                    (unspent.get(to.getHash()) == to || pending.get(to.getHash()) == to))
+                return false;
+        }
+        Transaction overriding = getOverridingTransaction(tx);
+        if (overriding != null && isInWallet(overriding) && !candidates.contains(overriding))
+            return false;
+        if (overridden.containsKey(tx)) {
+            for (Transaction victim : overridden.get(tx)) {
+                if (!candidates.contains(victim))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Only dead transactions can have been overridden, and dead coinbases were not.
+    @Nullable
+    private static Transaction getOverridingTransaction(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.DEAD)
+            return null;
+        return confidence.getOverridingTransaction();
+    }
+
+    private boolean isInWallet(Transaction tx) {
+        return transactions.get(tx.getHash()) == tx;
+    }
+
+    /**
+     * Returns the transactions that are held compacted, see {@link #compactHistory(int)}, and adds all the others to
+     * the given collection at the same time. This is meant for serialization code, which can save compacted
+     * transactions without inflating them.
+     */
+    public List<CompactTransaction> getCompactTransactions(Collection<WalletTransaction> others) {
+        lock.lock();
+        try {
+            completeLoading();
+            addWalletTransactionsToSet(others, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(others, Pool.SPENT, spent.values());
+            addWalletTransactionsToSet(others, Pool.DEAD, dead.values());
+            addWalletTransactionsToSet(others, Pool.PENDING, pending.values());
+            return new ArrayList<CompactTransaction>(compacted.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Inflates the given transactions if they are compacted, along with the compacted ones that spend from them or
+    // overrode them, so they can be connected to each other.
+    private void inflate(Collection<Sha256Hash> hashes) {
+        checkState(lock.isHeldByCurrentThread());
+        if (compacted.isEmpty())
+            return;
+        LinkedHashMap<Sha256Hash, CompactTransaction> inflating = new LinkedHashMap<Sha256Hash, CompactTransaction>();
+        LinkedList<Sha256Hash> work = new LinkedList<Sha256Hash>(hashes);
+        while (!work.isEmpty()) {
+            Sha256Hash hash = work.poll();
+            CompactTransaction ctx = compacted.get(hash);
+            if (ctx == null || inflating.containsKey(hash))
+                continue;
+            inflating.put(hash, ctx);
+            work.addAll(ctx.getSpentBy());
+            if (ctx.getOverridingTransactionHash() != null)
+                work.add(ctx.getOverridingTransactionHash());
+        }
+        if (inflating.isEmpty())
+            return;
+        List<WalletTransaction> wtxs;
+        try {
+            wtxs = new WalletProtobufSerializer().inflateTransactions(params,
+                    new ArrayList<CompactTransaction>(inflating.values()), transactions);
+        } catch (UnreadableWalletException e) {
+            throw new IllegalStateException("Could not inflate compacted transactions", e);
+        }
+        for (Sha256Hash hash : inflating.keySet())
+            compacted.remove(hash);
+        addSavedTransactions(wtxs);
+    }
+
+    // Inflates the transaction if it is compacted, and the compacted ones it spends from.
+    private void inflateWithInputs(Transaction tx) {
+        if (compacted.isEmpty())
+            return;
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        hashes.add(tx.getHash());
+        for (TransactionInput input : tx.getInputs())
+            hashes.add(input.getOutpoint().getHash());
+        inflate(hashes);
+    }
+
+    private void inflateAll() {
+        checkState(lock.isHeldByCurrentThread());
+        completeLoading();
+        inflate(new ArrayList<Sha256Hash>(compacted.keySet()));
+    }
+
+    @Nullable
+    private Pool getPool(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        if (unspent.get(hash) == tx) return Pool.UNSPENT;
+        if (spent.get(hash) == tx) return Pool.SPENT;
+        if (pending.get(hash) == tx) return Pool.PENDING;
+        if (dead.get(hash) == tx) return Pool.DEAD;
+        return null;
+    }
+
+    private void clearChanges() {
+        changedTransactions.clear();
+        addedKeys.clear();
+        addedScripts.clear();
+        changedExtensions.clear();
+        changesNeedFullSave = false;
+    }
+
+    private void transactionChanged(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (trackChanges)
+            changedTransactions.add(tx);
+        staleCandidates.add(tx);
+    }
+
     /** Returns the parameters this wallet was created with. */
     public NetworkParameters getParams() {
         return params;
     }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet deserialized from the given file. If a journal of changes was kept next to it, as
+     * {@link WalletFiles#enableJournal(long, java.util.concurrent.TimeUnit)} does, the changes are applied too.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
         try {
+            if (WalletFiles.getJournalFile(f).exists()) {
+                Wallet wallet = new WalletProtobufSerializer().readWallet(WalletFiles.readWallet(f));
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet");
+                }
+                return wallet;
+            }
             FileInputStream stream = null;
             try {
                 stream = new FileInputStream(f);
@@ -526,6 +1214,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
 
+            // The spend candidates are kept up to date as transactions change, so check they add up.
+            maybeUpdateSpendCandidates();
+            BigInteger estimated = BigInteger.ZERO;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+                for (TransactionOutput output : tx.getOutputs()) {
+                    if (output.isAvailableForSpending() && output.isMine(this))
+                        estimated = estimated.add(output.getValue());
+                }
+            }
+            if (!estimated.equals(estimatedBalance)) {
+                log.error("Spend candidates add up to {} rather than {}", estimatedBalance, estimated);
+                success = false;
+            }
+
             if (!success) log.error(toString());
             return success;
         } finally {
@@ -544,6 +1246,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return wallet;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            // Compacted transactions go back into the pools, as only those are serialized.
+            inflateAll();
+            out.defaultWriteObject();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
@@ -570,18 +1283,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
                                            BlockChain.NewBlockType blockType,
                                            int relativityOffset) throws VerificationException {
+        boolean batched;
         lock.lock();
         try {
+            batched = insideBlock;
+            completeLoading();
+            inflate(Collections.singleton(txHash));
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
                 log.error("TX {} not found despite being sent to wallet", txHash);
                 return;
             }
             receive(tx, block, blockType, relativityOffset);
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
-        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
+        if (!batched && blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
             // This has to run outside the wallet lock as it may trigger broadcasting of new transactions.
             maybeRotateKeys();
@@ -635,6 +1353,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // ensures that if some other client that has our keys broadcasts a spend we stay in sync. Also updates the
             // timestamp on the transaction and registers/runs event listeners.
             commitTx(tx);
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -789,13 +1508,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void receiveFromBlock(Transaction tx, StoredBlock block,
                                  BlockChain.NewBlockType blockType,
                                  int relativityOffset) throws VerificationException {
+        boolean batched;
         lock.lock();
         try {
+            batched = insideBlock;
             receive(tx, block, blockType, relativityOffset);
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
-        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
+        if (!batched && blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
             // If some keys are considered to be bad, possibly move money assigned to them now.
             // This has to run outside the wallet lock as it may trigger broadcasting of new transactions.
             maybeRotateKeys();
@@ -806,6 +1528,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
+        completeLoading();
+        inflateWithInputs(tx);
         BigInteger prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
@@ -868,11 +1592,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            transactionChanged(tx);
             if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
+                // Don't bury this tx under the block in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
                 ignoreNextNewBlock.add(txHash);
+                trackDepth(tx);
             }
         }
 
@@ -906,14 +1632,98 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     queueOnCoinsSent(tx, prevBalance, newBalance);
                 }
             }
-            checkBalanceFuturesLocked(newBalance);
+            if (!insideBlock)
+                checkBalanceFuturesLocked(newBalance);
         }
 
+        if (insideBlock)
+            return;
         informConfidenceListenersIfNotReorganizing();
         checkState(isConsistent());
         saveNow();
     }
 
+    /**
+     * <p>Called by the {@link BlockChain} with all the transactions of a new block that are relevant to the wallet, and
+     * those it already has, see {@link BatchBlockChainListener#receiveBlock(StoredBlock, AbstractBlockChain.NewBlockType,
+     * List, Map)}. They are passed to {@link #receiveFromBlock(Transaction, StoredBlock, AbstractBlockChain.NewBlockType,
+     * int)} and {@link #notifyTransactionIsInBlock(Sha256Hash, StoredBlock, AbstractBlockChain.NewBlockType, int)} in
+     * turn, followed by {@link #notifyNewBestBlock(StoredBlock)} for a block on the best chain, but all under one
+     * acquisition of the wallet lock. The consistency check, balance futures, confidence and onWalletChanged events and
+     * saving happen once for the block rather than after each transaction. Coins received and sent events are still
+     * sent for each transaction.</p>
+     */
+    @Override
+    public void receiveBlock(StoredBlock block, BlockChain.NewBlockType blockType, List<Sha256Hash> txHashes,
+                             Map<Sha256Hash, Transaction> transactions) throws VerificationException {
+        boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
+        lock.lock();
+        try {
+            checkState(!insideBlock);
+            completeLoading();
+            insideBlock = true;
+            onWalletChangedSuppressions++;
+            try {
+                Set<Sha256Hash> received = new HashSet<Sha256Hash>();
+                for (int i = 0; i < txHashes.size(); i++) {
+                    Sha256Hash hash = txHashes.get(i);
+                    Transaction tx = transactions.get(hash);
+                    if (tx != null) {
+                        // One that spends an earlier transaction of the block was sent without knowing whether it
+                        // is relevant, which can only be told now that the earlier one has been received.
+                        if (spendsFromAny(tx, received) && !isRelevantInBlock(tx))
+                            continue;
+                        receiveFromBlock(tx, block, blockType, i);
+                        received.add(hash);
+                    } else
+                        notifyTransactionIsInBlock(hash, block, blockType, i);
+                }
+                if (bestChain)
+                    notifyNewBestBlock(block);
+            } finally {
+                insideBlock = false;
+                onWalletChangedSuppressions--;
+            }
+            if (bestChain || !txHashes.isEmpty())
+                maybeQueueOnWalletChanged();
+            if (!txHashes.isEmpty()) {
+                if (bestChain && !insideReorg)
+                    checkBalanceFuturesLocked(null);
+                informConfidenceListenersIfNotReorganizing();
+                checkState(isConsistent());
+                saveNow();
+            }
+            publishSnapshot();
+        } finally {
+            lock.unlock();
+        }
+        if (bestChain && !txHashes.isEmpty()) {
+            // If some keys are considered to be bad, possibly move money assigned to them now.
+            // This has to run outside the wallet lock as it may trigger broadcasting of new transactions.
+            maybeRotateKeys();
+        }
+    }
+
+    private boolean isRelevantInBlock(Transaction tx) {
+        try {
+            return isTransactionRelevant(tx);
+        } catch (ScriptException e) {
+            // As in the block chain, a script we don't understand must not stop the rest of the block.
+            log.warn("Failed to parse a script: " + e.toString());
+            return false;
+        }
+    }
+
+    private static boolean spendsFromAny(Transaction tx, Set<Sha256Hash> hashes) {
+        if (hashes.isEmpty())
+            return false;
+        for (TransactionInput input : tx.getInputs()) {
+            if (hashes.contains(input.getOutpoint().getHash()))
+                return true;
+        }
+        return false;
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
@@ -941,34 +1751,101 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         lock.lock();
         try {
+            completeLoading();
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            // Moving the chain tip buries all the BUILDING transactions by one more block. Those that appeared in this
+            // block were already given a depth of one and its work in receive(), so they must not be buried by it too.
+            BigInteger work = block.getHeader().getWork();
+            Set<Transaction> inBlock = new HashSet<Transaction>();
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null) {
+                    tx.getConfidence().skipTipMove(chainTip, work);
+                    inBlock.add(tx);
                 }
             }
+            ignoreNextNewBlock.clear();
+            chainTip.move(1, work);
+            queueDepthChanges(inBlock);
+            if (historyCompactionDepth > 0)
+                compactHistoryLocked(historyCompactionDepth);
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
             // Coalesce writes to avoid throttling on disk access when catching up with the chain.
             saveLater();
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
     }
 
+    // Attaches the confidence of one of our transactions to the chain tip, and starts sending it DEPTH events if it's
+    // BUILDING and still shallow.
+    private void trackDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setChainTip(chainTip);
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                confidence.getDepthInBlocks() < depthEventThreshold)
+            shallowTransactions.add(tx);
+    }
+
+    // Queues DEPTH changes for the transactions that are still shallow and for those that somebody listens to, except
+    // the given ones, which appeared in the new block and were told about it by receive(). Changes of other kinds that
+    // are already queued take precedence.
+    private void queueDepthChanges(Set<Transaction> inBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        for (Iterator<Transaction> it = shallowTransactions.iterator(); it.hasNext(); ) {
+            Transaction tx = it.next();
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING) {
+                it.remove();
+                continue;
+            }
+            if (!confidenceChanged.containsKey(tx) && !inBlock.contains(tx))
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            // The event that crosses the threshold is the last one it gets.
+            if (confidence.getDepthInBlocks() >= depthEventThreshold)
+                it.remove();
+        }
+        for (TransactionConfidence confidence : chainTip.getSubscribers()) {
+            Transaction tx = confidence.getTransaction();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && !confidenceChanged.containsKey(tx) &&
+                    !inBlock.contains(tx))
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+        }
+    }
+
+    /**
+     * <p>Sets how many blocks deep a transaction has to be before the wallet stops sending out a
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} confidence change, and calling
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)}, for it on every new block.
+     * Deeper transactions only get these if something listens to their confidence directly, for instance a future
+     * from {@link TransactionConfidence#getDepthFuture(int)}. Their depth is always up to date when asked for.</p>
+     *
+     * <p>The default is {@link #DEFAULT_DEPTH_EVENT_THRESHOLD}.</p>
+     */
+    public void setDepthEventThreshold(int blocks) {
+        checkArgument(blocks >= 0);
+        lock.lock();
+        try {
+            completeLoading();
+            depthEventThreshold = blocks;
+            for (Transaction tx : transactions.values())
+                trackDepth(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depth set by {@link #setDepthEventThreshold(int)}. */
+    public int getDepthEventThreshold() {
+        return depthEventThreshold;
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -1039,6 +1916,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void updateForSpends(Transaction tx, boolean fromChain) throws VerificationException {
         checkState(lock.isHeldByCurrentThread());
+        inflateWithInputs(tx);
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
         for (TransactionInput input : tx.getInputs()) {
@@ -1123,6 +2001,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 Transaction connected = deadInput.getOutpoint().fromTx;
                 if (connected == null) continue;
                 deadInput.disconnect();
+                transactionChanged(connected);
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
@@ -1156,6 +2035,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
                 spent.put(tx.getHash(), tx);
+                transactionChanged(tx);
             }
         } else {
             if (spent.remove(tx.getHash()) != null) {
@@ -1163,6 +2043,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                transactionChanged(tx);
             }
         }
     }
@@ -1200,6 +2081,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         tx.verify();
         lock.lock();
         try {
+            completeLoading();
             if (pending.containsKey(tx.getHash()))
                 return false;
             log.info("commitTx of {}", tx.getHashAsString());
@@ -1236,6 +2118,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(isConsistent());
             informConfidenceListenersIfNotReorganizing();
             saveNow();
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -1262,8 +2145,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
+        if (!lockForRead()) {
+            TransactionSnapshot snapshot = snapshotTransactions;
+            if (snapshot != null)
+                return snapshot.getTransactions(includeDead);
+            lock.lock();
+        }
         try {
+            inflateAll();
             Set<Transaction> all = new HashSet<Transaction>();
             all.addAll(unspent.values());
             all.addAll(spent.values());
@@ -1282,6 +2171,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
         try {
+            inflateAll();
             Set<WalletTransaction> all = new HashSet<WalletTransaction>();
             addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
             addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
@@ -1293,7 +2183,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    private static void addWalletTransactionsToSet(Set<WalletTransaction> txs,
+    private static void addWalletTransactionsToSet(Collection<WalletTransaction> txs,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
             txs.add(new WalletTransaction(poolType, tx));
@@ -1309,6 +2199,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -1338,7 +2229,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
-        tx.getConfidence().addEventListener(txConfidenceListener);
+        tx.getConfidence().addRelayListener(txConfidenceListener);
+        trackDepth(tx);
+        transactionChanged(tx);
     }
 
     /**
@@ -1390,9 +2283,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
+        if (!lockForRead()) {
+            TransactionSnapshot snapshot = snapshotTransactions;
+            if (snapshot != null)
+                return snapshot.get(hash);
+            lock.lock();
+        }
         try {
-            return transactions.get(hash);
+            Transaction tx = transactions.get(hash);
+            if (tx == null && deferredTransactions != null) {
+                completeLoading();
+                tx = transactions.get(hash);
+            }
+            if (!compacted.isEmpty()) {
+                inflate(Collections.singleton(hash));
+                tx = transactions.get(hash);
+                if (tx != null)
+                    inflateWithInputs(tx);
+            }
+            return tx;
         } finally {
             lock.unlock();
         }
@@ -1406,13 +2315,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void clearTransactions(int fromHeight) {
         lock.lock();
         try {
+            completeLoading();
             if (fromHeight == 0) {
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().setChainTip(null);
+                shallowTransactions.clear();
                 unspent.clear();
                 spent.clear();
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                compacted.clear();
+                invalidateSpendCandidates();
+                changesNeedFullSave = true;
                 saveLater();
+                publishSnapshot();
             } else {
                 throw new UnsupportedOperationException();
             }
@@ -1424,6 +2341,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     EnumSet<Pool> getContainingPools(Transaction tx) {
         lock.lock();
         try {
+            completeLoading();
+            inflate(Collections.singleton(tx.getHash()));
             EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
             Sha256Hash txHash = tx.getHash();
             if (unspent.containsKey(txHash)) {
@@ -1447,15 +2366,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     int getPoolSize(WalletTransaction.Pool pool) {
         lock.lock();
         try {
+            completeLoading();
             switch (pool) {
                 case UNSPENT:
                     return unspent.size();
                 case SPENT:
-                    return spent.size();
+                    return spent.size() + getCompactedCount(Pool.SPENT);
                 case PENDING:
                     return pending.size();
                 case DEAD:
-                    return dead.size();
+                    return dead.size() + getCompactedCount(Pool.DEAD);
             }
             throw new RuntimeException("Unreachable");
         } finally {
@@ -1463,6 +2383,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private int getCompactedCount(Pool pool) {
+        int count = 0;
+        for (CompactTransaction ctx : compacted.values()) {
+            if (ctx.getPool() == pool)
+                count++;
+        }
+        return count;
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     //  SEND APIS
@@ -1829,11 +2758,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -1907,8 +2831,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private boolean adjustOutputDownwardsForFee(Transaction tx, CoinSelection coinSelection, BigInteger baseFee, BigInteger feePerKb) {
         TransactionOutput output = tx.getOutput(0);
         // Check if we need additional fee due to the transaction's size
-        int size = tx.bitcoinSerialize().length;
-        size += estimateBytesForSigning(coinSelection);
+        int size = TransactionSizeEstimator.getSize(tx);
+        for (TransactionOutput spent : coinSelection.gathered)
+            size += TransactionSizeEstimator.getInputSize(estimateScriptSigSize(spent)) - TransactionSizeEstimator.getInputSize(0);
         BigInteger fee = baseFee.add(BigInteger.valueOf((size / 1000) + 1).multiply(feePerKb));
         output.setValue(output.getValue().subtract(fee));
         // Check if we need additional fee due to the output's value
@@ -1925,17 +2850,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
-            }
-            return candidates;
+            maybeUpdateSpendCandidates();
+            return filterImmature(spendCandidates.values(), excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
@@ -1949,26 +2865,89 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    try {
-                        Script scriptPubKey = output.getScriptPubKey();
-                        if (!watchedScripts.contains(scriptPubKey)) continue;
-                        candidates.add(output);
-                    } catch (ScriptException e) {
-                        // Ignore
-                    }
-                }
-            }
-            return candidates;
+            maybeUpdateSpendCandidates();
+            return filterImmature(watchedCandidates.values(), excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
     }
 
+    // Maturity depends on the depth, which changes with every block, so it is checked each time rather than cached.
+    private static LinkedList<TransactionOutput> filterImmature(Collection<List<TransactionOutput>> outputs,
+                                                                boolean excludeImmatureCoinbases) {
+        LinkedList<TransactionOutput> result = Lists.newLinkedList();
+        for (TransactionOutput output : Iterables.concat(outputs)) {
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+            result.add(output);
+        }
+        return result;
+    }
+
+    /** Must be called with the lock held after changing the keys or the watched scripts. */
+    private void invalidateSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        allCandidatesStale = true;
+        availableBalance = null;
+    }
+
+    private void maybeUpdateSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        if (allCandidatesStale) {
+            spendCandidates.clear();
+            watchedCandidates.clear();
+            estimatedBalance = BigInteger.ZERO;
+            staleCandidates.addAll(unspent.values());
+            staleCandidates.addAll(pending.values());
+            allCandidatesStale = false;
+        }
+        if (staleCandidates.isEmpty())
+            return;
+        // A transaction that changed may have spent, or stopped spending, outputs of those it spends from.
+        Set<Transaction> stale = new HashSet<Transaction>(staleCandidates);
+        for (Transaction tx : staleCandidates) {
+            for (TransactionInput input : tx.getInputs()) {
+                Transaction connected = input.getOutpoint().fromTx;
+                if (connected != null)
+                    stale.add(connected);
+            }
+        }
+        staleCandidates.clear();
+        for (Transaction tx : stale)
+            updateSpendCandidates(tx.getHash());
+        availableBalance = null;
+    }
+
+    // Works out the candidates of one transaction again and moves the ESTIMATED balance by the difference.
+    private void updateSpendCandidates(Sha256Hash hash) {
+        List<TransactionOutput> old = spendCandidates.remove(hash);
+        if (old != null) {
+            for (TransactionOutput output : old)
+                estimatedBalance = estimatedBalance.subtract(output.getValue());
+        }
+        watchedCandidates.remove(hash);
+        Transaction tx = unspent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            return;
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        List<TransactionOutput> watched = new ArrayList<TransactionOutput>();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (output.isMine(this)) {
+                candidates.add(output);
+                estimatedBalance = estimatedBalance.add(output.getValue());
+            }
+            if (!watchedScripts.isEmpty() && output.isWatched(this))
+                watched.add(output);
+        }
+        if (!candidates.isEmpty())
+            spendCandidates.put(hash, candidates);
+        if (!watched.isEmpty())
+            watchedCandidates.put(hash, watched);
+    }
+
     /** Returns the address used for change outputs. Note: this will probably go away in future. */
     public Address getChangeAddress() {
         lock.lock();
@@ -2004,9 +2983,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (hasKey(key)) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2016,11 +2994,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                snapshotKeysStale = true;
+                indexKey(key);
+                if (trackChanges)
+                    addedKeys.add(key);
+                if (bloomFilterCache != null) {
+                    bloomFilterCache.insert(key.getPubKey());
+                    bloomFilterCache.insert(key.getPubKeyHash());
+                }
                 added++;
             }
+            // Outputs we already have may pay to the new keys.
+            if (added > 0)
+                invalidateSpendCandidates();
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
+            publishSnapshot();
             return added;
         } finally {
             lock.unlock();
@@ -2085,8 +3075,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                if (trackChanges)
+                    addedScripts.add(script);
+                if (bloomFilterCache != null)
+                    insertIntoBloomFilter(bloomFilterCache, script);
                 added++;
             }
+            if (added > 0)
+                invalidateSpendCandidates();
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2104,25 +3100,33 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        lock.lock();
-        try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
-        } finally {
-            lock.unlock();
-        }
+        return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
-        lock.lock();
-        try {
-            return keychain.contains(key);
-        } finally {
-            lock.unlock();
-        }
+        return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
+    }
+
+    private void indexKey(ECKey key) {
+        indexKey(keysByPubKeyHash, keysByPubKey, key);
+    }
+
+    private static void indexKey(ConcurrentHashMap<ByteBuffer, ECKey> byPubKeyHash,
+                                 ConcurrentHashMap<ByteBuffer, ECKey> byPubKey, ECKey key) {
+        // The first key wins if there are duplicates, as it did when the keychain was searched in order.
+        byPubKeyHash.putIfAbsent(ByteBuffer.wrap(key.getPubKeyHash()), key);
+        byPubKey.putIfAbsent(ByteBuffer.wrap(key.getPubKey()), key);
+    }
+
+    private void rebuildKeyIndexes() {
+        // Built aside and then swapped in, as readers don't take the lock.
+        ConcurrentHashMap<ByteBuffer, ECKey> byPubKeyHash = new ConcurrentHashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        ConcurrentHashMap<ByteBuffer, ECKey> byPubKey = new ConcurrentHashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(byPubKeyHash, byPubKey, key);
+        keysByPubKeyHash = byPubKeyHash;
+        keysByPubKey = byPubKey;
     }
 
     /**
@@ -2148,15 +3152,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        lock.lock();
-        try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
-        } finally {
-            lock.unlock();
-        }
+        return keysByPubKey.get(ByteBuffer.wrap(pubkey));
     }
 
     /**
@@ -2202,15 +3198,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public BigInteger getBalance(BalanceType balanceType) {
-        lock.lock();
+        if (!lockForRead()) {
+            BigInteger balance = balanceType == BalanceType.AVAILABLE ? snapshotAvailableBalance : snapshotEstimatedBalance;
+            if (balance != null)
+                return balance;
+            lock.lock();
+        }
         try {
+            maybeUpdateSpendCandidates();
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                int changes = chainTip.getConfidenceChanges(), moves = chainTip.getMoves();
+                if (availableBalance == null || changes != availableBalanceChanges ||
+                        (moves != availableBalanceMoves && availableBalanceDependsOnDepth)) {
+                    availableBalance = getBalance(coinSelector);
+                    availableBalanceChanges = changes;
+                    availableBalanceDependsOnDepth = availableBalanceDependsOnDepth();
+                }
+                availableBalanceMoves = moves;
+                return availableBalance;
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2219,6 +3226,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // Whether the AVAILABLE balance can change with new blocks alone. The default coin selector only looks at the
+    // confidence type and the peers that announced a transaction when asked for every coin, so the depth only matters
+    // for coinbases that are not yet mature. Other selectors may look at the depth for anything.
+    private boolean availableBalanceDependsOnDepth() {
+        if (coinSelector.getClass() != DefaultCoinSelector.class)
+            return true;
+        for (List<TransactionOutput> outputs : spendCandidates.values()) {
+            if (!outputs.get(0).getParentTransaction().isMature())
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
      * as many coins as possible and returns the total.
@@ -2273,6 +3293,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                            @Nullable AbstractBlockChain chain) {
         lock.lock();
         try {
+            inflateAll();
             StringBuilder builder = new StringBuilder();
             BigInteger balance = getBalance(BalanceType.ESTIMATED);
             builder.append(String.format("Wallet containing %s BTC (%d satoshis) in:%n",
@@ -2383,6 +3404,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            inflateAll();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -2400,6 +3422,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            // Transactions get disconnected from each other, which a batch of changes has no way to record.
+            changesNeedFullSave = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -2452,8 +3476,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                             if (input != null) input.disconnect();
                         }
                         for (TransactionInput input : tx.getInputs()) {
+                            // The outputs this spent become available again.
+                            Transaction connected = input.getOutpoint().fromTx;
+                            if (connected != null)
+                                transactionChanged(connected);
                             input.disconnect();
                         }
+                        transactionChanged(tx);
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
@@ -2489,10 +3518,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
             }
             log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            // Moving the chain tip back removes depthToSubtract and workDoneToSubtract from all the BUILDING
+            // transactions, which are the ones in the wallet that aren't pending. Some of them may be shallow again.
+            chainTip.move(-depthToSubtract, workDoneToSubtract.negate());
+            for (Transaction tx : transactions.values())
+                trackDepth(tx);
+            queueDepthChanges(Collections.<Transaction>emptySet());
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2524,25 +3555,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkBalanceFuturesLocked(balance);
             informConfidenceListenersIfNotReorganizing();
             saveLater();
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
     }
 
-    /**
-     * Subtract the supplied depth and work done from the given transactions.
-     */
-    private void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                          Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     /**
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
@@ -2727,11 +3745,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            snapshotKeysStale = true;
+            rebuildKeyIndexes();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            changesNeedFullSave = true;
 
             saveNow();
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -2768,10 +3790,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            snapshotKeysStale = true;
+            rebuildKeyIndexes();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            changesNeedFullSave = true;
             saveNow();
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3004,21 +4030,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
+            if (bloomFilterCache == null || bloomFilterCacheSize != size ||
+                    bloomFilterCacheFPRate != falsePositiveRate || bloomFilterCacheTweak != nTweak) {
+                BloomFilter cache = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (ECKey key : keychain) {
+                    cache.insert(key.getPubKey());
+                    cache.insert(key.getPubKeyHash());
                 }
+                for (Script script : watchedScripts)
+                    insertIntoBloomFilter(cache, script);
+                bloomFilterCache = cache;
+                bloomFilterCacheSize = size;
+                bloomFilterCacheFPRate = falsePositiveRate;
+                bloomFilterCacheTweak = nTweak;
             }
+            // Hand out a copy, as the cache keeps changing.
+            filter.merge(bloomFilterCache);
         } finally {
             lock.unlock();
         }
@@ -3039,6 +4066,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return filter;
     }
 
+    private static void insertIntoBloomFilter(BloomFilter filter, Script script) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                filter.insert(chunk.data);
+            }
+        }
+    }
+
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         return (out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey()) ||
                 out.isWatched(this);
@@ -3064,6 +4102,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            availableBalance = null;
+            publishSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3168,6 +4208,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            if (trackChanges)
+                changedExtensions.add(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -3185,6 +4227,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            if (trackChanges)
+                changedExtensions.add(id);
             saveNow();
             return extension;
         } finally {
@@ -3202,6 +4246,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            if (trackChanges)
+                changedExtensions.add(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -3339,10 +4385,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // We keep track of the last size of the transaction we calculated but only if the act of adding inputs and
             // change resulted in the size crossing a 1000 byte boundary. Otherwise it stays at zero.
             int lastCalculatedSize = 0;
+            // The size of the transaction as given, less the count of inputs which selected coins will change. The
+            // inputs and change are sized from their scripts each time around, so nothing has to be serialized.
+            final int baseSize = TransactionSizeEstimator.getSize(req.tx) - VarInt.sizeOf(originalInputs.size());
+            // The scripts of the outputs we might spend don't change, so each is only looked at once.
+            final IdentityHashMap<TransactionOutput, Integer> inputSizes = new IdentityHashMap<TransactionOutput, Integer>();
+            // The selection made last time around if it turned out to need more fee. If it already covers the larger
+            // amount it is used again rather than asking the coin selector a second time.
+            CoinSelection lastSelection = null;
             BigInteger valueNeeded, valueMissing = null;
             while (true) {
-                resetTxInputs(req, originalInputs);
-
                 BigInteger fees = req.fee == null ? BigInteger.ZERO : req.fee;
                 if (lastCalculatedSize > 0) {
                     // If the size is exactly 1000 bytes then we'll over-pay, but this should be rare.
@@ -3359,8 +4411,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 BigInteger additionalValueSelected = additionalValueForNextCategory;
 
                 // Of the coins we could spend, pick some that we actually will spend.
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                CoinSelection selection = selector.select(valueNeeded, candidates);
+                CoinSelection selection;
+                if (lastSelection != null && lastSelection.valueGathered.compareTo(valueNeeded) >= 0) {
+                    selection = lastSelection;
+                } else {
+                    CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+                    selection = selector.select(valueNeeded, candidates);
+                }
+                lastSelection = null;
                 // Can we afford this?
                 if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                     valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -3408,7 +4466,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         additionalValueForNextCategory = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.add(
                                                          Transaction.MIN_NONDUST_OUTPUT.add(BigInteger.ONE));
                     } else {
-                        size += changeOutput.bitcoinSerialize().length + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
+                        size += TransactionSizeEstimator.getOutputSize(changeAddress) +
+                                VarInt.sizeOf(req.tx.getOutputs().size() + 1) - VarInt.sizeOf(req.tx.getOutputs().size());
                         // This solution is either category 1 or 2
                         if (!eitherCategory2Or3) // must be category 1
                             additionalValueForNextCategory = null;
@@ -3421,21 +4480,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
 
-                // Now add unsigned inputs for the selected coins.
+                // Estimate the size of the signed transaction with the selected coins as inputs, and loop again if we
+                // need more fee per kb.
+                size += baseSize + VarInt.sizeOf(originalInputs.size() + selection.gathered.size());
                 for (TransactionOutput output : selection.gathered) {
-                    TransactionInput input = req.tx.addInput(output);
-                    // If the scriptBytes don't default to none, our size calculations will be thrown off.
-                    checkState(input.getScriptBytes().length == 0);
+                    Integer inputSize = inputSizes.get(output);
+                    if (inputSize == null) {
+                        inputSize = TransactionSizeEstimator.getInputSize(estimateScriptSigSize(output));
+                        inputSizes.put(output, inputSize);
+                    }
+                    size += inputSize;
                 }
-
-                // Estimate transaction size and loop again if we need more fee per kb. The serialized tx doesn't
-                // include things we haven't added yet like input signatures/scripts or the change output.
-                size += req.tx.bitcoinSerialize().length;
-                size += estimateBytesForSigning(selection);
                 if (size/1000 > lastCalculatedSize/1000 && req.feePerKb.compareTo(BigInteger.ZERO) > 0) {
                     lastCalculatedSize = size;
                     // We need more fees anyway, just try again with the same additional value
                     additionalValueForNextCategory = additionalValueSelected;
+                    lastSelection = selection;
                     continue;
                 }
 
@@ -3465,8 +4525,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 break;
             }
 
-            resetTxInputs(req, originalInputs);
-
             if (selection3 == null && selection2 == null && selection1 == null) {
                 checkNotNull(valueMissing);
                 log.warn("Insufficient value in wallet for send: needed {} more", bitcoinValueToFriendlyString(valueMissing));
@@ -3501,33 +4559,26 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
         }
-
-        private void resetTxInputs(SendRequest req, List<TransactionInput> originalInputs) {
-            req.tx.clearInputs();
-            for (TransactionInput input : originalInputs)
-                req.tx.addInput(input);
-        }
     }
 
-    private int estimateBytesForSigning(CoinSelection selection) {
-        int size = 0;
-        for (TransactionOutput output : selection.gathered) {
-            try {
-                if (output.getScriptPubKey().isSentToAddress()) {
-                    // Send-to-address spends usually take maximum pubkey.length (as it may be compressed or not) + 75 bytes
-                    final ECKey key = findKeyFromPubHash(output.getScriptPubKey().getPubKeyHash());
-                    size += checkNotNull(key, "Coin selection includes unspendable outputs").getPubKey().length + 75;
-                } else if (output.getScriptPubKey().isSentToRawPubKey())
-                    size += 74; // Send-to-pubkey spends usually take maximum 74 bytes to spend
-                else
-                    throw new IllegalStateException("Unknown output type returned in coin selection");
-            } catch (ScriptException e) {
-                // If this happens it means an output script in a wallet tx could not be understood. That should never
-                // happen, if it does it means the wallet has got into an inconsistent state.
-                throw new IllegalStateException(e);
+    /** Returns the most bytes the input script spending the given output of ours can take once it is signed. */
+    private int estimateScriptSigSize(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            int pubKeyLength = 0;
+            if (script.isSentToAddress()) {
+                // The public key may be compressed or not, so the key tells us how long it is.
+                final ECKey key = findKeyFromPubHash(script.getPubKeyHash());
+                pubKeyLength = checkNotNull(key, "Coin selection includes unspendable outputs").getPubKey().length;
+            } else if (!script.isSentToRawPubKey()) {
+                throw new IllegalStateException("Unknown output type returned in coin selection");
             }
+            return TransactionSizeEstimator.getScriptSigSize(script, pubKeyLength, null);
+        } catch (ScriptException e) {
+            // If this happens it means an output script in a wallet tx could not be understood. That should never
+            // happen, if it does it means the wallet has got into an inconsistent state.
+            throw new IllegalStateException(e);
         }
-        return size;
     }
 
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
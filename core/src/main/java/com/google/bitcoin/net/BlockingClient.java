@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -136,4 +137,25 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer[] buffers) throws IOException {
+        try {
+            OutputStream out = socket.getOutputStream();
+            for (ByteBuffer buff : buffers) {
+                if (buff.hasArray()) {
+                    out.write(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+                } else {
+                    byte[] bytes = new byte[buff.remaining()];
+                    buff.duplicate().get(bytes);
+                    out.write(bytes);
+                }
+                buff.position(buff.limit());
+            }
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
 }
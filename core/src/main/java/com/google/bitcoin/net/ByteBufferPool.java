@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of heap {@link ByteBuffer}s, used to hold messages that are too large for a connection's read buffer
+ * without allocating a new array the size of each one. Buffers are handed out in power of two sizes, so that one
+ * released after a message can be used for any other message of up to the same size.</p>
+ *
+ * <p>The pool keeps at most the given number of bytes in released buffers and lets the garbage collector have any
+ * more. It can be shared between connections.</p>
+ */
+public class ByteBufferPool {
+    // Smaller messages fit in a connection's read buffer.
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 30;
+
+    private final long maxPooledBytes;
+    @GuardedBy("this") private final ArrayDeque<ByteBuffer>[] free;
+    @GuardedBy("this") private long pooledBytes;
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        this.maxPooledBytes = maxPooledBytes;
+        free = new ArrayDeque[MAX_SIZE_SHIFT + 1];
+        for (int i = MIN_SIZE_SHIFT; i <= MAX_SIZE_SHIFT; i++)
+            free[i] = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Returns a heap buffer backed by an array of at least the given size, with its position at zero and its limit at
+     * the size. The array may hold bytes from a previous use.
+     */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0 && size <= 1 << MAX_SIZE_SHIFT);
+        int shift = getSizeShift(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (!free[shift].isEmpty()) {
+                buffer = free[shift].poll();
+                pooledBytes -= buffer.capacity();
+            }
+        }
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(1 << shift);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer that came from {@link #acquire(int)}. Nothing must use it, or its array, afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = getSizeShift(capacity);
+        if (capacity != 1 << shift || !buffer.hasArray())
+            return;  // Not one of ours.
+        buffer.clear();
+        synchronized (this) {
+            if (pooledBytes + capacity > maxPooledBytes)
+                return;
+            free[shift].add(buffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    private static int getSizeShift(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.min(Math.max(shift, MIN_SIZE_SHIFT), MAX_SIZE_SHIFT);
+    }
+}
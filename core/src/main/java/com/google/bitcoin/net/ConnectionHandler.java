@@ -28,12 +28,16 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -41,13 +45,17 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements FlowControlledWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    private static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+    private static final long DEFAULT_HIGH_WATERMARK = 2 * 1024 * 1024;
+    // The most buffers given to one gathering write
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -58,20 +66,54 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") StreamParser parser;
     @GuardedBy("lock") private boolean closeCalled = false;
 
+    // A message waiting to be written, which may be partly written already
+    private static class QueuedMessage {
+        final ByteBuffer[] buffers;
+        final long length;
+        final boolean priority;
+
+        QueuedMessage(ByteBuffer[] buffers, long length, boolean priority) {
+            this.buffers = buffers;
+            this.length = length;
+            this.priority = priority;
+        }
+
+        long remaining() {
+            long remaining = 0;
+            for (ByteBuffer buff : buffers)
+                remaining += buff.remaining();
+            return remaining;
+        }
+    }
+
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<QueuedMessage> bytesToWrite = new LinkedList<QueuedMessage>();
+
+    @GuardedBy("lock") private long lowWatermark = DEFAULT_LOW_WATERMARK, highWatermark = DEFAULT_HIGH_WATERMARK;
+    @GuardedBy("lock") private boolean writable = true;
+    @Nullable private volatile Listener writabilityListener;
+
+    @GuardedBy("lock") private long bytesWritten = 0;
+    // Bytes written since rateWindowStart, and the rate over the window before that one
+    @GuardedBy("lock") private long rateWindowStart = System.currentTimeMillis(), rateWindowBytes = 0;
+    @GuardedBy("lock") private long bytesPerSecond = 0;
 
     private Set<ConnectionHandler> connectedHandlers;
 
+    // If set, the parser is called on this instead of on the selector thread, and we don't read from the socket while
+    // it has bytes from readBuff to parse.
+    @Nullable private final Executor parserExecutor;
+
     public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key) throws IOException {
-        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key);
+        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key, (Executor) null);
         if (parser == null)
             throw new IOException("Parser factory.getNewParser returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, @Nullable Executor parserExecutor) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.parserExecutor = parserExecutor == null ? null : new SerialExecutor(parserExecutor);
         if (parser == null) {
             readBuff = null;
             closeConnection();
@@ -84,7 +126,17 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+        this(parser, key, connectedHandlers, null);
+    }
+
+    /**
+     * Creates a handler whose parser is called on the given executor rather than on the thread which handles the
+     * selection key. The parser of each connection is still called by one task at a time, in the order the bytes and
+     * events of its connection came in.
+     */
+    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Executor parserExecutor) {
+        this(checkNotNull(parser), key, parserExecutor);
 
         // closeConnection() may have already happened, in which case we shouldn't add ourselves to the connectedHandlers set
         lock.lock();
@@ -109,31 +161,77 @@ class ConnectionHandler implements MessageWriteTarget {
 
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
+        boolean becameWritable = false;
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
+            // Push as much of the outbound queue as possible into the OS' network buffer, in one gathering write
+            // rather than one system call per buffer (a message is usually queued as a header and a payload).
+            if (!bytesToWrite.isEmpty()) {
+                ArrayList<ByteBuffer> buffs = new ArrayList<ByteBuffer>();
+                for (QueuedMessage message : bytesToWrite) {
+                    Collections.addAll(buffs, message.buffers);
+                    if (buffs.size() >= MAX_GATHERED_BUFFERS)
+                        break;
                 }
+                long written = channel.write(buffs.toArray(new ByteBuffer[buffs.size()]));
+                bytesToWriteRemaining -= written;
+                countBytesWritten(written);
+                while (!bytesToWrite.isEmpty() && bytesToWrite.peek().remaining() == 0)
+                    bytesToWrite.poll();
+                if (!bytesToWrite.isEmpty())
+                    setWriteOps();
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             // Don't bother waking up the selector here, since we're just removing an op, not adding
+            if (!writable && bytesToWriteRemaining <= lowWatermark) {
+                writable = true;
+                becameWritable = true;
+            }
         } finally {
             lock.unlock();
         }
+        if (becameWritable)
+            writabilityChanged(true);
+    }
+
+    @GuardedBy("lock")
+    private void countBytesWritten(long written) {
+        bytesWritten += written;
+        rateWindowBytes += written;
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= 1000) {
+            bytesPerSecond = rateWindowBytes * 1000 / elapsed;
+            rateWindowStart = now;
+            rateWindowBytes = 0;
+        }
+    }
+
+    private void writabilityChanged(boolean writable) {
+        Listener listener = writabilityListener;
+        if (listener != null)
+            listener.onWritabilityChanged(writable);
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // TODO: Kill the needless message duplication when the write completes right away
+        writeBytes(new ByteBuffer[] { ByteBuffer.wrap(Arrays.copyOf(message, message.length)) });
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer[] buffers) throws IOException {
+        writeBytes(buffers, false);
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer[] buffers, boolean priority) throws IOException {
+        long length = 0;
+        for (ByteBuffer buff : buffers)
+            length += buff.remaining();
+        boolean becameUnwritable = false;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
@@ -141,12 +239,29 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just put the buffers on the write queue as they are and let tryWriteBytes write them. A message with
+            // priority goes after the other ones with priority, and after one that has started being written.
+            QueuedMessage message = new QueuedMessage(buffers, length, priority);
+            if (priority) {
+                ListIterator<QueuedMessage> it = bytesToWrite.listIterator();
+                while (it.hasNext()) {
+                    QueuedMessage queued = it.next();
+                    if (!queued.priority && queued.remaining() == queued.length) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(message);
+            } else {
+                bytesToWrite.offer(message);
+            }
+            bytesToWriteRemaining += length;
+            if (writable && bytesToWriteRemaining > highWatermark) {
+                writable = false;
+                becameUnwritable = true;
+            }
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -160,6 +275,88 @@ class ConnectionHandler implements MessageWriteTarget {
             throw new IOException(e);
         }
         lock.unlock();
+        if (becameUnwritable)
+            writabilityChanged(false);
+    }
+
+    @Override
+    public boolean isWritable() {
+        lock.lock();
+        try {
+            return writable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+        checkArgument(0 <= lowWatermark && lowWatermark <= highWatermark);
+        boolean wasWritable, nowWritable;
+        lock.lock();
+        try {
+            this.lowWatermark = lowWatermark;
+            this.highWatermark = highWatermark;
+            wasWritable = writable;
+            if (writable && bytesToWriteRemaining > highWatermark)
+                writable = false;
+            else if (!writable && bytesToWriteRemaining <= lowWatermark)
+                writable = true;
+            nowWritable = writable;
+        } finally {
+            lock.unlock();
+        }
+        if (nowWritable != wasWritable)
+            writabilityChanged(nowWritable);
+    }
+
+    @Override
+    public void setWritabilityListener(@Nullable Listener listener) {
+        writabilityListener = listener;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueuedMessageCount() {
+        lock.lock();
+        try {
+            return bytesToWrite.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        lock.lock();
+        try {
+            return bytesWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBytesWrittenPerSecond() {
+        lock.lock();
+        try {
+            // If nothing has been written for a while, the last window's rate is out of date.
+            long elapsed = System.currentTimeMillis() - rateWindowStart;
+            if (elapsed >= 2000)
+                return rateWindowBytes * 1000 / elapsed;
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -184,8 +381,71 @@ class ConnectionHandler implements MessageWriteTarget {
         }
         if (callClosed) {
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
-            parser.connectionClosed();
+            callParser(new Runnable() {
+                @Override
+                public void run() {
+                    parser.connectionClosed();
+                }
+            });
+        }
+    }
+
+    // Tells the parser that the connection is open, on the parser executor if there is one
+    void connectionOpened() {
+        callParser(new Runnable() {
+            @Override
+            public void run() {
+                parser.connectionOpened();
+            }
+        });
+    }
+
+    private void callParser(Runnable call) {
+        if (parserExecutor == null)
+            call.run();
+        else
+            parserExecutor.execute(call);
+    }
+
+    // Gives the bytes read into readBuff to the parser and drops those it used from readBuff
+    private void receiveBytes() throws Exception {
+        // "flip" the buffer - setting the limit to the current position and setting position to 0
+        readBuff.flip();
+        // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
+        int bytesConsumed = checkNotNull(parser).receiveBytes(readBuff);
+        checkState(readBuff.position() == bytesConsumed);
+        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+        // position)
+        readBuff.compact();
+    }
+
+    // Stops reading from the socket and has the parser executor parse readBuff, after which it starts reading again.
+    // That way readBuff is only used by one thread at a time, and a slow parser holds back its own connection only.
+    private void receiveBytesOnParserExecutor() {
+        lock.lock();
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } finally {
+            lock.unlock();
         }
+        parserExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receiveBytes();
+                    lock.lock();
+                    try {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        key.selector().wakeup();
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (Exception e) {
+                    log.error("Error handling received bytes: {}", Throwables.getRootCause(e).getMessage());
+                    closeConnection();
+                }
+            }
+        });
     }
 
     // Handle a SelectionKey which was selected
@@ -210,14 +470,10 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.parser).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
+                if (handler.parserExecutor == null)
+                    handler.receiveBytes();
+                else
+                    handler.receiveBytesOnParserExecutor();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A {@link MessageWriteTarget} which queues what is written to it until the remote end takes it, and says when the
+ * queue gets long, so that whatever writes to a slow connection can hold back rather than have the connection closed
+ * once the queue overflows.</p>
+ *
+ * <p>The target stops being writable once more than the high watermark of bytes are queued, and becomes writable again
+ * once the queue has drained down to the low watermark. Writes are still taken while it isn't writable, up to a hard
+ * limit at which the connection is closed.</p>
+ *
+ * <p>Messages written with priority, like pings and requests for data, are sent ahead of queued messages without it
+ * (apart from one which has started to be written), so they don't wait behind bulk data. They keep their order among
+ * themselves.</p>
+ */
+public interface FlowControlledWriteTarget extends MessageWriteTarget {
+    /** Told when a {@link FlowControlledWriteTarget} stops or starts being writable. */
+    public interface Listener {
+        /**
+         * Called without locks held, on whichever thread changed the writability. It may have changed again by the
+         * time this runs, which {@link FlowControlledWriteTarget#isWritable()} tells.
+         */
+        void onWritabilityChanged(boolean writable);
+    }
+
+    /**
+     * Like {@link #writeBytes(ByteBuffer[])}, but puts the buffers ahead of queued messages without priority if
+     * priority is set.
+     */
+    void writeBytes(ByteBuffer[] buffers, boolean priority) throws IOException;
+
+    /** Returns false if more than the high watermark of bytes are queued and the queue hasn't drained since. */
+    boolean isWritable();
+
+    /** Sets the number of queued bytes at which the target stops being writable, and the number it starts again at. */
+    void setWatermarks(long lowWatermark, long highWatermark);
+
+    /** Sets the listener told about changes of writability, or removes it if null is given. */
+    void setWritabilityListener(@Nullable Listener listener);
+
+    /** Returns the number of bytes which have been written to the target but not yet to the network. */
+    long getQueuedBytes();
+
+    /** Returns the number of messages which have been written to the target but not yet entirely to the network. */
+    int getQueuedMessageCount();
+
+    /** Returns the number of bytes written to the network so far. */
+    long getBytesWritten();
+
+    /** Returns the number of bytes written to the network per second, averaged over about the last second or two. */
+    long getBytesWrittenPerSecond();
+}
@@ -17,6 +17,7 @@
 package com.google.bitcoin.net;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -26,6 +27,13 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of the given buffers to the remote server, one buffer after the other. Unlike
+     * {@link #writeBytes(byte[])} this may not copy the bytes: the target can hold on to the buffers until they are
+     * written, moving their positions as it goes, so the caller must not use the buffers again and must not change the
+     * bytes they hold. The bytes may be shared with other buffers, which lets one message be sent to many targets.
+     */
+    void writeBytes(ByteBuffer[] buffers) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -104,4 +104,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer[] buffers) throws IOException {
+        handler.writeTarget.writeBytes(buffers);
+    }
 }
@@ -20,11 +20,13 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -35,6 +37,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    @Nullable private final Executor parserExecutor;
 
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
@@ -53,12 +56,12 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             // Create a ConnectionHandler and hook everything together
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers, parserExecutor);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
                     key.interestOps(SelectionKey.OP_READ).attach(handler);
-                    handler.parser.connectionOpened();
+                    handler.connectionOpened();
                 } else {
                     log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
                     handler.closeConnection(); // Failed to connect for some reason
@@ -79,6 +82,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(null);
+    }
+
+    /**
+     * <p>Creates a new client manager which uses Java NIO for socket management, with a single thread to handle all
+     * select calls.</p>
+     *
+     * <p>If an executor is given, the {@link StreamParser}s of the connections are called on it rather than on the
+     * select thread, so that parsing and handling messages can use more than one core. The parser of any one
+     * connection is still called by one thread at a time, with its bytes and events in the order they came in.</p>
+     */
+    public NioClientManager(@Nullable Executor parserExecutor) {
+        this.parserExecutor = parserExecutor;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
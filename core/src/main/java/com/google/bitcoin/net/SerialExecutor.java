@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor which runs the tasks given to it one at a time and in the order they were given, on an executor which
+ * may run many tasks at once. Many of them can share one thread pool, each keeping the tasks of one connection in
+ * order while the pool works for all connections.
+ */
+class SerialExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+    @GuardedBy("this") private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    // Whether the drainer is queued on or running in the executor.
+    @GuardedBy("this") private boolean draining = false;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Exception in serially executed task", e);
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Queues the task to run after all those given before it. If the underlying executor rejects the work, for instance
+     * because it has been shut down, the queued tasks run on the calling thread instead.
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            tasks.add(checkNotNull(task));
+            if (draining)
+                return;
+            draining = true;
+        }
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            drainer.run();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A client manager which spreads its connections over several {@link NioClientManager}s, each with its own selector
+ * and thread, so that a node with many connections isn't bound to one core. New connections are handed to the
+ * selectors in turn.</p>
+ *
+ * <p>Parsing and handling messages can be moved off the selector threads onto an executor, see
+ * {@link NioClientManager#NioClientManager(Executor)}. The parser of any one connection is still called by one thread
+ * at a time and sees its messages in the order they came in.</p>
+ */
+public class ShardedNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final List<NioClientManager> shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * Creates a manager with one selector thread per available processor, which parses and handles messages on the
+     * selector threads.
+     */
+    public ShardedNioClientManager() {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Creates a manager with the given number of selector threads. If an executor is given, messages are parsed and
+     * handled on it rather than on the selector threads.
+     */
+    public ShardedNioClientManager(int selectorThreads, @Nullable Executor parserExecutor) {
+        checkArgument(selectorThreads > 0);
+        shards = new ArrayList<NioClientManager>(selectorThreads);
+        for (int i = 0; i < selectorThreads; i++)
+            shards.add(new NioClientManager(parserExecutor));
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager shard : shards)
+            shard.startAndWait();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager shard : shards)
+            shard.stop();
+        for (NioClientManager shard : shards)
+            shard.stopAndWait();
+    }
+
+    @Override
+    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        int shard = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+        shards.get(shard).openConnection(serverAddress, parser);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager shard : shards)
+            count += shard.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Take them from the busiest selectors, to keep the others evenly loaded.
+        while (n-- > 0) {
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager shard : shards) {
+                int count = shard.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = shard;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+}
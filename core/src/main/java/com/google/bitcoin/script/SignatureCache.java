@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples were found to be valid, so the ECDSA
+ * verification done by OP_CHECKSIG and OP_CHECKMULTISIG can be skipped when the same input is checked again. The
+ * common case is a transaction that was verified when it was relayed to us and then again when it appears in a
+ * block.</p>
+ *
+ * <p>Only successful verifications are stored: a failure is cheap to reproduce for an attacker, so caching them would
+ * only let junk push out useful entries. The cache is bounded by number of entries and evicts the least recently
+ * used ones first. It is safe to use from multiple threads.</p>
+ *
+ * <p>{@link Script} consults the instance returned by {@link #get()}, which can be replaced or disabled (by setting
+ * null) with {@link #set(SignatureCache)}.</p>
+ */
+public class SignatureCache {
+    /** The number of entries the default cache holds, a few megabytes worth. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private static volatile SignatureCache instance = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache that holds at most maxEntries verified signatures. */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries > 0);
+        validSignatures = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /** Returns the cache used by script execution, or null if caching is disabled. */
+    @Nullable
+    public static SignatureCache get() {
+        return instance;
+    }
+
+    /** Replaces the cache used by script execution. Pass null to disable caching. */
+    public static void set(@Nullable SignatureCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * Verifies the signature against the given signature hash and public key, consulting the cache first.
+     *
+     * @param sigHash  Hash of the transaction data being signed, as returned by
+     *                 {@link com.google.bitcoin.core.Transaction#hashForSignature(int, byte[], byte)}.
+     * @param sig      The decoded signature.
+     * @param sigBytes The signature as it appeared in the script. Used only as part of the cache key.
+     * @param pubKey   The public key the signature should match.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature sig, byte[] sigBytes, byte[] pubKey) {
+        // Fake signatures are used in unit tests and must not leak into later runs with real ones.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), sig, pubKey);
+        Sha256Hash key = cacheKey(checkNotNull(sigHash), checkNotNull(sigBytes), checkNotNull(pubKey));
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), sig, pubKey);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    /** Returns how many verifications were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many verifications had to run ECDSA. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of verifications answered from the cache, or 0 if there were none yet. */
+    public double getHitRate() {
+        long h = hits.get(), m = misses.get();
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    /** Returns the approximate number of signatures currently cached. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all cached signatures and resets the hit/miss counters. */
+    public void clear() {
+        validSignatures.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SignatureCache: %d entries, %d hits, %d misses", size(), getHits(), getMisses());
+    }
+
+    // The signature and key are variable length, so hash everything down to a fixed size key. The signature is prefixed
+    // by its length to keep different splits of the same bytes apart (script pushes are at most 520 bytes).
+    private static Sha256Hash cacheKey(Sha256Hash sigHash, byte[] sigBytes, byte[] pubKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(sigHash.getBytes());
+            digest.update((byte) (sigBytes.length >> 8));
+            digest.update((byte) sigBytes.length);
+            digest.update(sigBytes);
+            digest.update(pubKey);
+            return new Sha256Hash(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A write-back cache that sits in front of another {@link FullPrunedBlockStore}, typically a
+ * {@link H2FullPrunedBlockStore}. Unspent outputs, blocks and chain heads written through it are kept in memory and
+ * only written to the backing store, in one backing batch, once they use more than the configured memory budget (or
+ * when {@link #flush()} or {@link #close()} is called). An output that is created and spent again before that point
+ * never reaches the backing store at all, which during the initial chain download is true of most of them. Outputs
+ * read from the backing store are remembered in a bounded LRU cache, so hot outpoints don't cost a query each
+ * time.</p>
+ *
+ * <p>Database batches are honoured: changes made between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} are only visible to the thread that made them and are dropped by
+ * {@link #abortDatabaseBatchWrite()}. Committed changes are visible to everyone straight away, but are only
+ * durable once flushed. After a crash the backing store is consistent, it just reflects an earlier verified chain head
+ * and the chain will download the missing blocks again.</p>
+ *
+ * <p>The backing store must not be used directly while wrapped. Only one thread may have a batch open at a time,
+ * which is what {@link FullPrunedBlockChain} does.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget for pending writes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    /** The default number of outputs read from the backing store that are remembered. */
+    public static final int DEFAULT_READ_CACHE_SIZE = 100000;
+
+    // Rough per object overheads (headers, boxed values, hash map entries) used to estimate memory usage.
+    private static final int OUTPUT_OVERHEAD = 200;
+    private static final int BLOCK_OVERHEAD = 300;
+
+    /** What we know about an outpoint that differs from, or was read from, the backing store. */
+    private static class CachedOutput {
+        final StoredTransactionOutput output;
+        final boolean spent;
+        // Whether the backing store currently holds this outpoint as unspent.
+        final boolean inBacking;
+        // Whether the backing store's copy must be replaced with output when flushing.
+        final boolean replaced;
+
+        CachedOutput(StoredTransactionOutput output, boolean spent, boolean inBacking, boolean replaced) {
+            this.output = output;
+            this.spent = spent;
+            this.inBacking = inBacking;
+            this.replaced = replaced;
+        }
+
+        @Nullable StoredTransactionOutput getUnspent() {
+            return spent ? null : output;
+        }
+
+        boolean needsWrite() {
+            return inBacking ? (spent || replaced) : !spent;
+        }
+
+        long size() {
+            return OUTPUT_OVERHEAD + output.getScriptBytes().length;
+        }
+    }
+
+    /** A block that was put but not yet written to the backing store. */
+    private static class CachedBlock {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoableBlock;
+
+        CachedBlock(StoredBlock block, @Nullable StoredUndoableBlock undoableBlock) {
+            this.block = block;
+            this.undoableBlock = undoableBlock;
+        }
+
+        long size() {
+            long size = BLOCK_OVERHEAD;
+            if (undoableBlock == null)
+                return size;
+            if (undoableBlock.getTxOutChanges() != null) {
+                TransactionOutputChanges changes = undoableBlock.getTxOutChanges();
+                for (StoredTransactionOutput out : changes.txOutsCreated)
+                    size += OUTPUT_OVERHEAD + out.getScriptBytes().length;
+                for (StoredTransactionOutput out : changes.txOutsSpent)
+                    size += OUTPUT_OVERHEAD + out.getScriptBytes().length;
+            } else {
+                // Parsed transactions take several times their serialized size.
+                for (Transaction tx : undoableBlock.getTransactions())
+                    size += tx.getMessageSize() * 3;
+            }
+            return size;
+        }
+    }
+
+    /** A set of changes on top of the backing store: either the open batch or everything committed but unflushed. */
+    private static class Layer {
+        final HashMap<StoredTransactionOutPoint, CachedOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, CachedOutput>();
+        // Kept in insertion order so blocks reach the backing store in the order they were connected.
+        final LinkedHashMap<Sha256Hash, CachedBlock> blocks = new LinkedHashMap<Sha256Hash, CachedBlock>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+        long bytes;
+
+        void putOutput(StoredTransactionOutPoint outPoint, CachedOutput entry) {
+            CachedOutput old = outputs.put(outPoint, entry);
+            if (old != null)
+                bytes -= old.size();
+            bytes += entry.size();
+        }
+
+        void removeOutput(StoredTransactionOutPoint outPoint) {
+            CachedOutput old = outputs.remove(outPoint);
+            if (old != null)
+                bytes -= old.size();
+        }
+
+        void putBlock(CachedBlock block) {
+            CachedBlock old = blocks.put(block.block.getHeader().getHash(), block);
+            if (old != null)
+                bytes -= old.size();
+            bytes += block.size();
+        }
+
+        /** Folds the given (newer) layer into this one, dropping outputs that were created and spent in between. */
+        void merge(Layer newer) {
+            for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : newer.outputs.entrySet()) {
+                if (entry.getValue().needsWrite())
+                    putOutput(entry.getKey(), entry.getValue());
+                else
+                    removeOutput(entry.getKey());
+            }
+            for (CachedBlock block : newer.blocks.values())
+                putBlock(block);
+            if (newer.chainHead != null)
+                chainHead = newer.chainHead;
+            if (newer.verifiedChainHead != null)
+                verifiedChainHead = newer.verifiedChainHead;
+        }
+
+        void clear() {
+            outputs.clear();
+            blocks.clear();
+            chainHead = null;
+            verifiedChainHead = null;
+            bytes = 0;
+        }
+    }
+
+    private final FullPrunedBlockStore backing;
+    private final long memoryBudget;
+
+    // All guarded by this.
+    private final Layer dirty = new Layer();
+    private final Layer batch = new Layer();
+    @Nullable private Thread batchThread;
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> readCache;
+    private long hits, misses, flushes, outputsElided;
+
+    /** Wraps the given store using {@link #DEFAULT_MEMORY_BUDGET} and {@link #DEFAULT_READ_CACHE_SIZE}. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing) {
+        this(backing, DEFAULT_MEMORY_BUDGET, DEFAULT_READ_CACHE_SIZE);
+    }
+
+    /**
+     * Wraps the given store.
+     *
+     * @param memoryBudget Approximate number of bytes of committed changes to hold before writing them out.
+     * @param readCacheSize Number of outputs read from the backing store to remember.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing, long memoryBudget, final int readCacheSize) {
+        checkArgument(memoryBudget > 0);
+        checkArgument(readCacheSize >= 0);
+        this.backing = checkNotNull(backing);
+        this.memoryBudget = memoryBudget;
+        this.readCache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> eldest) {
+                return size() > readCacheSize;
+            }
+        };
+    }
+
+    // The layer writes from the current thread go to.
+    private Layer writeLayer() {
+        return batchThread == Thread.currentThread() ? batch : dirty;
+    }
+
+    private boolean inBatch() {
+        return batchThread == Thread.currentThread();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Blocks and chain heads
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        writeLayer().putBlock(new CachedBlock(block, null));
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        writeLayer().putBlock(new CachedBlock(storedBlock, checkNotNull(undoableBlock)));
+    }
+
+    @Nullable
+    private CachedBlock getCachedBlock(Sha256Hash hash) {
+        CachedBlock block = inBatch() ? batch.blocks.get(hash) : null;
+        return block != null ? block : dirty.blocks.get(hash);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock block = getCachedBlock(hash);
+        return block != null ? block.block : backing.get(hash);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock block = getCachedBlock(hash);
+        if (block != null && block.undoableBlock != null)
+            return block.block;
+        return backing.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        CachedBlock block = getCachedBlock(hash);
+        if (block != null && block.undoableBlock != null)
+            return block.undoableBlock;
+        return backing.getUndoBlock(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (inBatch() && batch.chainHead != null)
+            return batch.chainHead;
+        return dirty.chainHead != null ? dirty.chainHead : backing.getChainHead();
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        writeLayer().chainHead = chainHead;
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        if (inBatch() && batch.verifiedChainHead != null)
+            return batch.verifiedChainHead;
+        return dirty.verifiedChainHead != null ? dirty.verifiedChainHead : backing.getVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Layer layer = writeLayer();
+        layer.verifiedChainHead = chainHead;
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            layer.chainHead = chainHead;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Unspent outputs
+
+    // Returns what the layers know about an outpoint, or null if the backing store has to be asked.
+    @Nullable
+    private CachedOutput getCachedOutput(StoredTransactionOutPoint outPoint) {
+        CachedOutput entry = inBatch() ? batch.outputs.get(outPoint) : null;
+        if (entry == null)
+            entry = dirty.outputs.get(outPoint);
+        if (entry == null) {
+            StoredTransactionOutput output = readCache.get(outPoint);
+            if (output != null)
+                entry = new CachedOutput(output, false, true, false);
+        }
+        return entry;
+    }
+
+    // Like getCachedOutput but falls back to the backing store, remembering what it found.
+    @Nullable
+    private CachedOutput lookupOutput(StoredTransactionOutPoint outPoint) throws BlockStoreException {
+        CachedOutput entry = getCachedOutput(outPoint);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        StoredTransactionOutput output = backing.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        if (output == null)
+            return null;
+        readCache.put(outPoint, output);
+        return new CachedOutput(output, false, true, false);
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        CachedOutput entry = lookupOutput(new StoredTransactionOutPoint(hash, index));
+        return entry == null ? null : entry.getUnspent();
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        // New outputs are normally unknown to the backing store, except when a re-org puts back one we spent.
+        CachedOutput previous = getCachedOutput(outPoint);
+        boolean inBacking = previous != null && previous.inBacking;
+        writeLayer().putOutput(outPoint, new CachedOutput(out, false, inBacking, inBacking));
+        readCache.remove(outPoint);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        CachedOutput previous = lookupOutput(outPoint);
+        if (previous == null || previous.spent)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput that is not in the store: " + out);
+        if (!previous.inBacking)
+            outputsElided++;
+        // If the output never reached the backing store this entry means "nothing to do" and is dropped on commit.
+        writeLayer().putOutput(outPoint, new CachedOutput(previous.output, true, previous.inBacking, false));
+        readCache.remove(outPoint);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean anyCached = false;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput entry = getCachedOutput(new StoredTransactionOutPoint(hash, i));
+            if (entry != null) {
+                if (!entry.spent)
+                    return true;
+                anyCached = true;
+            }
+        }
+        // One query usually settles it. Only if some outputs were spent in memory do we have to go one by one.
+        if (!backing.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!anyCached)
+            return true;
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Batches and flushing
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batchThread == Thread.currentThread())
+            return;  // Nested begins are treated as one.
+        if (batchThread != null)
+            throw new BlockStoreException("A database batch is already open on another thread");
+        batchThread = Thread.currentThread();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (batchThread != Thread.currentThread())
+            return;
+        dirty.merge(batch);
+        batch.clear();
+        batchThread = null;
+        if (dirty.bytes >= memoryBudget)
+            flush();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batchThread != Thread.currentThread())
+            return;
+        batch.clear();
+        batchThread = null;
+    }
+
+    /**
+     * Writes all committed changes to the backing store in a single batch of its own. Changes of a batch that is
+     * still open are not included.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (dirty.outputs.isEmpty() && dirty.blocks.isEmpty() && dirty.chainHead == null &&
+                dirty.verifiedChainHead == null)
+            return;
+        long now = System.currentTimeMillis();
+        int outputWrites = 0;
+        backing.beginDatabaseBatchWrite();
+        try {
+            for (CachedBlock block : dirty.blocks.values()) {
+                if (block.undoableBlock != null)
+                    backing.put(block.block, block.undoableBlock);
+                else
+                    backing.put(block.block);
+            }
+            for (CachedOutput entry : dirty.outputs.values()) {
+                // Removal only looks at the outpoint, so a replaced output can be removed using its replacement.
+                if (entry.inBacking && (entry.spent || entry.replaced)) {
+                    backing.removeUnspentTransactionOutput(entry.output);
+                    outputWrites++;
+                }
+                if (!entry.spent && (!entry.inBacking || entry.replaced)) {
+                    backing.addUnspentTransactionOutput(entry.output);
+                    outputWrites++;
+                }
+            }
+            if (dirty.chainHead != null)
+                backing.setChainHead(dirty.chainHead);
+            if (dirty.verifiedChainHead != null)
+                backing.setVerifiedChainHead(dirty.verifiedChainHead);
+            backing.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            backing.abortDatabaseBatchWrite();
+            throw e;
+        }
+        // Outputs that are now in the backing store are likely to be spent soon, so keep them around.
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : dirty.outputs.entrySet()) {
+            if (!entry.getValue().spent)
+                readCache.put(entry.getKey(), entry.getValue().output);
+        }
+        log.info("Flushed {} blocks and {} output changes in {}ms ({} outputs never had to be written)",
+                dirty.blocks.size(), outputWrites, System.currentTimeMillis() - now, outputsElided);
+        dirty.clear();
+        flushes++;
+    }
+
+    /** Flushes all committed changes and closes the backing store. */
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        backing.close();
+    }
+
+    /** Returns the approximate number of bytes used by committed changes that weren't flushed yet. */
+    public synchronized long getPendingBytes() {
+        return dirty.bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CachingFullPrunedBlockStore: %d output lookups answered from memory, %d from the " +
+                "backing store, %d flushes, %d outputs spent before reaching the backing store, %d bytes pending",
+                hits, misses, flushes, outputsElided, dirty.bytes);
+    }
+}
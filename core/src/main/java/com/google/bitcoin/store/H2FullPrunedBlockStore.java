@@ -27,6 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -39,7 +40,7 @@ import java.util.List;
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements FullPrunedBlockStore, HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
@@ -77,6 +78,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
+    static final String CREATE_BEST_CHAIN_TABLE = "CREATE TABLE bestChain ( "
+        + "height INT NOT NULL CONSTRAINT bestChain_pk PRIMARY KEY,"
+        + "hash BINARY(28) NOT NULL"
+        + ")";
+
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
         + "hash BINARY(32) NOT NULL,"
         + "index INT NOT NULL,"
@@ -176,6 +182,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
+            s.executeUpdate("DROP TABLE IF EXISTS bestChain");
             s.close();
             createTables();
             initFromDatabase();
@@ -201,6 +208,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         log.debug("H2FullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
 
+        log.debug("H2FullPrunedBlockStore : CREATE best chain table");
+        s.executeUpdate(CREATE_BEST_CHAIN_TABLE);
+
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
@@ -241,6 +251,39 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         {
             throw new BlockStoreException("corrupt H2 block store - verified head block not found");
         }
+
+        // Databases created before the height index existed get it filled in from the chain head.
+        if (!tableExists("bestChain")) {
+            s = conn.get().createStatement();
+            s.executeUpdate(CREATE_BEST_CHAIN_TABLE);
+            s.close();
+            buildBestChainTable();
+        }
+    }
+
+    private void buildBestChainTable() throws SQLException, BlockStoreException {
+        log.info("H2FullPrunedBlockStore : building best chain table from the chain head at {}", chainHeadBlock.getHeight());
+        PreparedStatement s = conn.get().prepareStatement("INSERT INTO bestChain(height, hash) VALUES(?, ?)");
+        conn.get().setAutoCommit(false);
+        try {
+            StoredBlock cursor = chainHeadBlock;
+            while (cursor != null) {
+                // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+                byte[] hashBytes = new byte[28];
+                System.arraycopy(cursor.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+                s.setInt(1, cursor.getHeight());
+                s.setBytes(2, hashBytes);
+                s.addBatch();
+                if (cursor.getHeight() % 1000 == 0)
+                    s.executeBatch();
+                cursor = cursor.getHeight() == 0 ? null : get(cursor.getHeader().getPrevBlockHash());
+            }
+            s.executeBatch();
+            conn.get().commit();
+        } finally {
+            conn.get().setAutoCommit(true);
+            s.close();
+        }
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -255,6 +298,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            indexBestChain(Collections.singletonList(storedGenesisHeader));
         } catch (VerificationException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -515,6 +559,73 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
         return get(hash, true);
     }
+
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement("SELECT headers.chainWork, headers.header FROM bestChain"
+                    + " JOIN headers ON bestChain.hash = headers.hash WHERE bestChain.height = ?");
+            s.setInt(1, height);
+            ResultSet results = s.executeQuery();
+            if (!results.next()) {
+                return null;
+            }
+            BigInteger chainWork = new BigInteger(results.getBytes(1));
+            Block b = new Block(params, results.getBytes(2));
+            b.verifyHeader();
+            return new StoredBlock(b, chainWork, height);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            // Should not be able to happen unless the database contains bad
+            // blocks.
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+    }
+
+    public void indexBestChain(List<StoredBlock> blocks) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement("DELETE FROM bestChain WHERE height >= ?");
+            s.setInt(1, blocks.get(0).getHeight());
+            s.executeUpdate();
+            s.close();
+            s = conn.get().prepareStatement("INSERT INTO bestChain(height, hash) VALUES(?, ?)");
+            for (StoredBlock block : blocks) {
+                // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+                byte[] hashBytes = new byte[28];
+                System.arraycopy(block.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+                s.setInt(1, block.getHeight());
+                s.setBytes(2, hashBytes);
+                s.addBatch();
+            }
+            s.executeBatch();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+    }
     
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A file holding the header of every block on the best chain, in order of height, from the first chain head it was
+ * given (normally the genesis block or the checkpoint the chain was started from) up to the current one. It is used
+ * by {@link SPVBlockStore} as a cold tier behind its ring buffer, so headers that dropped out of the ring can still
+ * be found, and so that the block at a given height can be looked up.</p>
+ *
+ * <p>Each header takes 128 bytes on disk and about 16 bytes of memory for the hash table that finds it. Re-orgs
+ * rewrite the affected heights. Methods are synchronized, as this is meant for the less frequent lookups that miss
+ * the ring.</p>
+ */
+public class HeaderArchive {
+    private static final Logger log = LoggerFactory.getLogger(HeaderArchive.class);
+
+    public static final String HEADER_MAGIC = "SPVA";
+
+    // File format:
+    //   4 header bytes = "SPVA"
+    //   4 bytes height of the first header, or -1 if there are none yet
+    //   8 bytes unused
+    //
+    // Followed by one record per height in the same format as the ring of SPVBlockStore (128 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    private static final int FILE_PROLOGUE_BYTES = 16;
+    private static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int DELETED = -1;
+
+    private final NetworkParameters params;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+
+    private int baseHeight;
+    private int count;
+    // The last 8 bytes of the hash of each header, by position, so probing doesn't have to touch the disk.
+    private long[] hashTails = new long[1024];
+    // Open addressing table from hash to position + 1, 0 for empty or DELETED.
+    private int[] index = new int[2048];
+    private int deletedEntries;
+
+    /** Opens the archive in the given file, creating it if it doesn't exist yet. */
+    public HeaderArchive(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            randomAccessFile = raf;
+            channel = raf.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Archive file is already locked by another process");
+            ByteBuffer prologue = ByteBuffer.allocate(FILE_PROLOGUE_BYTES);
+            if (raf.length() < FILE_PROLOGUE_BYTES) {
+                log.info("Creating new header archive " + file);
+                prologue.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                prologue.putInt(-1);
+                prologue.rewind();
+                channel.write(prologue, 0);
+                channel.truncate(FILE_PROLOGUE_BYTES);
+                baseHeight = -1;
+            } else {
+                channel.read(prologue, 0);
+                byte[] magic = new byte[4];
+                prologue.rewind();
+                prologue.get(magic);
+                if (!new String(magic, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                baseHeight = prologue.getInt();
+                load();
+            }
+        } catch (IOException e) {
+            closeQuietly(raf);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(raf);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile raf) {
+        try {
+            if (raf != null) raf.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file", e);
+        }
+    }
+
+    // Reads the hashes of all headers into memory, dropping a partially written record at the end.
+    private void load() throws IOException {
+        long records = (channel.size() - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        channel.truncate(FILE_PROLOGUE_BYTES + records * RECORD_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        long position = FILE_PROLOGUE_BYTES;
+        byte[] hash = new byte[32];
+        count = 0;
+        while (count < records) {
+            buffer.clear();
+            channel.read(buffer, position);
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                buffer.get(hash);
+                buffer.position(buffer.position() + RECORD_SIZE - 32);
+                addToIndex(count, new Sha256Hash(hash));
+                count++;
+            }
+            position += buffer.position();
+        }
+    }
+
+    private static long tail(byte[] hash) {
+        return ByteBuffer.wrap(hash, 24, 8).getLong();
+    }
+
+    // Called before count is bumped to include the new position.
+    private void addToIndex(int position, Sha256Hash hash) {
+        if (position >= hashTails.length)
+            hashTails = Arrays.copyOf(hashTails, hashTails.length * 2);
+        hashTails[position] = tail(hash.getBytes());
+        if ((count + deletedEntries + 1) * 2 > index.length) {
+            rebuildIndex(index.length * 2);
+        }
+        insert(index, position, hash.hashCode());
+    }
+
+    private static void insert(int[] index, int position, int hashCode) {
+        int mask = index.length - 1;
+        int i = hashCode & mask;
+        while (index[i] != 0 && index[i] != DELETED)
+            i = (i + 1) & mask;
+        index[i] = position + 1;
+    }
+
+    private void rebuildIndex(int capacity) {
+        int[] newIndex = new int[capacity];
+        for (int position = 0; position < count; position++)
+            insert(newIndex, position, (int) hashTails[position]);  // The hash code is the last 4 bytes.
+        index = newIndex;
+        deletedEntries = 0;
+    }
+
+    // Returns the position of the header with the given hash, or -1.
+    private int find(Sha256Hash hash) throws IOException {
+        long tail = tail(hash.getBytes());
+        int mask = index.length - 1;
+        for (int i = hash.hashCode() & mask; index[i] != 0; i = (i + 1) & mask) {
+            int position = index[i] - 1;
+            if (index[i] == DELETED || hashTails[position] != tail)
+                continue;
+            if (Arrays.equals(readHash(position), hash.getBytes()))
+                return position;
+        }
+        return -1;
+    }
+
+    private byte[] readHash(int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        channel.read(buffer, FILE_PROLOGUE_BYTES + (long) position * RECORD_SIZE);
+        return buffer.array();
+    }
+
+    private StoredBlock read(int position) throws IOException, BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        channel.read(buffer, FILE_PROLOGUE_BYTES + (long) position * RECORD_SIZE);
+        buffer.position(32);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);  // Corrupted archive.
+        }
+    }
+
+    /** Returns the archived header with the given hash, or null if it isn't on the archived part of the best chain. */
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        try {
+            int position = find(hash);
+            return position < 0 ? null : read(position);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the header of the best chain at the given height, or null if that height isn't archived. */
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (count == 0 || height < baseHeight || height >= baseHeight + count)
+            return null;
+        try {
+            return read(height - baseHeight);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the height of the first archived header, or -1 if the archive is empty. */
+    public synchronized int getBaseHeight() {
+        return count == 0 ? -1 : baseHeight;
+    }
+
+    /** Returns the height of the last archived header, or -1 if the archive is empty. */
+    public synchronized int getTipHeight() {
+        return count == 0 ? -1 : baseHeight + count - 1;
+    }
+
+    /**
+     * Makes the archive end at the given chain head. Headers between the head and the part of the archive it builds
+     * on are fetched from the given store, normally the one the archive belongs to. If they can't all be found the
+     * archive starts over at the oldest header that could.
+     */
+    public synchronized void setChainHead(StoredBlock head, BlockStore source) throws BlockStoreException {
+        try {
+            LinkedList<StoredBlock> toWrite = new LinkedList<StoredBlock>();
+            boolean restart = false;
+            StoredBlock cursor = head;
+            while (true) {
+                int height = cursor.getHeight();
+                if (count > 0 && height >= baseHeight && height < baseHeight + count &&
+                        Arrays.equals(readHash(height - baseHeight), cursor.getHeader().getHash().getBytes()))
+                    break;  // Connects to what we have.
+                toWrite.addFirst(cursor);
+                if (count == 0)
+                    break;
+                if (height <= baseHeight) {
+                    restart = true;
+                    break;
+                }
+                StoredBlock prev = source.get(cursor.getHeader().getPrevBlockHash());
+                if (prev == null) {
+                    log.warn("Could not find the headers between the archive and the chain head at {}, starting over",
+                            head.getHeight());
+                    restart = true;
+                    break;
+                }
+                cursor = prev;
+            }
+            if (count == 0 || restart) {
+                truncate(0);
+                setBaseHeight(toWrite.getFirst().getHeight());
+            } else {
+                truncate((toWrite.isEmpty() ? head.getHeight() + 1 : toWrite.getFirst().getHeight()) - baseHeight);
+            }
+            for (StoredBlock block : toWrite)
+                append(block);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void setBaseHeight(int height) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(height);
+        buffer.rewind();
+        channel.write(buffer, 4);
+        baseHeight = height;
+    }
+
+    private void append(StoredBlock block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        Sha256Hash hash = block.getHeader().getHash();
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+        buffer.rewind();
+        channel.write(buffer, FILE_PROLOGUE_BYTES + (long) count * RECORD_SIZE);
+        addToIndex(count, hash);
+        count++;
+    }
+
+    // Drops everything from the given position on.
+    private void truncate(int newCount) throws IOException {
+        if (newCount >= count)
+            return;
+        int mask = index.length - 1;
+        for (int position = newCount; position < count; position++) {
+            for (int i = ((int) hashTails[position]) & mask; index[i] != 0; i = (i + 1) & mask) {
+                if (index[i] == position + 1) {
+                    index[i] = DELETED;
+                    deletedEntries++;
+                    break;
+                }
+            }
+        }
+        count = newCount;
+        channel.truncate(FILE_PROLOGUE_BYTES + (long) count * RECORD_SIZE);
+        if (deletedEntries > index.length / 4)
+            rebuildIndex(index.length);
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        try {
+            channel.force(true);
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * <p>A {@link BlockStore} that can also find the blocks of the best chain by height, without following the previous
+ * block pointers back from the chain head.</p>
+ *
+ * <p>The index is kept up to date by {@link com.google.bitcoin.core.AbstractBlockChain} whenever it moves the chain
+ * head, including on re-orgs, so stores don't need to work out by themselves which chain is the best one.</p>
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block of the best chain at the given height, or null if there is no such block or the store doesn't
+     * know it (for instance because it is older than the headers the store keeps).
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+
+    /**
+     * Records the given blocks as being on the best chain at their heights, replacing whatever was there before, and
+     * forgets about all heights above the last of them. The blocks are contiguous and in ascending order of height,
+     * and there is always at least one.
+     */
+    void indexBestChain(List<StoredBlock> blocks) throws BlockStoreException;
+}
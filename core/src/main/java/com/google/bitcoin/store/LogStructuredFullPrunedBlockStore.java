@@ -0,0 +1,994 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in a directory of append-only, memory mapped segment files
+ * and finds things through hash tables held in memory. Writing a block is a sequence of appends followed by one
+ * fsync, and reading an output is a hash table lookup and a read from the mapping, so there is no SQL engine on the
+ * hot path at all.</p>
+ *
+ * <p>Changes made in a database batch are buffered in memory and only written at
+ * {@link #commitDatabaseBatchWrite()}, followed by a commit record and a force of the mapping. On open the log is
+ * replayed up to the last complete commit, so after a crash the store is exactly as it was at some earlier commit. An
+ * output that is created and spent within one batch is never written.</p>
+ *
+ * <p>Records that are superseded (spent outputs, undo blocks that are too deep to be needed, old chain heads) become
+ * garbage. Once less than half of the log is live a background thread copies the live records out of the oldest
+ * segment to the end of the log and deletes it. The index uses roughly 100 bytes of heap per unspent output.</p>
+ *
+ * <p>The directory is locked whilst the store is open, so it can only be used by one instance at a time.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    /** The default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** Compaction starts when less than this fraction of the log holds live records. */
+    public static final double MIN_LIVE_FRACTION = 0.5;
+
+    private static final String SEGMENT_MAGIC = "BJLS";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SEGMENT_HEADER_SIZE = 4;
+    // How much of a segment is copied per lock acquisition during compaction.
+    private static final int COMPACTION_CHUNK_BYTES = 1024 * 1024;
+
+    // Record format:
+    //   4 bytes length of the type and payload (big endian), 0 marks the end of the segment
+    //   1 byte type
+    //   payload
+    //   4 bytes CRC32 of the type and payload
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+
+    // Payload: a serialized StoredTransactionOutput.
+    private static final byte OUTPUT = 1;
+    // Payload: 32 bytes transaction hash, 4 bytes output index.
+    private static final byte SPENT = 2;
+    // Payload: 32 bytes hash, 1 byte wasUndoable flag, compact StoredBlock.
+    private static final byte BLOCK = 3;
+    // Payload: 32 bytes hash, 4 bytes height, 1 byte kind, TransactionOutputChanges or number and list of transactions.
+    private static final byte UNDO_BLOCK = 4;
+    // Payload: 32 bytes hash of the block.
+    private static final byte CHAIN_HEAD = 5;
+    private static final byte VERIFIED_CHAIN_HEAD = 6;
+    // Payload: 4 bytes number of records in the transaction. Makes the records since the previous commit take effect.
+    private static final byte COMMIT = 7;
+    // No payload. Discards the records since the previous commit.
+    private static final byte ABORT = 8;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        // Offset of the next record.
+        int end;
+        // Bytes of records the index still points to.
+        long liveBytes;
+        // Whether it was written to since the last force.
+        boolean dirty;
+
+        Segment(int id, File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class BlockEntry {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        BlockEntry(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    private static class UndoEntry {
+        final StoredUndoableBlock undoableBlock;
+        final int height;
+
+        UndoEntry(StoredUndoableBlock undoableBlock, int height) {
+            this.undoableBlock = undoableBlock;
+            this.height = height;
+        }
+    }
+
+    /** Changes that have not been written to the log yet. */
+    private static class Batch {
+        final HashMap<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();  // Null values mean spent.
+        final LinkedHashMap<Sha256Hash, BlockEntry> blocks = new LinkedHashMap<Sha256Hash, BlockEntry>();
+        final LinkedHashMap<Sha256Hash, UndoEntry> undoBlocks = new LinkedHashMap<Sha256Hash, UndoEntry>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentSize;
+    private final int fullStoreDepth;
+    private final ExecutorService compactionExecutor;
+
+    // Everything below is guarded by this.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final HashMap<StoredTransactionOutPoint, Long> outputIndex = new HashMap<StoredTransactionOutPoint, Long>();
+    private final HashMap<Sha256Hash, Long> blockIndex = new HashMap<Sha256Hash, Long>();
+    private final HashMap<Sha256Hash, Long> undoIndex = new HashMap<Sha256Hash, Long>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+    private long chainHeadLocation = -1, verifiedChainHeadLocation = -1;
+    @Nullable private StoredBlock chainHead, verifiedChainHead;
+
+    @Nullable private Batch batch;
+    @Nullable private Thread batchThread;
+    private boolean compactionScheduled;
+    // Offset in the oldest segment up to which live records were already copied.
+    private int compactionCursor = SEGMENT_HEADER_SIZE;
+    // Set if a failed write could not be cleaned up, after which writing would corrupt the store.
+    private boolean broken;
+    private boolean closed;
+
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    /**
+     * Opens the store in the given directory using {@link #DEFAULT_SEGMENT_SIZE}, creating it if it doesn't exist yet.
+     *
+     * @param fullStoreDepth The number of blocks from the verified chain head for which undo data is kept.
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't exist yet. New segment files are created with
+     * the given size, which bounds the size of the largest undo block that can be stored.
+     *
+     * @param fullStoreDepth The number of blocks from the verified chain head for which undo data is kept.
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                              int segmentSize) throws BlockStoreException {
+        checkArgument(segmentSize > 1024 * 1024, "Segments must be larger than a block");
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.segmentSize = segmentSize;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Block store compaction thread");
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        });
+        boolean success = false;
+        try {
+            open();
+            success = true;
+        } finally {
+            if (!success)
+                closeFiles();
+        }
+    }
+
+    private synchronized void open() throws BlockStoreException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (fileLock == null)
+            throw new BlockStoreException("Store directory is already locked by another process");
+
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.matches("[0-9]{8}\\" + SEGMENT_SUFFIX)) {
+                int id = Integer.parseInt(name.substring(0, 8));
+                segments.put(id, openSegment(id, file, false));
+            }
+        }
+        if (segments.isEmpty()) {
+            log.info("Creating new block store in {}", directory);
+            newSegment();
+            // Insert the genesis block.
+            try {
+                StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+                // The coinbase in the genesis block is not spendable
+                List<Transaction> genesisTransactions = Lists.newLinkedList();
+                StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+                Batch genesis = new Batch();
+                genesis.blocks.put(storedGenesisHeader.getHeader().getHash(), new BlockEntry(storedGenesisHeader, true));
+                genesis.undoBlocks.put(storedGenesisHeader.getHeader().getHash(), new UndoEntry(storedGenesis, 0));
+                genesis.chainHead = storedGenesisHeader;
+                genesis.verifiedChainHead = storedGenesisHeader;
+                write(genesis);
+            } catch (VerificationException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        } else {
+            recover();
+        }
+        if (chainHeadLocation < 0 || verifiedChainHeadLocation < 0)
+            throw new BlockStoreException("Corrupted block store: no chain head in " + directory);
+        log.info("Opened block store in {}: {} segments, {} unspent outputs, {} blocks", directory, segments.size(),
+                outputIndex.size(), blockIndex.size());
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Segment files and records
+
+    private Segment openSegment(int id, File file, boolean create) throws BlockStoreException {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (create)
+                randomAccessFile.setLength(segmentSize);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    randomAccessFile.length());
+            byte[] magic = SEGMENT_MAGIC.getBytes("US-ASCII");
+            if (create) {
+                buffer.put(magic);
+            } else {
+                byte[] header = new byte[SEGMENT_HEADER_SIZE];
+                buffer.get(header);
+                if (!Arrays.equals(header, magic))
+                    throw new BlockStoreException("Header bytes of " + file + " do not equal " + SEGMENT_MAGIC);
+            }
+            Segment segment = new Segment(id, file, randomAccessFile, buffer);
+            segment.end = SEGMENT_HEADER_SIZE;
+            return segment;
+        } catch (IOException e) {
+            closeQuietly(randomAccessFile);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(randomAccessFile);
+            throw e;
+        }
+    }
+
+    private Segment newSegment() throws BlockStoreException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment segment = openSegment(id, new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX)), true);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /** Appends a record to the active segment, starting a new one if it is full, and returns its location. */
+    private long append(byte type, byte[] payload) throws BlockStoreException {
+        int size = RECORD_OVERHEAD + payload.length;
+        if (SEGMENT_HEADER_SIZE + size > segmentSize)
+            throw new BlockStoreException("Record of " + size + " bytes does not fit into a segment");
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.end + size > segment.buffer.capacity())
+            segment = newSegment();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(segment.end);
+        buffer.putInt(1 + payload.length);
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.putInt((int) crc.getValue());
+        long location = location(segment.id, segment.end);
+        segment.end += size;
+        segment.dirty = true;
+        return location;
+    }
+
+    private void force() {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    private byte readType(long location) {
+        return segments.get(segmentId(location)).buffer.get(offset(location) + 4);
+    }
+
+    private int recordSize(long location) {
+        return segments.get(segmentId(location)).buffer.getInt(offset(location)) + RECORD_OVERHEAD - 1;
+    }
+
+    private byte[] readPayload(long location) {
+        ByteBuffer buffer = segments.get(segmentId(location)).buffer.duplicate();
+        int offset = offset(location);
+        byte[] payload = new byte[buffer.getInt(offset) - 1];
+        buffer.position(offset + 5);
+        buffer.get(payload);
+        return payload;
+    }
+
+    // Returns the location of the record following the valid one at the given offset, or -1 if there is none.
+    private static int nextRecord(ByteBuffer buffer, int offset) {
+        if (offset + RECORD_OVERHEAD > buffer.capacity())
+            return -1;
+        int length = buffer.getInt(offset);
+        if (length < 1 || offset + length + RECORD_OVERHEAD - 1 > buffer.capacity())
+            return -1;
+        byte[] data = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset + 4);
+        dup.get(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (dup.getInt() != (int) crc.getValue())
+            return -1;
+        return offset + length + RECORD_OVERHEAD - 1;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Encoding
+
+    private static byte[] encodeOutput(StoredTransactionOutput out) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(60 + out.getScriptBytes().length);
+            out.serializeToStream(bos);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static StoredTransactionOutput decodeOutput(byte[] payload) throws BlockStoreException {
+        try {
+            return new StoredTransactionOutput(new ByteArrayInputStream(payload));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);  // Corrupted store.
+        }
+    }
+
+    private static StoredTransactionOutPoint decodeOutPoint(byte[] payload, int offset) {
+        byte[] hash = new byte[32];
+        System.arraycopy(payload, offset, hash, 0, 32);
+        return new StoredTransactionOutPoint(new Sha256Hash(hash), Utils.readUint32(payload, offset + 32));
+    }
+
+    // The outpoint follows the value and the length prefixed script, see StoredTransactionOutput.serializeToStream.
+    private static StoredTransactionOutPoint decodeOutputKey(byte[] payload) {
+        int scriptLength = (int) Utils.readUint32(payload, 8);
+        return decodeOutPoint(payload, 12 + scriptLength);
+    }
+
+    private static byte[] encodeOutPoint(StoredTransactionOutPoint outPoint) {
+        byte[] payload = new byte[36];
+        System.arraycopy(outPoint.getHash().getBytes(), 0, payload, 0, 32);
+        Utils.uint32ToByteArrayLE(outPoint.getIndex(), payload, 32);
+        return payload;
+    }
+
+    private static Sha256Hash decodeHash(byte[] payload) {
+        byte[] hash = new byte[32];
+        System.arraycopy(payload, 0, hash, 0, 32);
+        return new Sha256Hash(hash);
+    }
+
+    private static byte[] encodeBlock(BlockEntry entry) {
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buffer.put(entry.block.getHeader().getHash().getBytes());
+        buffer.put((byte) (entry.wasUndoable ? 1 : 0));
+        entry.block.serializeCompact(buffer);
+        return buffer.array();
+    }
+
+    private StoredBlock decodeBlock(byte[] payload) throws BlockStoreException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            buffer.position(33);
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);  // Corrupted store.
+        }
+    }
+
+    private static byte[] encodeUndoBlock(UndoEntry entry) {
+        try {
+            StoredUndoableBlock undoableBlock = entry.undoableBlock;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(undoableBlock.getHash().getBytes());
+            Utils.uint32ToByteStreamLE(entry.height, bos);
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private StoredUndoableBlock decodeUndoBlock(byte[] payload) throws BlockStoreException {
+        Sha256Hash hash = decodeHash(payload);
+        try {
+            if (payload[36] == 0) {
+                ByteArrayInputStream bis = new ByteArrayInputStream(payload, 37, payload.length - 37);
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(bis));
+            }
+            int numTxn = (int) Utils.readUint32(payload, 37);
+            int offset = 41;
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, payload, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);  // Corrupted store.
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);  // Corrupted store.
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Writing batches and maintaining the index
+
+    /** Writes the batch to the log, forces it to disk and only then makes it visible through the index. */
+    private void write(Batch b) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        if (broken)
+            throw new BlockStoreException("An earlier write failed, the store must be re-opened");
+        List<Long> locations = new ArrayList<Long>();
+        try {
+            for (BlockEntry entry : b.blocks.values())
+                locations.add(append(BLOCK, encodeBlock(entry)));
+            for (UndoEntry entry : b.undoBlocks.values())
+                locations.add(append(UNDO_BLOCK, encodeUndoBlock(entry)));
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : b.outputs.entrySet()) {
+                if (entry.getValue() != null)
+                    locations.add(append(OUTPUT, encodeOutput(entry.getValue())));
+                else if (outputIndex.containsKey(entry.getKey()))
+                    locations.add(append(SPENT, encodeOutPoint(entry.getKey())));
+                // else it was created and spent in this batch, so there is nothing to write.
+            }
+            if (b.chainHead != null)
+                locations.add(append(CHAIN_HEAD, b.chainHead.getHeader().getHash().getBytes()));
+            if (b.verifiedChainHead != null)
+                locations.add(append(VERIFIED_CHAIN_HEAD, b.verifiedChainHead.getHeader().getHash().getBytes()));
+            byte[] count = new byte[4];
+            Utils.uint32ToByteArrayLE(locations.size(), count, 0);
+            append(COMMIT, count);
+            force();
+        } catch (BlockStoreException e) {
+            abortWrite();
+            throw e;
+        } catch (RuntimeException e) {
+            abortWrite();
+            throw e;
+        }
+        for (long location : locations)
+            apply(location);
+        prune();
+        maybeScheduleCompaction();
+    }
+
+    private void abortWrite() {
+        try {
+            append(ABORT, new byte[0]);
+        } catch (Exception e) {
+            log.error("Could not write abort record, store is unusable until re-opened", e);
+            broken = true;
+        }
+    }
+
+    /** Points the index at the record at the given location, which must be part of a committed transaction. */
+    private void apply(long location) throws BlockStoreException {
+        byte type = readType(location);
+        byte[] payload = readPayload(location);
+        switch (type) {
+            case OUTPUT:
+                release(outputIndex.put(decodeOutputKey(payload), location));
+                retain(location);
+                break;
+            case SPENT:
+                release(outputIndex.remove(decodeOutPoint(payload, 0)));
+                break;
+            case BLOCK:
+                release(blockIndex.put(decodeHash(payload), location));
+                retain(location);
+                break;
+            case UNDO_BLOCK:
+                Sha256Hash hash = decodeHash(payload);
+                int height = (int) Utils.readUint32(payload, 32);
+                release(undoIndex.put(hash, location));
+                retain(location);
+                Set<Sha256Hash> atHeight = undoHeights.get(height);
+                if (atHeight == null) {
+                    atHeight = new HashSet<Sha256Hash>();
+                    undoHeights.put(height, atHeight);
+                }
+                atHeight.add(hash);
+                break;
+            case CHAIN_HEAD:
+                release(chainHeadLocation < 0 ? null : chainHeadLocation);
+                chainHeadLocation = location;
+                chainHead = null;
+                retain(location);
+                break;
+            case VERIFIED_CHAIN_HEAD:
+                release(verifiedChainHeadLocation < 0 ? null : verifiedChainHeadLocation);
+                verifiedChainHeadLocation = location;
+                verifiedChainHead = null;
+                retain(location);
+                break;
+            default:
+                throw new BlockStoreException("Corrupted block store: unknown record type " + type);
+        }
+    }
+
+    private void retain(long location) {
+        segments.get(segmentId(location)).liveBytes += recordSize(location);
+    }
+
+    private void release(@Nullable Long location) {
+        if (location != null)
+            segments.get(segmentId(location)).liveBytes -= recordSize(location);
+    }
+
+    /** Forgets undo blocks that are too far below the verified chain head to be needed for a re-org. */
+    private void prune() throws BlockStoreException {
+        SortedMap<Integer, Set<Sha256Hash>> old = undoHeights.headMap(getCommittedVerifiedChainHead().getHeight() - fullStoreDepth + 1);
+        for (Set<Sha256Hash> hashes : old.values())
+            for (Sha256Hash hash : hashes)
+                release(undoIndex.remove(hash));
+        old.clear();
+    }
+
+    /** Replays the log up to the last complete commit and throws away anything after it. */
+    private void recover() throws BlockStoreException {
+        List<Long> pending = new ArrayList<Long>();
+        // Where the records after the last commit start.
+        long transactionStart = location(segments.firstKey(), SEGMENT_HEADER_SIZE);
+        // The first transaction may have started in a segment that was since compacted away, in which case its live
+        // records from there were copied to the end of the log and only the rest of it is left in front of the commit.
+        boolean first = true;
+        scan:
+        for (Segment segment : segments.values()) {
+            int offset = SEGMENT_HEADER_SIZE, next;
+            while ((next = nextRecord(segment.buffer, offset)) >= 0) {
+                long location = location(segment.id, offset);
+                byte type = readType(location);
+                if (type == COMMIT) {
+                    long count = Utils.readUint32(readPayload(location), 0);
+                    if (count != pending.size() && !(first && count > pending.size())) {
+                        log.warn("Incomplete transaction at the end of the log, discarding it");
+                        break scan;
+                    }
+                    for (long l : pending)
+                        apply(l);
+                    pending.clear();
+                    transactionStart = location(segment.id, next);
+                    first = false;
+                } else if (type == ABORT) {
+                    pending.clear();
+                    transactionStart = location(segment.id, next);
+                    first = false;
+                } else {
+                    pending.add(location);
+                }
+                offset = next;
+            }
+            segment.end = offset;
+        }
+        if (!pending.isEmpty())
+            log.warn("Discarding {} uncommitted records at the end of the log", pending.size());
+        truncate(transactionStart);
+        prune();
+    }
+
+    /** Removes everything from the given location to the end of the log, so new records directly follow it. */
+    private void truncate(long location) throws BlockStoreException {
+        Segment segment = segments.get(segmentId(location));
+        while (segments.lastKey() != segment.id) {
+            Segment last = segments.remove(segments.lastKey());
+            closeQuietly(last.randomAccessFile);
+            if (!last.file.delete())
+                throw new BlockStoreException("Could not delete " + last.file);
+        }
+        // Zero out the tail so half written records can never be mistaken for new ones later.
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset(location));
+        byte[] zeros = new byte[64 * 1024];
+        boolean wasZero = true;
+        while (buffer.hasRemaining()) {
+            int n = Math.min(zeros.length, buffer.remaining());
+            for (int i = buffer.position(); wasZero && i < buffer.position() + n; i++)
+                wasZero = buffer.get(i) == 0;
+            if (wasZero) {
+                buffer.position(buffer.position() + n);
+            } else {
+                buffer.put(zeros, 0, n);
+                segment.dirty = true;
+            }
+        }
+        segment.end = offset(location);
+        force();
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Compaction
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || closed || !needsCompaction())
+            return;
+        compactionScheduled = true;
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (compactStep()) ;
+                } catch (BlockStoreException e) {
+                    log.error("Compaction failed", e);
+                }
+            }
+        });
+    }
+
+    /** Compacts on the calling thread until no more segments need it, rather than leaving it to the background. */
+    @VisibleForTesting void compact() throws BlockStoreException {
+        while (compactStep()) ;
+    }
+
+    private boolean needsCompaction() {
+        if (segments.size() < 2)
+            return false;
+        long used = 0, live = 0;
+        for (Segment segment : segments.values()) {
+            used += segment.end - SEGMENT_HEADER_SIZE;
+            live += segment.liveBytes;
+        }
+        return live < used * MIN_LIVE_FRACTION;
+    }
+
+    /**
+     * Copies the next chunk of live records out of the oldest segment to the end of the log, and deletes the segment
+     * once it holds nothing live. Taking the oldest segment means its spent records can simply be dropped: the outputs
+     * they refer to were created in the same segment, if at all. Returns whether there is more to do.
+     */
+    private synchronized boolean compactStep() throws BlockStoreException {
+        if (closed || broken || (compactionCursor == SEGMENT_HEADER_SIZE && !needsCompaction())) {
+            compactionScheduled = false;
+            return false;
+        }
+        Segment oldest = segments.firstEntry().getValue();
+        int offset = compactionCursor;
+        List<Byte> types = new ArrayList<Byte>();
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        while (offset < oldest.end && offset - compactionCursor < COMPACTION_CHUNK_BYTES) {
+            long location = location(oldest.id, offset);
+            if (isLive(location)) {
+                types.add(readType(location));
+                payloads.add(readPayload(location));
+            }
+            offset += recordSize(location);
+        }
+        List<Long> locations = new ArrayList<Long>();
+        try {
+            for (int i = 0; i < types.size(); i++)
+                locations.add(append(types.get(i), payloads.get(i)));
+            byte[] count = new byte[4];
+            Utils.uint32ToByteArrayLE(locations.size(), count, 0);
+            append(COMMIT, count);
+            force();
+        } catch (BlockStoreException e) {
+            abortWrite();
+            throw e;
+        }
+        for (long location : locations)
+            apply(location);
+        compactionCursor = offset;
+        if (offset < oldest.end)
+            return true;
+        // Everything live was copied, so the index no longer refers to this segment.
+        segments.remove(oldest.id);
+        closeQuietly(oldest.randomAccessFile);
+        if (!oldest.file.delete())
+            log.warn("Could not delete compacted segment {}", oldest.file);
+        log.info("Compacted segment {}, {} segments left", oldest.file.getName(), segments.size());
+        compactionCursor = SEGMENT_HEADER_SIZE;
+        return true;
+    }
+
+    private boolean isLive(long location) {
+        Long l = location;
+        switch (readType(location)) {
+            case OUTPUT:
+                return l.equals(outputIndex.get(decodeOutputKey(readPayload(location))));
+            case BLOCK:
+                return l.equals(blockIndex.get(decodeHash(readPayload(location))));
+            case UNDO_BLOCK:
+                return l.equals(undoIndex.get(decodeHash(readPayload(location))));
+            case CHAIN_HEAD:
+                return location == chainHeadLocation;
+            case VERIFIED_CHAIN_HEAD:
+                return location == verifiedChainHeadLocation;
+            default:
+                return false;
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // FullPrunedBlockStore
+
+    private boolean inBatch() {
+        return batch != null && batchThread == Thread.currentThread();
+    }
+
+    // Returns the batch changes from the calling thread go to, or a fresh one if it has none open.
+    private Batch writeBatch() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        return inBatch() ? batch : new Batch();
+    }
+
+    // Writes out changes that were made outside of a database batch.
+    private void done(Batch b) throws BlockStoreException {
+        if (b != batch)
+            write(b);
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.blocks.put(block.getHeader().getHash(), new BlockEntry(block, false));
+        done(b);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Batch b = writeBatch();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        b.blocks.put(hash, new BlockEntry(storedBlock, true));
+        b.undoBlocks.put(hash, new UndoEntry(undoableBlock, storedBlock.getHeight()));
+        done(b);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        if (inBatch()) {
+            BlockEntry entry = batch.blocks.get(hash);
+            if (entry != null)
+                return wasUndoableOnly && !entry.wasUndoable ? null : entry.block;
+        }
+        Long location = blockIndex.get(hash);
+        if (location == null)
+            return null;
+        byte[] payload = readPayload(location);
+        if (wasUndoableOnly && payload[32] == 0)
+            return null;
+        return decodeBlock(payload);
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        if (inBatch()) {
+            UndoEntry entry = batch.undoBlocks.get(hash);
+            if (entry != null)
+                return entry.undoableBlock;
+        }
+        Long location = undoIndex.get(hash);
+        return location == null ? null : decodeUndoBlock(readPayload(location));
+    }
+
+    private StoredBlock readHead(long location) throws BlockStoreException {
+        Sha256Hash hash = decodeHash(readPayload(location));
+        Long blockLocation = blockIndex.get(hash);
+        if (blockLocation == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        return decodeBlock(readPayload(blockLocation));
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        if (inBatch() && batch.chainHead != null)
+            return batch.chainHead;
+        if (chainHead == null)
+            chainHead = readHead(chainHeadLocation);
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.chainHead = chainHead;
+        done(b);
+    }
+
+    private StoredBlock getCommittedVerifiedChainHead() throws BlockStoreException {
+        if (verifiedChainHead == null)
+            verifiedChainHead = readHead(verifiedChainHeadLocation);
+        return verifiedChainHead;
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        if (inBatch() && batch.verifiedChainHead != null)
+            return batch.verifiedChainHead;
+        return getCommittedVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.verifiedChainHead = chainHead;
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            b.chainHead = chainHead;
+        done(b);
+    }
+
+    private boolean hasOutput(StoredTransactionOutPoint outPoint) {
+        if (inBatch() && batch.outputs.containsKey(outPoint))
+            return batch.outputs.get(outPoint) != null;
+        return outputIndex.containsKey(outPoint);
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        if (inBatch() && batch.outputs.containsKey(outPoint))
+            return batch.outputs.get(outPoint);
+        Long location = outputIndex.get(outPoint);
+        return location == null ? null : decodeOutput(readPayload(location));
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.outputs.put(new StoredTransactionOutPoint(out), out);
+        done(b);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch b = writeBatch();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (!hasOutput(outPoint))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogStructuredFullPrunedBlockStore that it didn't have!");
+        b.outputs.put(outPoint, null);
+        done(b);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+        for (int i = 0; i < numOutputs; i++)
+            if (hasOutput(new StoredTransactionOutPoint(hash, i)))
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (inBatch())
+            return;
+        if (batch != null)
+            throw new BlockStoreException("A database batch is already open on another thread");
+        batch = new Batch();
+        batchThread = Thread.currentThread();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        Batch b = batch;
+        batch = null;
+        batchThread = null;
+        write(b);
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        batch = null;
+        batchThread = null;
+    }
+
+    public void close() throws BlockStoreException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            force();
+        }
+        closeFiles();
+    }
+
+    private synchronized void closeFiles() {
+        compactionExecutor.shutdownNow();
+        for (Segment segment : segments.values())
+            closeQuietly(segment.randomAccessFile);
+        try {
+            if (fileLock != null)
+                fileLock.release();
+        } catch (IOException e) {
+            log.warn("Failed to release lock", e);
+        }
+        closeQuietly(lockFile);
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        try {
+            if (file != null)
+                file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close file", e);
+        }
+    }
+}
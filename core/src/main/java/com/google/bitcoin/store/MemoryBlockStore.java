@@ -18,19 +18,26 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 
+import javax.annotation.Nullable;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Keeps {@link com.google.bitcoin.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
-public class MemoryBlockStore implements BlockStore {
+public class MemoryBlockStore implements HeightIndexedBlockStore {
+    private static final int MAX_BLOCKS = 5000;
+
     private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
-            return blockMap.size() > 5000;
+            return blockMap.size() > MAX_BLOCKS;
         }
     };
+    // Hashes of the best chain by height, no further back than the blocks we keep.
+    private TreeMap<Integer, Sha256Hash> heightIndex = new TreeMap<Integer, Sha256Hash>();
     private StoredBlock chainHead;
 
     public MemoryBlockStore(NetworkParameters params) {
@@ -40,6 +47,7 @@ public class MemoryBlockStore implements BlockStore {
             StoredBlock storedGenesis = new StoredBlock(genesisHeader, genesisHeader.getWork(), 0);
             put(storedGenesis);
             setChainHead(storedGenesis);
+            heightIndex.put(0, storedGenesis.getHeader().getHash());
         } catch (BlockStoreException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } catch (VerificationException e) {
@@ -58,6 +66,22 @@ public class MemoryBlockStore implements BlockStore {
         return blockMap.get(hash);
     }
 
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        Sha256Hash hash = heightIndex.get(height);
+        return hash == null ? null : blockMap.get(hash);
+    }
+
+    public synchronized void indexBestChain(List<StoredBlock> blocks) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        int top = blocks.get(blocks.size() - 1).getHeight();
+        heightIndex.tailMap(top, false).clear();
+        for (StoredBlock block : blocks)
+            heightIndex.put(block.getHeight(), block.getHeader().getHash());
+        heightIndex.headMap(top - MAX_BLOCKS).clear();
+    }
+
     public StoredBlock getChainHead() throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         return chainHead;
@@ -70,5 +94,6 @@ public class MemoryBlockStore implements BlockStore {
     
     public void close() {
         blockMap = null;
+        heightIndex = null;
     }
 }
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An open addressing hash table of unspent outputs that is kept outside of the Java heap, in direct byte buffers.
+ * Each output takes a fixed size slot holding the outpoint, value and height, with the script bytes in a separate
+ * arena. The common script templates are stored in compressed form. Linear probing with backward shift deletion is
+ * used, so removal leaves no tombstones behind.
+ * This class is not thread-safe.
+ */
+class OffHeapOutputTable {
+    // Slot layout:
+    //    0  32 bytes transaction hash
+    //   32   4 bytes output index
+    //   36   4 bytes height
+    //   40   8 bytes value
+    //   48   8 bytes location of the script data in the arena
+    //   56   1 byte state, 0 if the slot is empty
+    //   57   1 byte script template
+    //   58   4 bytes script data length
+    private static final int SLOT_SIZE = 64;
+    private static final int MAX_PAGE_BITS = 20;  // 64MB per page.
+    private static final int ARENA_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private static final byte SCRIPT_RAW = 0;
+    private static final byte SCRIPT_PAY_TO_ADDRESS = 1;     // Data is the 20 byte hash.
+    private static final byte SCRIPT_PAY_TO_SCRIPT_HASH = 2; // Data is the 20 byte hash.
+    private static final byte SCRIPT_PAY_TO_PUBKEY = 3;      // Data is the 33 or 65 byte key.
+
+    private ByteBuffer[] pages;
+    private int pageBits;
+    private long capacity, mask, size;
+
+    private ArrayList<ByteBuffer> arena = new ArrayList<ByteBuffer>();
+    private int arenaPosition;
+    private long arenaUsed, arenaLive;
+
+    OffHeapOutputTable(long expectedSize) {
+        long capacity = 1024;
+        while (capacity * MAX_LOAD < expectedSize)
+            capacity *= 2;
+        allocate(capacity);
+    }
+
+    private void allocate(long capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.pageBits = Math.min(MAX_PAGE_BITS, Long.numberOfTrailingZeros(capacity));
+        int numPages = (int) (capacity >>> pageBits);
+        pages = new ByteBuffer[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = ByteBuffer.allocateDirect(SLOT_SIZE << pageBits);
+        size = 0;
+    }
+
+    private ByteBuffer page(long slot) {
+        return pages[(int) (slot >>> pageBits)];
+    }
+
+    private int offset(long slot) {
+        return (int) (slot & ((1L << pageBits) - 1)) * SLOT_SIZE;
+    }
+
+    long size() {
+        return size;
+    }
+
+    private static long hash(long firstHashWord, long index) {
+        // The transaction hash is already random, this only needs to spread the outputs of one transaction.
+        long h = firstHashWord ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long home(long slot) {
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        return hash(page.getLong(offset), page.getInt(offset + 32) & 0xFFFFFFFFL) & mask;
+    }
+
+    private boolean used(long slot) {
+        return page(slot).get(offset(slot) + 56) != 0;
+    }
+
+    // Returns the slot holding the outpoint, or -(slot + 1) for the empty slot it would go into.
+    private long find(byte[] hash, long index) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long k0 = key.getLong(0), k1 = key.getLong(8), k2 = key.getLong(16), k3 = key.getLong(24);
+        long slot = hash(k0, index) & mask;
+        while (true) {
+            ByteBuffer page = page(slot);
+            int offset = offset(slot);
+            if (page.get(offset + 56) == 0)
+                return -(slot + 1);
+            if (page.getLong(offset) == k0 && page.getLong(offset + 8) == k1 && page.getLong(offset + 16) == k2 &&
+                    page.getLong(offset + 24) == k3 && (page.getInt(offset + 32) & 0xFFFFFFFFL) == index)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        return find(hash.getBytes(), index) >= 0;
+    }
+
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return null;
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        int height = page.getInt(offset + 36);
+        BigInteger value = BigInteger.valueOf(page.getLong(offset + 40));
+        byte[] script = decodeScript(page.get(offset + 57), readArena(page.getLong(offset + 48), page.getInt(offset + 58)));
+        // The stored height is already NONCOINBASE_HEIGHT for non coinbase outputs, so pass it through unchanged.
+        return new StoredTransactionOutput(hash, index, value, height, true, script);
+    }
+
+    void put(StoredTransactionOutput out) {
+        byte[] hash = out.getHash().getBytes();
+        long slot = find(hash, out.getIndex());
+        if (slot >= 0) {
+            freeArena(page(slot).getInt(offset(slot) + 58));
+        } else {
+            if (size + 1 > capacity * MAX_LOAD) {
+                grow();
+                slot = find(hash, out.getIndex());
+            }
+            slot = -(slot + 1);
+            size++;
+        }
+        byte[] script = out.getScriptBytes();
+        byte template = scriptTemplate(script);
+        byte[] data = encodeScript(template, script);
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        ByteBuffer slotBuffer = page.duplicate();
+        slotBuffer.position(offset);
+        slotBuffer.put(hash);
+        slotBuffer.putInt((int) out.getIndex());
+        slotBuffer.putInt(out.getHeight());
+        slotBuffer.putLong(out.getValue().longValue());
+        slotBuffer.putLong(writeArena(data));
+        slotBuffer.put((byte) 1);
+        slotBuffer.put(template);
+        slotBuffer.putInt(data.length);
+    }
+
+    boolean remove(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), index);
+        if (slot < 0)
+            return false;
+        freeArena(page(slot).getInt(offset(slot) + 58));
+        // Backward shift deletion: move later entries of the probe sequence into the gap, so lookups never have to
+        // step over deleted slots.
+        long gap = slot, next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!used(next))
+                break;
+            long home = home(next);
+            boolean stays = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (stays)
+                continue;
+            copySlot(next, gap);
+            gap = next;
+        }
+        page(gap).put(offset(gap) + 56, (byte) 0);
+        size--;
+        maybeCompactArena();
+        return true;
+    }
+
+    private void copySlot(long from, long to) {
+        ByteBuffer source = page(from).duplicate();
+        source.position(offset(from));
+        source.limit(offset(from) + SLOT_SIZE);
+        ByteBuffer target = page(to).duplicate();
+        target.position(offset(to));
+        target.put(source);
+    }
+
+    private void grow() {
+        ByteBuffer[] oldPages = pages;
+        long oldCapacity = capacity;
+        int oldPageBits = pageBits;
+        allocate(capacity * 2);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer page = oldPages[(int) (slot >>> oldPageBits)];
+            int offset = (int) (slot & ((1L << oldPageBits) - 1)) * SLOT_SIZE;
+            if (page.get(offset + 56) == 0)
+                continue;
+            long target = hash(page.getLong(offset), page.getInt(offset + 32) & 0xFFFFFFFFL) & mask;
+            while (used(target))
+                target = (target + 1) & mask;
+            ByteBuffer source = page.duplicate();
+            source.position(offset);
+            source.limit(offset + SLOT_SIZE);
+            ByteBuffer dest = page(target).duplicate();
+            dest.position(offset(target));
+            dest.put(source);
+            size++;
+        }
+    }
+
+    private long writeArena(byte[] data) {
+        if (data.length == 0)
+            return 0;
+        if (arena.isEmpty() || arenaPosition + data.length > ARENA_CHUNK_SIZE) {
+            if (!arena.isEmpty())
+                arenaUsed += ARENA_CHUNK_SIZE - arenaPosition;  // The unused tail of the previous chunk is lost.
+            arena.add(ByteBuffer.allocateDirect(ARENA_CHUNK_SIZE));
+            arenaPosition = 0;
+        }
+        ByteBuffer chunk = arena.get(arena.size() - 1).duplicate();
+        chunk.position(arenaPosition);
+        chunk.put(data);
+        long location = ((long) (arena.size() - 1) << 32) | arenaPosition;
+        arenaPosition += data.length;
+        arenaUsed += data.length;
+        arenaLive += data.length;
+        return location;
+    }
+
+    private byte[] readArena(long location, int length) {
+        byte[] data = new byte[length];
+        if (length > 0) {
+            ByteBuffer chunk = arena.get((int) (location >>> 32)).duplicate();
+            chunk.position((int) location);
+            chunk.get(data);
+        }
+        return data;
+    }
+
+    private void freeArena(int length) {
+        arenaLive -= length;
+    }
+
+    /** Copies the live script data into fresh chunks once most of the arena is garbage. */
+    private void maybeCompactArena() {
+        long garbage = arenaUsed - arenaLive;
+        if (garbage < 4L * ARENA_CHUNK_SIZE || garbage < arenaLive)
+            return;
+        ArrayList<ByteBuffer> oldArena = arena;
+        arena = new ArrayList<ByteBuffer>();
+        arenaPosition = 0;
+        arenaUsed = arenaLive = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer page = page(slot);
+            int offset = offset(slot);
+            int length = page.getInt(offset + 58);
+            if (page.get(offset + 56) == 0 || length == 0)
+                continue;
+            long location = page.getLong(offset + 48);
+            ByteBuffer chunk = oldArena.get((int) (location >>> 32)).duplicate();
+            chunk.position((int) location);
+            byte[] data = new byte[length];
+            chunk.get(data);
+            page.putLong(offset + 48, writeArena(data));
+        }
+    }
+
+    private static byte scriptTemplate(byte[] script) {
+        int op = script.length > 0 ? script[0] & 0xFF : -1;
+        if (script.length == 25 && op == 0x76 && script[1] == (byte) 0xa9 && script[2] == 20 &&
+                script[23] == (byte) 0x88 && script[24] == (byte) 0xac)
+            return SCRIPT_PAY_TO_ADDRESS;
+        if (script.length == 23 && op == 0xa9 && script[1] == 20 && script[22] == (byte) 0x87)
+            return SCRIPT_PAY_TO_SCRIPT_HASH;
+        if ((script.length == 35 && op == 33 || script.length == 67 && op == 65) &&
+                script[script.length - 1] == (byte) 0xac)
+            return SCRIPT_PAY_TO_PUBKEY;
+        return SCRIPT_RAW;
+    }
+
+    private static byte[] encodeScript(byte template, byte[] script) {
+        switch (template) {
+            case SCRIPT_PAY_TO_ADDRESS:
+                return Arrays.copyOfRange(script, 3, 23);
+            case SCRIPT_PAY_TO_SCRIPT_HASH:
+                return Arrays.copyOfRange(script, 2, 22);
+            case SCRIPT_PAY_TO_PUBKEY:
+                return Arrays.copyOfRange(script, 1, script.length - 1);
+            default:
+                return script;
+        }
+    }
+
+    private static byte[] decodeScript(byte template, byte[] data) {
+        byte[] script;
+        switch (template) {
+            case SCRIPT_PAY_TO_ADDRESS:
+                script = new byte[25];
+                script[0] = 0x76;
+                script[1] = (byte) 0xa9;
+                script[2] = 20;
+                System.arraycopy(data, 0, script, 3, 20);
+                script[23] = (byte) 0x88;
+                script[24] = (byte) 0xac;
+                return script;
+            case SCRIPT_PAY_TO_SCRIPT_HASH:
+                script = new byte[23];
+                script[0] = (byte) 0xa9;
+                script[1] = 20;
+                System.arraycopy(data, 0, script, 2, 20);
+                script[22] = (byte) 0x87;
+                return script;
+            case SCRIPT_PAY_TO_PUBKEY:
+                script = new byte[data.length + 2];
+                script[0] = (byte) data.length;
+                System.arraycopy(data, 0, script, 1, data.length);
+                script[script.length - 1] = (byte) 0xac;
+                return script;
+            default:
+                return data;
+        }
+    }
+}
+
+/**
+ * An {@link OffHeapOutputTable} that is DB transaction-aware in the same way as {@link TransactionalHashMap}: changes
+ * made by a thread inside a batch are kept on the heap, visible only to that thread, until the batch is committed.
+ * This class is not thread-safe.
+ */
+class TransactionalOutputTable {
+    private final OffHeapOutputTable table;
+    // Null values mark outputs removed in the batch.
+    private final ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>> tempMap =
+            new ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>>();
+
+    TransactionalOutputTable(long expectedSize) {
+        table = new OffHeapOutputTable(expectedSize);
+    }
+
+    public void beginDatabaseBatchWrite() {
+        if (tempMap.get() == null)
+            tempMap.set(new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>());
+    }
+
+    public void commitDatabaseBatchWrite() {
+        HashMap<StoredTransactionOutPoint, StoredTransactionOutput> changes = tempMap.get();
+        if (changes != null) {
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : changes.entrySet()) {
+                if (entry.getValue() == null)
+                    table.remove(entry.getKey().getHash(), entry.getKey().getIndex());
+                else
+                    table.put(entry.getValue());
+            }
+        }
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        tempMap.remove();
+    }
+
+    @Nullable
+    public StoredTransactionOutput get(Sha256Hash hash, long index) {
+        HashMap<StoredTransactionOutPoint, StoredTransactionOutput> changes = tempMap.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            if (changes.containsKey(outPoint))
+                return changes.get(outPoint);
+        }
+        return table.get(hash, index);
+    }
+
+    public boolean contains(Sha256Hash hash, long index) {
+        HashMap<StoredTransactionOutPoint, StoredTransactionOutput> changes = tempMap.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            if (changes.containsKey(outPoint))
+                return changes.get(outPoint) != null;
+        }
+        return table.contains(hash, index);
+    }
+
+    public void put(StoredTransactionOutput out) {
+        HashMap<StoredTransactionOutPoint, StoredTransactionOutput> changes = tempMap.get();
+        if (changes != null)
+            changes.put(new StoredTransactionOutPoint(out), out);
+        else
+            table.put(out);
+    }
+
+    /** Removes the output and returns whether it was there. */
+    public boolean remove(Sha256Hash hash, long index) {
+        HashMap<StoredTransactionOutPoint, StoredTransactionOutput> changes = tempMap.get();
+        if (changes == null)
+            return table.remove(hash, index);
+        if (!contains(hash, index))
+            return false;
+        changes.put(new StoredTransactionOutPoint(hash, index), null);
+        return true;
+    }
+
+    public long size() {
+        return table.size();
+    }
+}
+
+/**
+ * Keeps {@link StoredBlock}s and {@link StoredUndoableBlock}s in memory like {@link MemoryFullPrunedBlockStore}, but
+ * stores the unspent outputs in an open addressing hash table outside of the Java heap. An output takes 64 bytes
+ * plus its script, with pay to address, pay to script hash and pay to pubkey scripts reduced to the hash or key, and
+ * the garbage collector never has to look at them. Useful for load testing on regtest-like networks with tens of
+ * millions of outputs; for anything that has to survive a restart use a persistent store.
+ */
+public class OffHeapFullPrunedBlockStore implements FullPrunedBlockStore {
+    /** The number of outputs space is reserved for up front by {@link #OffHeapFullPrunedBlockStore(NetworkParameters, int)}. */
+    public static final long DEFAULT_EXPECTED_OUTPUTS = 1000000;
+
+    private TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag> blockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    private TransactionalOutputTable transactionOutputTable;
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private int fullStoreDepth;
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, DEFAULT_EXPECTED_OUTPUTS);
+    }
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param expectedOutputs The number of unspent outputs to size the table for, it grows as needed
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, long expectedOutputs) {
+        checkArgument(expectedOutputs >= 0);
+        blockMap = new TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        transactionOutputTable = new TransactionalOutputTable(expectedOutputs);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        // Insert the genesis block.
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = block.getHeader().getHash();
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "OffHeapFullPrunedBlockStore is closed");
+        return fullBlockMap.get(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Potential leak here if not all blocks get setChainHead'd
+        // Though the FullPrunedBlockStore allows for this, the current AbstractBlockChain will not do it.
+        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    public synchronized void close() {
+        blockMap = null;
+        fullBlockMap = null;
+        // The direct buffers are freed once the table is garbage collected.
+        transactionOutputTable = null;
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputTable, "OffHeapFullPrunedBlockStore is closed");
+        return transactionOutputTable.get(hash, index);
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputTable, "OffHeapFullPrunedBlockStore is closed");
+        transactionOutputTable.put(out);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputTable, "OffHeapFullPrunedBlockStore is closed");
+        if (!transactionOutputTable.remove(out.getHash(), out.getIndex()))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from OffHeapFullPrunedBlockStore that it didn't have!");
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.beginDatabaseBatchWrite();
+        fullBlockMap.BeginTransaction();
+        transactionOutputTable.beginDatabaseBatchWrite();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.commitDatabaseBatchWrite();
+        fullBlockMap.CommitTransaction();
+        transactionOutputTable.commitDatabaseBatchWrite();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.abortDatabaseBatchWrite();
+        fullBlockMap.AbortTransaction();
+        transactionOutputTable.abortDatabaseBatchWrite();
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputTable, "OffHeapFullPrunedBlockStore is closed");
+        for (int i = 0; i < numOutputs; i++)
+            if (transactionOutputTable.contains(hash, i))
+                return true;
+        return false;
+    }
+
+    /** Returns the number of unspent outputs, not counting changes of batches that are still open. */
+    public synchronized long getUnspentOutputCount() {
+        Preconditions.checkNotNull(transactionOutputTable, "OffHeapFullPrunedBlockStore is closed");
+        return transactionOutputTable.size();
+    }
+}
@@ -30,8 +30,9 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -42,8 +43,15 @@ import static com.google.common.base.Preconditions.checkState;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>The size of the ring buffer can be chosen when the store is created and grown later with {@link #resize(int)}.
+ * Optionally, every header of the best chain can also be kept in a {@link HeaderArchive}, which is consulted for
+ * headers that have dropped out of the ring.</p>
+ *
+ * <p>Reads ({@link #get(Sha256Hash)} and {@link #getChainHead()}) don't take any lock, so they can be done from many
+ * threads without slowing down the thread that is downloading the chain.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -56,56 +64,70 @@ public class SPVBlockStore implements BlockStore {
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
-    // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
-    // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
-    //
-    // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
-    // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
-    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
+    // Headers are found through an open addressing table from hash to ring slot, which is built when the store is
+    // opened and kept up to date by put(). Entries are the slot + 1, 0 for empty or DELETED for a header that was
+    // overwritten. The table is only modified with the lock held, and replaced as a whole (through the volatile field)
+    // when it gets rebuilt, so get() can use it without locking: at worst it sees an entry that is out of date, and it
+    // always checks the hash in the slot anyway.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // A reader can race with put() overwriting the very slot it is reading, once the ring wraps around. put() makes the
+    // version of a slot odd whilst writing it, so readers can notice and ignore what they read.
+    private static final int DELETED = -1;
+    private volatile int[] hashIndex;
+    private int deletedIndexEntries;
+    private volatile AtomicIntegerArray slotVersions;
+
+    // Hashes of the best chain by height modulo the ring size, set through indexBestChain() and rebuilt from the chain
+    // head when the store is opened. An entry may be for a different height than the one asked for, which is noticed
+    // when the header is looked up.
+    private volatile AtomicReferenceArray<Sha256Hash> heightHashes;
+    private int indexedTopHeight;
+
+    // Returned by findRecord() when it raced with a writer.
+    private static final byte[] BUSY = new byte[0];
+
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    @Nullable private HeaderArchive archive;
+
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS, null);
+    }
+
+    /**
+     * Creates and initializes an SPV block store with room for numHeaders headers in its ring buffer. Will create the
+     * given file if it's missing. If the file already exists and holds fewer headers, it is grown to the requested size;
+     * if it holds more, it is left as it is.
+     *
+     * @param archiveFile if not null, every header of the best chain is also stored in a {@link HeaderArchive} in this
+     *                    file, so that headers older than the ring buffer can still be looked up.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders, @Nullable File archiveFile)
+            throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
-            long fileSize = getFileSize();
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
-                randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
-                throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
+                randomAccessFile.setLength(getFileSize());
+            } else {
+                long length = randomAccessFile.length();
+                if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+                    throw new BlockStoreException("File size on disk does not match the store format: " + length);
+                this.numHeaders = (int) ((length - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
             }
+            long fileSize = getFileSize();
 
             FileChannel channel = randomAccessFile.getChannel();
             fileLock = channel.tryLock();
@@ -121,18 +143,45 @@ public class SPVBlockStore implements BlockStore {
 
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             byte[] header;
+            slotVersions = new AtomicIntegerArray(this.numHeaders);
             if (exists) {
                 header = new byte[4];
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                lock.lock();
+                try {
+                    rebuildIndex();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                hashIndex = new int[indexCapacity()];
+            }
+            if (archiveFile != null)
+                archive = new HeaderArchive(params, archiveFile);
+            if (exists) {
+                if (numHeaders > this.numHeaders)
+                    resize(numHeaders);
+                else if (numHeaders < this.numHeaders)
+                    log.info("Store holds {} headers, more than the {} requested", this.numHeaders, numHeaders);
+                // Catch up an archive that is new, or was not written to the last time the store was used.
+                if (archive != null)
+                    archive.setChainHead(getChainHead(), this);
             } else {
                 initNewStore(params);
             }
+            lock.lock();
+            try {
+                rebuildHeightIndex();
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
             try {
+                if (archive != null) archive.close();
                 if (randomAccessFile != null) randomAccessFile.close();
-            } catch (IOException e2) {
+            } catch (Exception e2) {
                 throw new BlockStoreException(e2);
             }
             throw new BlockStoreException(e);
@@ -161,24 +210,107 @@ public class SPVBlockStore implements BlockStore {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    /** Returns how many headers the ring buffer can hold. */
+    public int getNumHeaders() {
+        lock.lock();
+        try {
+            return numHeaders;
+        } finally { lock.unlock(); }
+    }
+
+    /** Returns the archive holding the older headers of the best chain, or null if the store doesn't keep one. */
+    @Nullable
+    public HeaderArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Grows the ring buffer so it can hold newNumHeaders headers, keeping all the headers it holds now. The file is
+     * extended and mapped again, and readers wait for the lock whilst the headers are moved around.
+     */
+    public void resize(int newNumHeaders) throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer oldBuffer = this.buffer;
+            if (oldBuffer == null) throw new BlockStoreException("Store closed");
+            checkArgument(newNumHeaders >= numHeaders, "The ring buffer can only grow: %s < %s", newNumHeaders,
+                    numHeaders);
+            checkArgument(newNumHeaders <= (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE, "Too many headers");
+            if (newNumHeaders == numHeaders)
+                return;
+            final int oldNumHeaders = numHeaders;
+            // Make readers that are looking at the old mapping give up and come back for the lock.
+            AtomicIntegerArray oldVersions = slotVersions;
+            for (int i = 0; i < oldNumHeaders; i++)
+                oldVersions.incrementAndGet(i);
+            oldBuffer.force();
+            int newFileSize = RECORD_SIZE * newNumHeaders + FILE_PROLOGUE_BYTES;
+            randomAccessFile.setLength(newFileSize);
+            MappedByteBuffer newBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    newFileSize);
+            int cursor = getRingCursor(newBuffer);
+            int cursorSlot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            if (cursorSlot < oldNumHeaders && readHash(newBuffer, cursorSlot) != null) {
+                // The ring has wrapped around, so the oldest headers are those from the cursor to the old end of the
+                // file. Move them to the new end, so the free space comes right after the newest header and they are
+                // still the first to be overwritten.
+                int length = (oldNumHeaders - cursorSlot) * RECORD_SIZE;
+                int to = newFileSize - length;
+                byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+                // The regions can overlap and we are moving up, so copy from the end.
+                for (int end = length; end > 0; ) {
+                    int n = Math.min(chunk.length, end);
+                    end -= n;
+                    newBuffer.position(cursor + end);
+                    newBuffer.get(chunk, 0, n);
+                    newBuffer.position(to + end);
+                    newBuffer.put(chunk, 0, n);
+                }
+                Arrays.fill(chunk, (byte) 0);
+                for (int start = cursor; start < to; ) {
+                    int n = Math.min(chunk.length, to - start);
+                    newBuffer.position(start);
+                    newBuffer.put(chunk, 0, n);
+                    start += n;
+                }
+            }
+            numHeaders = newNumHeaders;
+            slotVersions = new AtomicIntegerArray(newNumHeaders);
+            buffer = newBuffer;
+            rebuildIndex();
+            rebuildHeightIndex();
+            log.info("Resized block store from {} to {} headers", oldNumHeaders, newNumHeaders);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
     public void put(StoredBlock block) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        if (this.buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
         try {
+            // Read under the lock, resize() may have replaced the mapping while we were waiting for it.
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // Forget about the header we are going to overwrite.
+            Sha256Hash overwritten = readHash(buffer, slot);
+            if (overwritten != null)
+                removeFromIndex(overwritten, slot);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            slotVersions.incrementAndGet(slot);
+            buffer.position(cursor);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
+            slotVersions.incrementAndGet(slot);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
+            addToIndex(hashIndex, hash, slot);
         } finally { lock.unlock(); }
     }
 
@@ -187,53 +319,199 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+        final int[] index = hashIndex;
+        final AtomicIntegerArray versions = slotVersions;
+        byte[] record = findRecord(buffer, index, versions, hash);
+        if (record == BUSY || (record == null &&
+                (buffer != this.buffer || index != hashIndex || versions != slotVersions))) {
+            // We raced with put() or resize(), so look again with the lock held.
+            lock.lock();
+            try {
+                if (this.buffer == null) throw new BlockStoreException("Store closed");
+                record = findRecord(this.buffer, hashIndex, slotVersions, hash);
+            } finally { lock.unlock(); }
+        }
+        if (record != null) {
+            try {
+                return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(record, 32, RECORD_SIZE - 32));
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+        return archive != null ? archive.get(hash) : null;
+    }
+
+    // Returns the record of the header with the given hash, null if it isn't in the ring, or BUSY if a writer got in
+    // the way.
+    @Nullable
+    private static byte[] findRecord(ByteBuffer buffer, int[] index, AtomicIntegerArray versions, Sha256Hash hash) {
+        final byte[] targetHashBytes = hash.getBytes();
+        final int mask = index.length - 1;
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer reader = buffer.duplicate();
+        int i = hash.hashCode() & mask;
+        for (int probes = 0; probes < index.length; probes++, i = (i + 1) & mask) {
+            int entry = index[i];
+            if (entry == 0)
                 return null;
+            if (entry == DELETED)
+                continue;
+            int slot = entry - 1;
+            int offset = FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+            if (slot >= versions.length() || offset + RECORD_SIZE > reader.limit())
+                return BUSY;  // The index is newer than the mapping or versions we picked up.
+            int version = versions.get(slot);
+            if ((version & 1) != 0)
+                return BUSY;
+            reader.position(offset);
+            reader.get(record);
+            if (versions.get(slot) != version)
+                return BUSY;
+            if (equalsHash(record, targetHashBytes))
+                return record;
+        }
+        return null;
+    }
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+    private static boolean equalsHash(byte[] record, byte[] hash) {
+        for (int i = 0; i < 32; i++)
+            if (record[i] != hash[i])
+                return false;
+        return true;
+    }
+
+    // Returns the hash of the header in the given slot, or null if the slot was never written.
+    @Nullable
+    private Sha256Hash readHash(ByteBuffer buffer, int slot) {
+        byte[] bytes = new byte[32];
+        ByteBuffer reader = buffer.duplicate();
+        reader.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+        reader.get(bytes);
+        for (byte b : bytes)
+            if (b != 0)
+                return new Sha256Hash(bytes);
+        return null;
+    }
+
+    private int indexCapacity() {
+        // A power of two of at least twice the number of headers, so probe sequences stay short.
+        return Integer.highestOneBit(Math.max(numHeaders, 8) * 2) * 2;
+    }
+
+    private void addToIndex(int[] index, Sha256Hash hash, int slot) {
+        checkState(lock.isHeldByCurrentThread());
+        int mask = index.length - 1;
+        int free = -1;
+        for (int i = hash.hashCode() & mask; ; i = (i + 1) & mask) {
+            int entry = index[i];
+            if (entry == 0) {
+                if (free < 0)
+                    free = i;
+                break;
+            }
+            if (entry == DELETED) {
+                if (free < 0)
+                    free = i;
+            } else if (hash.equals(readHash(buffer, entry - 1))) {
+                // The same header was stored again, point to the newer copy.
+                index[i] = slot + 1;
+                return;
+            }
+        }
+        if (index[free] == DELETED)
+            deletedIndexEntries--;
+        index[free] = slot + 1;
+    }
+
+    private void removeFromIndex(Sha256Hash hash, int slot) {
+        checkState(lock.isHeldByCurrentThread());
+        int[] index = hashIndex;
+        int mask = index.length - 1;
+        for (int i = hash.hashCode() & mask; index[i] != 0; i = (i + 1) & mask) {
+            if (index[i] == slot + 1) {
+                index[i] = DELETED;
+                deletedIndexEntries++;
+                break;
+            }
+        }
+        // Deleted entries are reused by later inserts, but make lookups of missing headers slower, so start afresh
+        // once there are many.
+        if (deletedIndexEntries > index.length / 4)
+            rebuildIndex();
+    }
+
+    /** Indexes every header in the ring, oldest first so the newest copy of a header wins. */
+    private void rebuildIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        int[] index = new int[indexCapacity()];
+        int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        for (int n = 0; n < numHeaders; n++) {
+            int slot = (cursorSlot + n) % numHeaders;
+            Sha256Hash hash = readHash(buffer, slot);
+            if (hash != null)
+                addToIndex(index, hash, slot);
+        }
+        deletedIndexEntries = 0;
+        hashIndex = index;
+    }
+
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        final AtomicReferenceArray<Sha256Hash> hashes = heightHashes;
+        if (hashes == null) throw new BlockStoreException("Store closed");
+        if (height < 0)
             return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        Sha256Hash hash = hashes.get(height % hashes.length());
+        if (hash != null) {
+            StoredBlock block = get(hash);
+            if (block != null && block.getHeight() == height)
+                return block;
+        }
+        return archive != null ? archive.getByHeight(height) : null;
+    }
+
+    public void indexBestChain(List<StoredBlock> blocks) throws BlockStoreException {
+        lock.lock();
+        try {
+            final AtomicReferenceArray<Sha256Hash> hashes = heightHashes;
+            if (hashes == null) throw new BlockStoreException("Store closed");
+            int length = hashes.length();
+            int top = blocks.get(blocks.size() - 1).getHeight();
+            for (int height = Math.max(top + 1, indexedTopHeight - length + 1); height <= indexedTopHeight; height++)
+                hashes.set(height % length, null);
+            for (StoredBlock block : blocks)
+                hashes.set(block.getHeight() % length, block.getHeader().getHash());
+            indexedTopHeight = top;
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    // Walks back from the chain head through the ring to find the best chain.
+    private void rebuildHeightIndex() throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        AtomicReferenceArray<Sha256Hash> hashes = new AtomicReferenceArray<Sha256Hash>(numHeaders);
+        StoredBlock cursor = getChainHead();
+        indexedTopHeight = cursor.getHeight();
+        for (int i = 0; i < numHeaders && cursor != null; i++) {
+            hashes.set(cursor.getHeight() % numHeaders, cursor.getHeader().getHash());
+            if (cursor.getHeight() == 0)
+                break;
+            cursor = get(cursor.getHeader().getPrevBlockHash());
+        }
+        heightHashes = hashes;
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        if (this.buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
                 buffer.position(8);
@@ -249,26 +527,33 @@ public class SPVBlockStore implements BlockStore {
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        if (this.buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
+            if (archive != null)
+                archive.setChainHead(chainHead, this);
         } finally { lock.unlock(); }
     }
 
     public void close() throws BlockStoreException {
+        lock.lock();
         try {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            heightHashes = null;
             randomAccessFile.close();
+            if (archive != null)
+                archive.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
-        }
+        } finally { lock.unlock(); }
     }
 
     protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
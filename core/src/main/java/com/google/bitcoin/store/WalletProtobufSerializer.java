@@ -22,27 +22,29 @@ import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -71,6 +73,8 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private int loadingThreads = 1;
+    private boolean lazyLoading;
 
     public WalletProtobufSerializer() {
         txMap = new HashMap<ByteString, Transaction>();
@@ -85,6 +89,31 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * Sets how many threads keys and transactions are decoded on when reading a wallet. With more than one, a pool of
+     * threads is made for each wallet read and the work is split between them. The default is one, which decodes
+     * everything on the calling thread.
+     */
+    public void setLoadingThreads(int threads) {
+        checkArgument(threads > 0);
+        loadingThreads = threads;
+    }
+
+    /**
+     * <p>If this property is set to true, spent and dead transactions are decoded in the background after the wallet is
+     * returned, as they are most of a long lived wallet but aren't needed for its balance. The wallet adds them as soon
+     * as they are ready, or waits for them the first time it needs them, see
+     * {@link Wallet#setDeferredTransactions(Wallet.DeferredTransactions)}. Spent transactions that spend outputs of
+     * the unspent or pending ones are decoded straight away, so that those outputs are known to be spent.</p>
+     *
+     * <p>If one of the transactions read in the background can't be read, the wallet throws
+     * {@link IllegalStateException} when it needs them rather than this class throwing
+     * {@link UnreadableWalletException}.</p>
+     */
+    public void setLazyLoading(boolean lazy) {
+        lazyLoading = lazy;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -118,64 +147,22 @@ public class WalletProtobufSerializer {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>();
+        List<CompactTransaction> compacted = wallet.getCompactTransactions(wtxs);
+        for (WalletTransaction wtx : wtxs) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
+        for (CompactTransaction ctx : compacted)
+            walletBuilder.addTransaction(compactTxToProto(ctx));
 
-        for (ECKey key : wallet.getKeys()) {
-            Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
-                                                         // .setLabel() TODO
-                                                            .setType(Protos.Key.Type.ORIGINAL);
-            if (key.getPrivKeyBytes() != null)
-                keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+        for (ECKey key : wallet.getKeys())
+            walletBuilder.addKey(makeKeyProto(key));
 
-            EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
-            if (encryptedPrivateKey != null) {
-                // Key is encrypted.
-                Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
-                    .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
-                    .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+        for (Script script : wallet.getWatchedScripts())
+            walletBuilder.addWatchedScript(makeScriptProto(script));
 
-                if (key.getKeyCrypter() == null) {
-                    throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
-                } else {
-                    // If it is a Scrypt + AES encrypted key, set the persisted key type.
-                    if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
-                        keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
-                    } else {
-                        throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
-                                ". This WalletProtobufSerialiser does not understand that type of encryption.");
-                    }
-                }
-                keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
-            }
-
-            // We serialize the public key even if the private key is present for speed reasons: we don't want to do
-            // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
-            // on mobile platforms.
-            keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
-            walletBuilder.addKey(keyBuilder);
-        }
-
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
-
-            walletBuilder.addWatchedScript(protoScript);
-        }
-
-        // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
-        }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        populateLastSeenBlock(wallet, walletBuilder);
 
         // Populate the scrypt parameters.
         KeyCrypter keyCrypter = wallet.getKeyCrypter();
@@ -207,14 +194,288 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
+    private static Protos.Key makeKeyProto(ECKey key) {
+        Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                                                     // .setLabel() TODO
+                                                        .setType(Protos.Key.Type.ORIGINAL);
+        if (key.getPrivKeyBytes() != null)
+            keyBuilder.setPrivateKey(ByteString.copyFrom(key.getPrivKeyBytes()));
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (encryptedPrivateKey != null) {
+            // Key is encrypted.
+            Protos.EncryptedPrivateKey.Builder encryptedKeyBuilder = Protos.EncryptedPrivateKey.newBuilder()
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes()))
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()));
+
+            if (key.getKeyCrypter() == null) {
+                throw new IllegalStateException("The encrypted key " + key.toString() + " has no KeyCrypter.");
+            } else {
+                // If it is a Scrypt + AES encrypted key, set the persisted key type.
+                if (key.getKeyCrypter().getUnderstoodEncryptionType() == Protos.Wallet.EncryptionType.ENCRYPTED_SCRYPT_AES) {
+                    keyBuilder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+                } else {
+                    throw new IllegalArgumentException("The key " + key.toString() + " is encrypted with a KeyCrypter of type " + key.getKeyCrypter().getUnderstoodEncryptionType() +
+                            ". This WalletProtobufSerialiser does not understand that type of encryption.");
+                }
+            }
+            keyBuilder.setEncryptedPrivateKey(encryptedKeyBuilder);
+        }
+
+        // We serialize the public key even if the private key is present for speed reasons: we don't want to do
+        // lots of slow EC math to load the wallet, we prefer to store the redundant data instead. It matters more
+        // on mobile platforms.
+        keyBuilder.setPublicKey(ByteString.copyFrom(key.getPubKey()));
+        return keyBuilder.build();
+    }
+
+    private static Protos.Script makeScriptProto(Script script) {
+        return Protos.Script.newBuilder()
+                .setProgram(ByteString.copyFrom(script.getProgram()))
+                .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                .build();
+    }
+
+    private static void populateLastSeenBlock(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+    }
+
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
+        for (WalletExtension extension : wallet.getExtensions().values())
+            walletBuilder.addExtension(makeExtensionProto(extension));
+    }
+
+    private static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
+    }
+
+    /**
+     * <p>Writes a batch of changes to the given wallet to the output stream: the batch number as eight bytes, big
+     * endian, then a {@link Protos.Wallet} prefixed by its length as a varint, as written by
+     * {@link com.google.protobuf.MessageLite#writeDelimitedTo(java.io.OutputStream)}. The message holds only the given
+     * transactions, keys, watched scripts and extensions, together with the settings that are cheap to write every
+     * time: the last block seen, the description, the key rotation time and the version.</p>
+     *
+     * <p>This is normally used through {@link Wallet#saveChangesToFileStream(java.io.OutputStream)}, and the batches
+     * are read back with {@link #applyWalletChanges(Protos.Wallet, long, java.io.InputStream)}.</p>
+     */
+    public void writeWalletChanges(Wallet wallet, long sequence, Collection<WalletTransaction> transactions,
+                                   Collection<ECKey> keys, Collection<Script> scripts,
+                                   Collection<WalletExtension> extensions, OutputStream output) throws IOException {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        for (WalletTransaction wtx : transactions)
+            walletBuilder.addTransaction(makeTxProto(wtx));
+        for (ECKey key : keys)
+            walletBuilder.addKey(makeKeyProto(key));
+        for (Script script : scripts)
+            walletBuilder.addWatchedScript(makeScriptProto(script));
+        for (WalletExtension extension : extensions)
+            walletBuilder.addExtension(makeExtensionProto(extension));
+        populateLastSeenBlock(wallet, walletBuilder);
+        if (wallet.getDescription() != null)
+            walletBuilder.setDescription(wallet.getDescription());
+        if (wallet.getKeyRotationTime() != null)
+            walletBuilder.setKeyRotationTime(wallet.getKeyRotationTime().getTime() / 1000);
+        walletBuilder.setVersion(wallet.getVersion());
+
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeLong(sequence);
+        walletBuilder.build().writeDelimitedTo(data);
+        data.flush();
+    }
+
+    /**
+     * <p>Reads batches of changes written by {@link #writeWalletChanges} from the given stream and applies them, in
+     * order of their numbers, to the given wallet in its protocol buffer form. Batches numbered baseSequence or lower
+     * are taken to be in the wallet already and are skipped. A batch that is cut short at the end of the stream, as
+     * happens if the program stopped while writing it, is ignored.</p>
+     *
+     * <p>Transactions and extensions in a batch replace those with the same hash or ID, keys and watched scripts are
+     * added if they aren't there already, and the settings are taken from the last batch. The depth of a transaction
+     * is saved as it was when its batch was written, so it is worked out again from the height the transaction
+     * appeared at, or failing that moved on by the blocks seen since.</p>
+     */
+    public static Protos.Wallet applyWalletChanges(Protos.Wallet walletProto, long baseSequence, InputStream input)
+            throws IOException {
+        TreeMap<Long, Protos.Wallet> batches = new TreeMap<Long, Protos.Wallet>();
+        DataInputStream data = new DataInputStream(input);
+        while (true) {
+            Protos.Wallet batch;
+            long sequence;
+            try {
+                sequence = data.readLong();
+                batch = Protos.Wallet.parseDelimitedFrom(data);
+            } catch (EOFException e) {
+                batch = null;
+                sequence = 0;
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Ignoring batch of wallet changes that was not written completely");
+                break;
+            }
+            if (batch == null)
+                break;
+            if (sequence > baseSequence)
+                batches.put(sequence, batch);
         }
+        if (batches.isEmpty())
+            return walletProto;
+
+        Protos.Wallet.Builder builder = walletProto.toBuilder();
+        int lastSeenHeight = builder.hasLastSeenBlockHeight() ? builder.getLastSeenBlockHeight() : -1;
+        Map<ByteString, Integer> txIndexes = new HashMap<ByteString, Integer>();
+        // The last seen block height when each transaction was written, if it isn't that of the wallet given.
+        Map<ByteString, Integer> txHeights = new HashMap<ByteString, Integer>();
+        for (int i = 0; i < builder.getTransactionCount(); i++)
+            txIndexes.put(builder.getTransaction(i).getHash(), i);
+        Set<ByteString> pubKeys = new HashSet<ByteString>();
+        for (Protos.Key key : builder.getKeyList())
+            pubKeys.add(key.getPublicKey());
+        Set<ByteString> programs = new HashSet<ByteString>();
+        for (Protos.Script script : builder.getWatchedScriptList())
+            programs.add(script.getProgram());
+        Map<String, Integer> extensionIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < builder.getExtensionCount(); i++)
+            extensionIndexes.put(builder.getExtension(i).getId(), i);
+
+        for (Protos.Wallet batch : batches.values()) {
+            int batchHeight = batch.hasLastSeenBlockHeight() ? batch.getLastSeenBlockHeight() : -1;
+            for (Protos.Transaction tx : batch.getTransactionList()) {
+                Integer index = txIndexes.get(tx.getHash());
+                if (index == null) {
+                    txIndexes.put(tx.getHash(), builder.getTransactionCount());
+                    builder.addTransaction(tx);
+                } else {
+                    builder.setTransaction(index, tx);
+                }
+                txHeights.put(tx.getHash(), batchHeight);
+            }
+            for (Protos.Key key : batch.getKeyList())
+                if (!key.hasPublicKey() || pubKeys.add(key.getPublicKey()))
+                    builder.addKey(key);
+            for (Protos.Script script : batch.getWatchedScriptList())
+                if (programs.add(script.getProgram()))
+                    builder.addWatchedScript(script);
+            for (Protos.Extension extension : batch.getExtensionList()) {
+                Integer index = extensionIndexes.get(extension.getId());
+                if (index == null) {
+                    extensionIndexes.put(extension.getId(), builder.getExtensionCount());
+                    builder.addExtension(extension);
+                } else {
+                    builder.setExtension(index, extension);
+                }
+            }
+        }
+
+        // Every batch has the settings as they were when it was written, so the last one has them as they are now.
+        Protos.Wallet last = batches.lastEntry().getValue();
+        if (last.hasLastSeenBlockHash()) {
+            builder.setLastSeenBlockHash(last.getLastSeenBlockHash());
+            builder.setLastSeenBlockHeight(last.getLastSeenBlockHeight());
+        } else {
+            builder.clearLastSeenBlockHash();
+            builder.clearLastSeenBlockHeight();
+        }
+        if (last.hasLastSeenBlockTimeSecs())
+            builder.setLastSeenBlockTimeSecs(last.getLastSeenBlockTimeSecs());
+        else
+            builder.clearLastSeenBlockTimeSecs();
+        if (last.hasDescription())
+            builder.setDescription(last.getDescription());
+        else
+            builder.clearDescription();
+        if (last.hasKeyRotationTime())
+            builder.setKeyRotationTime(last.getKeyRotationTime());
+        else
+            builder.clearKeyRotationTime();
+        builder.setVersion(last.getVersion());
+
+        int newHeight = builder.hasLastSeenBlockHeight() ? builder.getLastSeenBlockHeight() : -1;
+        for (int i = 0; i < builder.getTransactionCount(); i++) {
+            Protos.Transaction tx = builder.getTransaction(i);
+            if (newHeight < 0 || !tx.hasConfidence())
+                continue;
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasDepth())
+                continue;
+            int depth;
+            if (confidence.hasAppearedAtHeight() && confidence.getAppearedAtHeight() <= newHeight) {
+                // A transaction is written when it is received, before the wallet moves on to its block.
+                depth = newHeight - confidence.getAppearedAtHeight() + 1;
+            } else {
+                Integer txHeight = txHeights.get(tx.getHash());
+                int writtenAt = txHeight != null ? txHeight : lastSeenHeight;
+                if (writtenAt < 0 || newHeight <= writtenAt)
+                    continue;
+                depth = confidence.getDepth() + newHeight - writtenAt;
+            }
+            builder.setTransaction(i, tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)));
+        }
+        return builder.build();
+    }
+
+    /** Returns the transaction in the form it is stored in the wallet file, which is what {@link CompactTransaction} holds. */
+    public static byte[] serializeTransaction(WalletTransaction wtx) {
+        return makeTxProto(wtx).toByteArray();
+    }
+
+    // The transaction as it was stored, with its depth and work done brought up to date.
+    private static Protos.Transaction compactTxToProto(CompactTransaction ctx) {
+        Protos.Transaction txProto;
+        try {
+            txProto = Protos.Transaction.parseFrom(ctx.getData());
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);  // Cannot happen, it was written by serializeTransaction.
+        }
+        if (!txProto.hasConfidence() || !txProto.getConfidence().hasDepth())
+            return txProto;
+        Protos.TransactionConfidence.Builder confidence = txProto.getConfidence().toBuilder();
+        confidence.setDepth(ctx.getDepthInBlocks());
+        if (confidence.hasWorkDone())
+            confidence.setWorkDone(ctx.getWorkDone().longValue());
+        return txProto.toBuilder().setConfidence(confidence).build();
+    }
+
+    /**
+     * <p>Decodes transactions that a wallet held compacted, and returns them in the same order. Their outputs are
+     * connected to the inputs that spend them, and their confidences to the transactions that overrode them, which
+     * must be among the given transactions of the wallet or among those being decoded. Their own inputs are left for
+     * the transactions they spend from to connect, as those record what spends them.</p>
+     */
+    public List<WalletTransaction> inflateTransactions(NetworkParameters params, List<CompactTransaction> compacted,
+                                                       Map<Sha256Hash, Transaction> walletTransactions)
+            throws UnreadableWalletException {
+        Map<ByteString, Transaction> txMap = new HashMap<ByteString, Transaction>();
+        List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>(compacted.size());
+        for (CompactTransaction ctx : compacted) {
+            Protos.Transaction txProto = compactTxToProto(ctx);
+            txProtos.add(txProto);
+            putTransaction(txMap, readTransaction(txProto, params));
+        }
+        for (CompactTransaction ctx : compacted) {
+            List<Sha256Hash> related = new ArrayList<Sha256Hash>(ctx.getSpentBy());
+            if (ctx.getOverridingTransactionHash() != null)
+                related.add(ctx.getOverridingTransactionHash());
+            for (Sha256Hash hash : related) {
+                Transaction tx = walletTransactions.get(hash);
+                if (tx != null)
+                    txMap.put(hashToByteString(hash), tx);
+            }
+        }
+        List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>(txProtos.size());
+        for (Protos.Transaction txProto : txProtos)
+            wtxs.add(connectTransactionOutputs(txProto, txMap, true));
+        return wtxs;
     }
 
     private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
@@ -363,19 +624,27 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            Wallet wallet = new Wallet(params);
-            readWallet(walletProto, wallet);
-            return wallet;
+            return readWallet(parseToProto(input));
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * <p>Loads a wallet from the given protocol buffer into a new Wallet object for the network the wallet is for.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see {@link #readWallet(java.io.InputStream)}).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        Wallet wallet = new Wallet(params);
+        readWallet(walletProto, wallet);
+        return wallet;
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -398,34 +667,36 @@ public class WalletProtobufSerializer {
             wallet.setDescription(walletProto.getDescription());
         }
 
-        // Read all keys
-        for (Protos.Key keyProto : walletProto.getKeyList()) {
-            if (!(keyProto.getType() == Protos.Key.Type.ORIGINAL || keyProto.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES)) {
-                throw new UnreadableWalletException("Unknown key type in wallet, type = " + keyProto.getType());
-            }
-
-            byte[] privKey = keyProto.hasPrivateKey() ? keyProto.getPrivateKey().toByteArray() : null;
-            EncryptedPrivateKey encryptedPrivateKey = null;
-            if (keyProto.hasEncryptedPrivateKey()) {
-                Protos.EncryptedPrivateKey encryptedPrivateKeyProto = keyProto.getEncryptedPrivateKey();
-                encryptedPrivateKey = new EncryptedPrivateKey(encryptedPrivateKeyProto.getInitialisationVector().toByteArray(),
-                        encryptedPrivateKeyProto.getEncryptedPrivateKey().toByteArray());
+        ExecutorService executor = null;
+        if (loadingThreads > 1 || lazyLoading)
+            executor = createExecutor();
+        boolean success = false;
+        try {
+            readWallet(walletProto, wallet, executor);
+            success = true;
+        } finally {
+            if (executor != null) {
+                // Lets the transactions being read in the background finish.
+                if (success)
+                    executor.shutdown();
+                else
+                    executor.shutdownNow();
             }
+        }
+    }
 
-            byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
-
-            ECKey ecKey;
-            final KeyCrypter keyCrypter = wallet.getKeyCrypter();
-            if (keyCrypter != null && keyCrypter.getUnderstoodEncryptionType() != EncryptionType.UNENCRYPTED) {
-                // If the key is encrypted construct an ECKey using the encrypted private key bytes.
-                ecKey = new ECKey(encryptedPrivateKey, pubKey, keyCrypter);
-            } else {
-                // Construct an unencrypted private key.
-                ecKey = new ECKey(privKey, pubKey);
+    private void readWallet(Protos.Wallet walletProto, Wallet wallet, @Nullable ExecutorService executor)
+            throws UnreadableWalletException {
+        // Read all keys
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        List<ECKey> keys = decode(executor, walletProto.getKeyList(), new Decoder<Protos.Key, ECKey>() {
+            @Override
+            public ECKey decode(Protos.Key keyProto) throws UnreadableWalletException {
+                return readKey(keyProto, keyCrypter);
             }
-            ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
-            wallet.addKey(ecKey);
-        }
+        });
+        for (ECKey key : keys)
+            wallet.addKey(key);
 
         List<Script> scripts = Lists.newArrayList();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -441,16 +712,40 @@ public class WalletProtobufSerializer {
 
         wallet.addWatchedScripts(scripts);
 
+        final NetworkParameters params = wallet.getParams();
+        Decoder<Protos.Transaction, Transaction> txDecoder = new Decoder<Protos.Transaction, Transaction>() {
+            @Override
+            public Transaction decode(Protos.Transaction txProto) throws UnreadableWalletException {
+                return readTransaction(txProto, params);
+            }
+        };
+        List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+        List<Protos.Transaction> deferred = Collections.emptyList();
+        if (lazyLoading) {
+            List<Protos.Transaction> needed = new ArrayList<Protos.Transaction>();
+            deferred = new ArrayList<Protos.Transaction>();
+            splitTransactions(txProtos, needed, deferred);
+            txProtos = needed;
+        }
+
         // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
+        for (Transaction tx : decode(executor, txProtos, txDecoder)) {
+            putTransaction(txMap, tx);
         }
+        DeferredLoad deferredLoad = null;
+        if (!deferred.isEmpty())
+            deferredLoad = new DeferredLoad(txMap, txProtos, deferred, submit(checkNotNull(executor), deferred, txDecoder));
 
         // Update transaction outputs to point to inputs that spend them
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
+        for (Protos.Transaction txProto : txProtos) {
+            WalletTransaction wtx = connectTransactionOutputs(txProto, txMap, deferredLoad != null);
             wallet.addWalletTransaction(wtx);
         }
+        if (deferredLoad != null) {
+            wallet.setDeferredTransactions(deferredLoad);
+            // The deferred transactions need the ones read so far.
+            txMap = new HashMap<ByteString, Transaction>();
+        }
 
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
@@ -478,6 +773,179 @@ public class WalletProtobufSerializer {
 
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
+
+        if (deferredLoad != null) {
+            // Add the rest of the transactions as soon as they are ready, rather than when the wallet first needs them.
+            final Wallet loadingWallet = wallet;
+            checkNotNull(executor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadingWallet.finishLoading();
+                    } catch (IllegalStateException e) {
+                        log.error("Could not finish loading wallet", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static ECKey readKey(Protos.Key keyProto, @Nullable KeyCrypter keyCrypter) throws UnreadableWalletException {
+        if (!(keyProto.getType() == Protos.Key.Type.ORIGINAL || keyProto.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES)) {
+            throw new UnreadableWalletException("Unknown key type in wallet, type = " + keyProto.getType());
+        }
+
+        byte[] privKey = keyProto.hasPrivateKey() ? keyProto.getPrivateKey().toByteArray() : null;
+        EncryptedPrivateKey encryptedPrivateKey = null;
+        if (keyProto.hasEncryptedPrivateKey()) {
+            Protos.EncryptedPrivateKey encryptedPrivateKeyProto = keyProto.getEncryptedPrivateKey();
+            encryptedPrivateKey = new EncryptedPrivateKey(encryptedPrivateKeyProto.getInitialisationVector().toByteArray(),
+                    encryptedPrivateKeyProto.getEncryptedPrivateKey().toByteArray());
+        }
+
+        byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
+
+        ECKey ecKey;
+        if (keyCrypter != null && keyCrypter.getUnderstoodEncryptionType() != EncryptionType.UNENCRYPTED) {
+            // If the key is encrypted construct an ECKey using the encrypted private key bytes.
+            ecKey = new ECKey(encryptedPrivateKey, pubKey, keyCrypter);
+        } else {
+            // Construct an unencrypted private key.
+            ecKey = new ECKey(privKey, pubKey);
+        }
+        ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
+        return ecKey;
+    }
+
+    // Splits the transactions into those a wallet needs for its balance and the spent and dead ones it doesn't. A spent
+    // transaction is needed after all if it spends an output of a needed one, so that the output is marked as spent.
+    private static void splitTransactions(List<Protos.Transaction> txProtos, List<Protos.Transaction> needed,
+                                          List<Protos.Transaction> deferred) {
+        Set<ByteString> spenders = new HashSet<ByteString>();
+        for (Protos.Transaction txProto : txProtos) {
+            if (isDeferrable(txProto))
+                continue;
+            for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                if (output.hasSpentByTransactionHash())
+                    spenders.add(output.getSpentByTransactionHash());
+            }
+        }
+        for (Protos.Transaction txProto : txProtos) {
+            if (isDeferrable(txProto) && !spenders.contains(txProto.getHash()))
+                deferred.add(txProto);
+            else
+                needed.add(txProto);
+        }
+    }
+
+    private static boolean isDeferrable(Protos.Transaction txProto) {
+        return txProto.getPool() == Protos.Transaction.Pool.SPENT || txProto.getPool() == Protos.Transaction.Pool.DEAD;
+    }
+
+    /**
+     * The spent and dead transactions of a wallet read with lazy loading, which are decoded in the background and then
+     * connected to the rest of the wallet's transactions under the wallet lock.
+     */
+    private class DeferredLoad implements Wallet.DeferredTransactions {
+        private final Map<ByteString, Transaction> txMap;
+        private final List<Protos.Transaction> readProtos;
+        private final List<Protos.Transaction> deferredProtos;
+        private final List<Future<List<Transaction>>> decoding;
+        @Nullable private UnreadableWalletException failure;
+
+        DeferredLoad(Map<ByteString, Transaction> txMap, List<Protos.Transaction> readProtos,
+                     List<Protos.Transaction> deferredProtos, List<Future<List<Transaction>>> decoding) {
+            this.txMap = txMap;
+            this.readProtos = readProtos;
+            this.deferredProtos = deferredProtos;
+            this.decoding = decoding;
+        }
+
+        @Override
+        public List<WalletTransaction> complete() throws UnreadableWalletException {
+            // Once it has failed part way through the transactions are in an unknown state, so it mustn't go again.
+            if (failure != null)
+                throw failure;
+            try {
+                for (Transaction tx : gather(decoding))
+                    putTransaction(txMap, tx);
+                // Outputs of the transactions read first that are spent by deferred ones.
+                for (Protos.Transaction txProto : readProtos)
+                    connectOutputs(txMap.get(txProto.getHash()), txProto, txMap, false);
+                List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>(deferredProtos.size());
+                for (Protos.Transaction txProto : deferredProtos)
+                    wtxs.add(connectTransactionOutputs(txProto, txMap, false));
+                return wtxs;
+            } catch (UnreadableWalletException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    private interface Decoder<I, O> {
+        O decode(I input) throws UnreadableWalletException;
+    }
+
+    // Decodes the inputs on the executor if there is one, or on this thread if not, and returns the results in order.
+    private <I, O> List<O> decode(@Nullable ExecutorService executor, List<I> inputs, Decoder<I, O> decoder)
+            throws UnreadableWalletException {
+        if (executor == null) {
+            List<O> results = new ArrayList<O>(inputs.size());
+            for (I input : inputs)
+                results.add(decoder.decode(input));
+            return results;
+        }
+        return gather(submit(executor, inputs, decoder));
+    }
+
+    // Splits the inputs into a few pieces for each thread, so that the threads finish at about the same time.
+    private <I, O> List<Future<List<O>>> submit(ExecutorService executor, List<I> inputs, final Decoder<I, O> decoder) {
+        int pieceSize = Math.max(1, (inputs.size() + loadingThreads * 4 - 1) / (loadingThreads * 4));
+        List<Future<List<O>>> futures = new ArrayList<Future<List<O>>>();
+        for (int start = 0; start < inputs.size(); start += pieceSize) {
+            final List<I> piece = inputs.subList(start, Math.min(inputs.size(), start + pieceSize));
+            futures.add(executor.submit(new Callable<List<O>>() {
+                @Override
+                public List<O> call() throws UnreadableWalletException {
+                    List<O> results = new ArrayList<O>(piece.size());
+                    for (I input : piece)
+                        results.add(decoder.decode(input));
+                    return results;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static <O> List<O> gather(List<Future<List<O>>> futures) throws UnreadableWalletException {
+        List<O> results = new ArrayList<O>();
+        for (Future<List<O>> future : futures) {
+            try {
+                results.addAll(future.get());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UnreadableWalletException)
+                    throw (UnreadableWalletException) e.getCause();
+                throw new UnreadableWalletException("Could not decode wallet", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    @VisibleForTesting
+    ExecutorService createExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(loadingThreads, new ThreadFactory() {
+            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Wallet loading thread " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        });
     }
 
     private void loadExtensions(Wallet wallet, Protos.Wallet walletProto) throws UnreadableWalletException {
@@ -515,7 +983,7 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -569,12 +1037,19 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format("Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
+    }
+
+    private static void putTransaction(Map<ByteString, Transaction> txMap, Transaction tx) throws UnreadableWalletException {
+        ByteString hash = hashToByteString(tx.getHash());
+        if (txMap.containsKey(hash))
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + tx.getHash());
+        txMap.put(hash, tx);
     }
 
-    private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+    private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        Map<ByteString, Transaction> txMap,
+                                                        boolean allowMissing) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -593,13 +1068,30 @@ public class WalletProtobufSerializer {
             default:
                 throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
         }
+        connectOutputs(tx, txProto, txMap, allowMissing);
+        
+        if (txProto.hasConfidence()) {
+            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+            TransactionConfidence confidence = tx.getConfidence();
+            readConfidence(tx, confidenceProto, confidence, txMap);
+        }
+
+        return new WalletTransaction(pool, tx);
+    }
+
+    // Connects the outputs that aren't connected yet to the inputs that spend them. If allowMissing is set, outputs
+    // whose spending transaction hasn't been read yet are left for later.
+    private static void connectOutputs(Transaction tx, Protos.Transaction txProto, Map<ByteString, Transaction> txMap,
+                                       boolean allowMissing) throws UnreadableWalletException {
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
-            if (transactionOutput.hasSpentByTransactionHash()) {
+            if (transactionOutput.hasSpentByTransactionHash() && output.getSpentBy() == null) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
                 if (spendingTx == null) {
+                    if (allowMissing)
+                        continue;
                     throw new UnreadableWalletException(String.format("Could not connect %s to %s",
                             tx.getHashAsString(), byteStringToHash(spentByTransactionHash)));
                 }
@@ -608,18 +1100,11 @@ public class WalletProtobufSerializer {
                 input.connect(output);
             }
         }
-        
-        if (txProto.hasConfidence()) {
-            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
-            TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(tx, confidenceProto, confidence);
-        }
-
-        return new WalletTransaction(pool, tx);
     }
 
     private void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto,
-                                TransactionConfidence confidence) throws UnreadableWalletException {
+                                TransactionConfidence confidence,
+                                Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
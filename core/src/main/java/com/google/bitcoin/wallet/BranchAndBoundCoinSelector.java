@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} for wallets with a lot of outputs. It keeps the outputs it is given sorted by value, and
+ * then by the height they were confirmed at so older ones come first, between calls. So selecting again from the same
+ * wallet, as {@link com.google.bitcoin.core.Wallet#completeTx(com.google.bitcoin.core.Wallet.SendRequest)} does
+ * while working out the fee, only has to look at what changed rather than sort everything again.</p>
+ *
+ * <p>It first looks for a set of outputs that adds up to the target, or goes over by no more than a tolerance, so that
+ * the transaction needs no change output. This is a branch and bound search that gives up after a given time. If it
+ * finds nothing, it picks the smallest single output that covers the target, and failing that the largest outputs
+ * until the target is reached. Unlike {@link DefaultCoinSelector} it doesn't try to spend as much priority as
+ * possible.</p>
+ *
+ * <p>Which outputs may be spent is decided by {@link DefaultCoinSelector#isSelectable(Transaction)}, unless
+ * {@link #shouldSelect(Transaction)} is overridden. An instance should only be used with one wallet.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** How long the search for outputs that need no change may take by default. */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 50;
+    // As in the reference client, the search also stops after this many steps, whatever the time.
+    private static final int MAX_TRIES = 100000;
+
+    private final long tolerance;
+    private final long timeBudgetNanos;
+
+    private static class Entry implements Comparable<Entry> {
+        final TransactionOutput output;
+        final long value;
+        final long sequence;
+        int height;
+        int generation;
+        boolean selectable;
+
+        Entry(TransactionOutput output, int height, long sequence) {
+            this.output = output;
+            this.value = output.getValue().longValue();
+            this.height = height;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            // Largest value first, then the oldest, then the order they were first seen in.
+            if (value != other.value)
+                return value > other.value ? -1 : 1;
+            if (height != other.height)
+                return height < other.height ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final TreeSet<Entry> sorted = new TreeSet<Entry>();
+    private final IdentityHashMap<TransactionOutput, Entry> entries = new IdentityHashMap<TransactionOutput, Entry>();
+    private long nextSequence;
+    private int generation;
+
+    /**
+     * Creates a selector that accepts going over the target by less than {@link Transaction#MIN_NONDUST_OUTPUT}, as
+     * change that small would be given to the miners anyway, and searches for {@link #DEFAULT_TIME_BUDGET_MILLIS}.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT.subtract(BigInteger.ONE), DEFAULT_TIME_BUDGET_MILLIS);
+    }
+
+    /**
+     * @param tolerance how far over the target a selection may go and still be taken to need no change output
+     * @param timeBudgetMillis how long the search for such a selection may take
+     */
+    public BranchAndBoundCoinSelector(BigInteger tolerance, long timeBudgetMillis) {
+        checkArgument(tolerance.signum() >= 0);
+        checkArgument(timeBudgetMillis >= 0);
+        this.tolerance = tolerance.longValue();
+        this.timeBudgetNanos = timeBudgetMillis * 1000000;
+    }
+
+    public synchronized CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
+        update(candidates);
+        int count = 0;
+        for (Entry entry : sorted)
+            if (entry.selectable) count++;
+        TransactionOutput[] outputs = new TransactionOutput[count];
+        long[] values = new long[count];
+        long available = 0;
+        int i = 0;
+        for (Entry entry : sorted) {
+            if (!entry.selectable) continue;
+            outputs[i] = entry.output;
+            values[i] = entry.value;
+            available += entry.value;
+            i++;
+        }
+
+        long target = biTarget.longValue();
+        List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        if (available <= target) {
+            // Everything there is, which is also how the wallet asks for its balance.
+            selected.addAll(Arrays.asList(outputs));
+            return new CoinSelection(BigInteger.valueOf(available), selected);
+        }
+        long total = 0;
+        boolean[] match = search(values, available, target);
+        if (match != null) {
+            for (i = 0; i < match.length; i++) {
+                if (!match[i]) continue;
+                selected.add(outputs[i]);
+                total += values[i];
+            }
+        } else {
+            // The smallest output that covers the target on its own, if there is one.
+            int cover = -1;
+            for (i = 0; i < values.length && values[i] >= target; i++)
+                cover = i;
+            if (cover >= 0) {
+                selected.add(outputs[cover]);
+                total = values[cover];
+            } else {
+                for (i = 0; i < values.length && total < target; i++) {
+                    selected.add(outputs[i]);
+                    total += values[i];
+                }
+            }
+        }
+        return new CoinSelection(BigInteger.valueOf(total), selected);
+    }
+
+    /** Sub-classes can override this to customize which transactions may be spent from. */
+    protected boolean shouldSelect(Transaction tx) {
+        return DefaultCoinSelector.isSelectable(tx);
+    }
+
+    private static int heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            return confidence.getAppearedAtChainHeight();
+        return Integer.MAX_VALUE;
+    }
+
+    // Brings the sorted outputs in line with the candidates, only touching the tree for the ones that changed.
+    private void update(List<TransactionOutput> candidates) {
+        generation++;
+        int seen = 0;
+        for (TransactionOutput output : candidates) {
+            Transaction tx = output.getParentTransaction();
+            int height = heightOf(tx);
+            Entry entry = entries.get(output);
+            if (entry == null) {
+                entry = new Entry(output, height, nextSequence++);
+                entries.put(output, entry);
+                sorted.add(entry);
+            } else if (entry.generation == generation) {
+                continue;  // Listed twice.
+            } else if (entry.height != height) {
+                sorted.remove(entry);
+                entry.height = height;
+                sorted.add(entry);
+            }
+            entry.generation = generation;
+            entry.selectable = shouldSelect(tx);
+            seen++;
+        }
+        if (seen == entries.size())
+            return;
+        for (Iterator<Entry> it = sorted.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.generation != generation) {
+                it.remove();
+                entries.remove(entry.output);
+            }
+        }
+    }
+
+    /**
+     * Depth first search, largest values first, for the selection that goes over the target by the least and by no
+     * more than the tolerance. Returns which values are in it, or null if there is none or time ran out first.
+     */
+    private boolean[] search(long[] values, long available, long target) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        boolean[] selection = new boolean[values.length];
+        int depth = 0;  // How many values have been decided on.
+        long value = 0;
+        long bestExcess = Long.MAX_VALUE;
+        boolean[] best = null;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            if ((tries & 1023) == 1023 && System.nanoTime() > deadline)
+                break;
+            boolean backtrack = false;
+            if (value + available < target || value > target + tolerance) {
+                backtrack = true;
+            } else if (value >= target) {
+                if (value - target < bestExcess) {
+                    bestExcess = value - target;
+                    best = Arrays.copyOf(selection, values.length);
+                    Arrays.fill(best, depth, best.length, false);
+                    if (bestExcess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                // Go back to the last value that was taken, and try leaving it out instead.
+                while (depth > 0 && !selection[depth - 1]) {
+                    depth--;
+                    available += values[depth];
+                }
+                if (depth == 0)
+                    break;  // Nothing left to try.
+                selection[depth - 1] = false;
+                value -= values[depth - 1];
+            } else {
+                available -= values[depth];
+                // Taking a value that equals one just left out would only repeat a search already done.
+                if (depth > 0 && !selection[depth - 1] && values[depth] == values[depth - 1]) {
+                    selection[depth] = false;
+                } else {
+                    selection[depth] = true;
+                    value += values[depth];
+                }
+                depth++;
+            }
+        }
+        return best;
+    }
+}
@@ -16,29 +16,44 @@
 
 package com.google.bitcoin.wallet;
 
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.wallet.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import java.io.File;
-import java.io.IOException;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
- * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
+ * <p>A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
- * and disk IO on a background thread performance can be improved.
+ * and disk IO on a background thread performance can be improved.</p>
+ *
+ * <p>For big wallets, where even an occasional save of the whole wallet is slow, a journal can be kept as well: see
+ * {@link #enableJournal(long, java.util.concurrent.TimeUnit)}.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
 
+    // Starts every journal file, followed by the SHA-256 hash of the wallet file it applies to and the number of the
+    // last batch of changes that wallet file includes. Then come the batches, each as written by
+    // WalletProtobufSerializer.writeWalletChanges.
+    private static final int JOURNAL_MAGIC = 0x626a4a31;  // "bjJ1"
+
     private final Wallet wallet;
     private final ScheduledThreadPoolExecutor executor;
     private final File file;
@@ -49,6 +64,19 @@ public class WalletFiles {
 
     private volatile Listener vListener;
 
+    private final File journalFile;
+    private volatile boolean journalEnabled;
+    // Set when the journal may be missing changes, because writing it or a snapshot failed, so the next save must be
+    // a snapshot.
+    private volatile boolean snapshotNeeded;
+    // Guards writing the journal file. The wallet lock must never be taken while holding it, as saves that append to
+    // the journal are made by threads holding the wallet lock.
+    private final Object journalLock = new Object();
+    // For each snapshot being taken, the batches appended to the journal meanwhile. Those the snapshot doesn't include
+    // are carried over into the new journal.
+    @GuardedBy("journalLock") private final Set<TreeMap<Long, byte[]>> snapshotsInProgress =
+            Collections.newSetFromMap(new IdentityHashMap<TreeMap<Long, byte[]>, Boolean>());
+
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
      */
@@ -80,6 +108,7 @@ public class WalletFiles {
         this.wallet = checkNotNull(wallet);
         // File must only be accessed from the auto-save executor from now on, to avoid simultaneous access.
         this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
         this.savePending = new AtomicBoolean();
         this.delay = delay;
         this.delayTimeUnit = checkNotNull(delayTimeUnit);
@@ -98,6 +127,86 @@ public class WalletFiles {
         };
     }
 
+    /**
+     * <p>Starts keeping a journal of changes to the wallet in a file next to the wallet file, named as in
+     * {@link #getJournalFile(java.io.File)}. Saves then append just what changed since the last save to the journal,
+     * rather than writing the whole wallet, so they take time in proportion to the size of the change instead of the
+     * size of the wallet. The wallet is saved in full, and the journal started again, straight away and then every
+     * so often on the auto-save thread.</p>
+     *
+     * <p>A wallet saved like this is loaded with {@link Wallet#loadFromFile(java.io.File)} as usual, which replays
+     * the journal if there is one.</p>
+     *
+     * @param snapshotInterval how long to wait between full saves of the wallet
+     * @param timeUnit the unit of snapshotInterval
+     */
+    public void enableJournal(long snapshotInterval, TimeUnit timeUnit) throws IOException {
+        checkArgument(snapshotInterval > 0);
+        checkState(!journalEnabled, "Journal already enabled");
+        wallet.setTrackChanges(true);
+        journalEnabled = true;
+        saveSnapshot();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    saveSnapshot();
+                } catch (IOException e) {
+                    log.error("Failed to save wallet snapshot", e);
+                }
+            }
+        }, snapshotInterval, snapshotInterval, timeUnit);
+    }
+
+    /** Returns the file the journal for the given wallet file is kept in, which exists only if one has been kept. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Returns the wallet in the given file in its protocol buffer form, with the changes in its journal applied if
+     * there is one. A journal that doesn't belong to the wallet file, because the wallet was saved some other way
+     * since, is ignored.
+     */
+    public static Protos.Wallet readWallet(File walletFile) throws IOException {
+        Protos.Wallet walletProto;
+        FileInputStream stream = new FileInputStream(walletFile);
+        try {
+            walletProto = WalletProtobufSerializer.parseToProto(new BufferedInputStream(stream));
+        } finally {
+            stream.close();
+        }
+        File journal = getJournalFile(walletFile);
+        // If a snapshot was saved but the program stopped before the new journal replaced the old one, the new one
+        // is still there under its temporary name.
+        File[] journals = { journal, getNewJournalFile(journal) };
+        byte[] hash = null;
+        for (File candidate : journals) {
+            if (!candidate.exists())
+                continue;
+            if (hash == null)
+                hash = Sha256Hash.hashFileContents(walletFile).getBytes();
+            DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(candidate)));
+            try {
+                if (data.readInt() != JOURNAL_MAGIC)
+                    throw new IOException("Not a wallet journal: " + candidate);
+                byte[] snapshotHash = new byte[32];
+                data.readFully(snapshotHash);
+                long baseSequence = data.readLong();
+                if (Arrays.equals(hash, snapshotHash))
+                    return WalletProtobufSerializer.applyWalletChanges(walletProto, baseSequence, data);
+            } finally {
+                data.close();
+            }
+        }
+        if (hash != null)
+            log.warn("Ignoring journal {} as it doesn't belong to the wallet file", journal);
+        return walletProto;
+    }
+
+    private static File getNewJournalFile(File journal) {
+        return new File(journal.getPath() + ".new");
+    }
+
     /**
      * The given listener will be called on the autosave thread before and after the wallet is saved to disk.
      */
@@ -114,6 +223,10 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        if (journalEnabled) {
+            appendChanges();
+            return;
+        }
         long now = System.currentTimeMillis();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -126,6 +239,114 @@ public class WalletFiles {
         log.info("Save completed in {}msec", System.currentTimeMillis() - now);
     }
 
+    // Appends the changes to the wallet since the last save to the journal.
+    private void appendChanges() throws IOException {
+        if (snapshotNeeded) {
+            saveSnapshot();
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long sequence = wallet.saveChangesToFileStream(bytes);
+        if (sequence < 0) {
+            // Something changed that only a snapshot can record.
+            saveSnapshot();
+            return;
+        }
+        byte[] batch = bytes.toByteArray();
+        synchronized (journalLock) {
+            try {
+                FileOutputStream stream = new FileOutputStream(journalFile, true);
+                try {
+                    stream.write(batch);
+                    stream.flush();
+                    stream.getFD().sync();
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                // The wallet has forgotten these changes, so only a snapshot can save them now.
+                snapshotNeeded = true;
+                throw e;
+            }
+            for (TreeMap<Long, byte[]> appended : snapshotsInProgress)
+                appended.put(sequence, batch);
+        }
+        log.info("Appended {} bytes of changes to the wallet journal", batch.length);
+    }
+
+    // Saves the whole wallet, then starts a new journal holding any changes appended while it was being saved. More
+    // than one snapshot can be in progress at once, in which case the one that finishes last is kept.
+    private void saveSnapshot() throws IOException {
+        long now = System.currentTimeMillis();
+        TreeMap<Long, byte[]> appended = new TreeMap<Long, byte[]>();
+        synchronized (journalLock) {
+            snapshotsInProgress.add(appended);
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        boolean saved = false;
+        try {
+            final Listener listener = vListener;
+            if (listener != null)
+                listener.onBeforeAutoSave(temp);
+            snapshotNeeded = false;
+            long baseSequence;
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                baseSequence = wallet.saveSnapshotToFileStream(stream);
+                stream.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            byte[] hash = Sha256Hash.hashFileContents(temp).getBytes();
+            synchronized (journalLock) {
+                // The old wallet file and journal stay as they are until the new ones are both on disk.
+                File newJournal = getNewJournalFile(journalFile);
+                FileOutputStream journalStream = new FileOutputStream(newJournal);
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(journalStream));
+                try {
+                    data.writeInt(JOURNAL_MAGIC);
+                    data.write(hash);
+                    data.writeLong(baseSequence);
+                    for (Map.Entry<Long, byte[]> entry : appended.tailMap(baseSequence, false).entrySet())
+                        data.write(entry.getValue());
+                    data.flush();
+                    journalStream.getFD().sync();
+                } finally {
+                    data.close();
+                }
+                rename(temp, file);
+                rename(newJournal, journalFile);
+            }
+            saved = true;
+            if (listener != null)
+                listener.onAfterAutoSave(file);
+        } finally {
+            synchronized (journalLock) {
+                snapshotsInProgress.remove(appended);
+            }
+            if (!saved)
+                snapshotNeeded = true;
+            if (temp.delete())
+                log.warn("Deleted temp file after failed save.");
+        }
+        log.info("Snapshot saved in {}msec", System.currentTimeMillis() - now);
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = to.getCanonicalFile();
+            canonical.delete();
+            if (from.renameTo(canonical))
+                return;
+            throw new IOException("Failed to rename " + from + " to " + canonical);
+        } else if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (savePending.getAndSet(true))
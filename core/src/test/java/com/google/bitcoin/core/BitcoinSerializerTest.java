@@ -249,6 +249,75 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testParseInPlace() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction expected = (Transaction) new BitcoinSerializer(MainNetParams.get(), true, false)
+                .deserialize(ByteBuffer.wrap(txMessage));
+        // The message sits in the middle of a larger array, with stray bytes on both sides.
+        byte[] array = new byte[txMessage.length + 20];
+        Arrays.fill(array, (byte) 0xff);
+        System.arraycopy(txMessage, 0, array, 10, txMessage.length);
+        ByteBuffer buffer = ByteBuffer.wrap(array, 3, txMessage.length + 10).slice();
+        buffer.position(7);
+        Transaction tx = (Transaction) bs.deserialize(buffer);
+        assertEquals(7 + txMessage.length, buffer.position());
+        assertEquals(expected.getHash(), tx.getHash());
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+        assertFalse(tx.isCached());
+
+        // A message whose contents run past the payload is rejected, even though the array has more bytes.
+        byte[] truncated = Arrays.copyOf(txMessage, txMessage.length + 10);
+        BitcoinSerializer.BitcoinPacketHeader header = new BitcoinSerializer.BitcoinPacketHeader(
+                ByteBuffer.wrap(truncated, 4, BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH));
+        int size = header.size - 10;
+        Utils.uint32ToByteArrayLE(size, truncated, 16);
+        byte[] checksum = Utils.doubleDigest(truncated, 24, size);
+        System.arraycopy(checksum, 0, truncated, 20, 4);
+        try {
+            bs.deserialize(ByteBuffer.wrap(truncated));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        // A message that holds the bytes it was parsed from is sent as it came, with the checksum it came with.
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), true, true);
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        assertArrayEquals(txMessage, encodedBytes(bs.encode(tx)));
+        byte[] checksum = {1, 2, 3, 4};
+        tx.setChecksum(checksum);
+        assertArrayEquals(checksum, Arrays.copyOfRange(encodedBytes(bs.encode(tx)), 20, 24));
+
+        // Once it changes, the checksum is worked out again.
+        tx.setLockTime(1);
+        byte[] payload = tx.bitcoinSerialize();
+        byte[] encoded = encodedBytes(bs.encode(tx));
+        assertArrayEquals(Arrays.copyOf(Utils.doubleDigest(payload), 4), Arrays.copyOfRange(encoded, 20, 24));
+        assertArrayEquals(payload, Arrays.copyOfRange(encoded, 24, encoded.length));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertArrayEquals(bos.toByteArray(), encoded);
+
+        // Each call gives new buffers, so an encoded message can be written more than once.
+        BitcoinSerializer.EncodedMessage message = new BitcoinSerializer(MainNetParams.get()).encode(tx);
+        assertEquals("tx", message.getCommand());
+        assertEquals(encoded.length, message.getLength());
+        assertArrayEquals(encoded, encodedBytes(message));
+        assertArrayEquals(encoded, encodedBytes(message));
+    }
+
+    private static byte[] encodedBytes(BitcoinSerializer.EncodedMessage message) {
+        ByteBuffer out = ByteBuffer.allocate(message.getLength());
+        for (ByteBuffer buffer : message.getBuffers())
+            out.put(buffer);
+        assertFalse(out.hasRemaining());
+        return out.array();
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
@@ -31,7 +31,7 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.*;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeBlock;
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -202,6 +202,40 @@ public class BlockChainTest {
         // Successfully traversed a difficulty transition period.
     }
 
+    @Test
+    public void verifyHeadersAcrossDifficultyTransition() throws Exception {
+        // Check two runs of headers either side of a difficulty transition without adding any of them to the chain.
+        // The transition is checked against the first run, which is only in the map of unstored headers.
+        Block prev = unitTestParams.getGenesisBlock();
+        Utils.setMockClock(System.currentTimeMillis()/1000);
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 0; i < unitTestParams.getInterval() - 1; i++) {
+            Block newBlock = prev.createNextBlock(coinbaseTo, Utils.currentTimeMillis()/1000);
+            headers.add(newBlock.cloneAsHeader());
+            prev = newBlock;
+            Utils.rollMockClock(2);
+        }
+        Map<Sha256Hash, StoredBlock> unstored = new HashMap<Sha256Hash, StoredBlock>();
+        for (StoredBlock stored : chain.verifyHeaders(headers, unstored))
+            unstored.put(stored.getHeader().getHash(), stored);
+        assertEquals(unitTestParams.getInterval() - 1, unstored.size());
+        assertEquals(0, chain.getBestChainHeight());
+        // A header without the difficulty adjustment is rejected.
+        try {
+            Block bad = prev.createNextBlock(coinbaseTo, Utils.currentTimeMillis()/1000);
+            chain.verifyHeaders(Arrays.asList(bad.cloneAsHeader()), unstored);
+            fail();
+        } catch (VerificationException e) {
+        }
+        Block b = prev.createNextBlock(coinbaseTo, Utils.currentTimeMillis()/1000);
+        b.setDifficultyTarget(0x201fFFFFL);
+        b.solve();
+        List<StoredBlock> checked = chain.verifyHeaders(Arrays.asList(b.cloneAsHeader()), unstored);
+        assertEquals(unitTestParams.getInterval(), checked.get(0).getHeight());
+        // Without the first run the header doesn't connect to anything.
+        assertNull(chain.verifyHeaders(Arrays.asList(b.cloneAsHeader()), new HashMap<Sha256Hash, StoredBlock>()));
+    }
+
     @Test
     public void badDifficulty() throws Exception {
         assertTrue(testNetChain.add(getBlock1()));
@@ -47,6 +47,20 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(Hex.decode("03ce4299050000000100008002"), filter.bitcoinSerialize()));
     }
 
+    @Test
+    public void currentFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(1000, 0.001, 0);
+        assertEquals(0.0, filter.getCurrentFalsePositiveRate(), 0);
+        for (int i = 0; i < 1000; i++)
+            filter.insert(Utils.doubleDigest(new byte[] {(byte) i, (byte) (i >> 8)}));
+        // Close to what the filter was sized for, and growing as more elements are added.
+        double rate = filter.getCurrentFalsePositiveRate();
+        assertEquals(0.001, rate, 0.0005);
+        for (int i = 1000; i < 2000; i++)
+            filter.insert(Utils.doubleDigest(new byte[] {(byte) i, (byte) (i >> 8)}));
+        assertTrue(filter.getCurrentFalsePositiveRate() > rate * 2);
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = MainNetParams.get();
@@ -64,6 +64,32 @@ public class ChainSplitTest {
         someOtherGuy = new ECKey().toAddress(unitTestParams);
     }
 
+    @Test
+    public void heightIndexFollowsReorg() throws Exception {
+        // genesis -> b1 -> b2
+        //               \-> b3 -> b4
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(someOtherGuy);
+        Block b2 = b1.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertEquals(b2, blockStore.getByHeight(2).getHeader());
+        assertEquals(b1, chain.getBlockAtHeight(1).getHeader());
+        assertNull(chain.getBlockAtHeight(3));
+
+        Block b3 = b1.createNextBlock(someOtherGuy);
+        Block b4 = b3.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b3));
+        assertEquals(b2, blockStore.getByHeight(2).getHeader());  // Side chain, no re-org yet.
+        assertTrue(chain.add(b4));
+        assertEquals(b1, blockStore.getByHeight(1).getHeader());
+        assertEquals(b3, blockStore.getByHeight(2).getHeader());
+        assertEquals(b4, blockStore.getByHeight(3).getHeader());
+        assertEquals(unitTestParams.getGenesisBlock().getHash(), blockStore.getByHeight(0).getHeader().getHash());
+        // Heights that are already reached complete the future straight away.
+        assertTrue(chain.getHeightFuture(2).isDone());
+        assertEquals(b3, chain.getHeightFuture(2).get().getHeader());
+    }
+
     @Test
     public void testForking1() throws Exception {
         // Check that if the block chain forks, we end up using the right chain. Only tests inbound transactions
@@ -124,13 +150,14 @@ public class ChainSplitTest {
         Threading.waitForUserCode();
         assertEquals(2, wallet.getTransaction(tHash).getAppearsInHashes().size());
         assertFalse(reorgHappened.get());  // No re-org took place.
-        assertEquals(5, walletChanged.get());
+        // The wallet is told about each block in one go, so each of b7 and b8 changes it once.
+        assertEquals(4, walletChanged.get());
         assertEquals("100.00", Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
         // Now we add another block to make the alternative chain longer.
         assertTrue(chain.add(b3.createNextBlock(someOtherGuy)));
         Threading.waitForUserCode();
         assertTrue(reorgHappened.get());  // Re-org took place.
-        assertEquals(6, walletChanged.get());
+        assertEquals(5, walletChanged.get());
         reorgHappened.set(false);
         //
         //     genesis -> b1 -> b2
@@ -149,7 +176,7 @@ public class ChainSplitTest {
         //
         Threading.waitForUserCode();
         assertTrue(reorgHappened.get());
-        assertEquals(9, walletChanged.get());
+        assertEquals(8, walletChanged.get());
         assertEquals("200.00", Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
     }
 
@@ -137,6 +137,71 @@ public class FullPrunedBlockChainTest {
         }
     }
 
+    @Test
+    public void pipelineRollsBackToLastCommittedBlock() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setVerificationPipelineDepth(4);
+
+        ECKey outKey = new ECKey();
+
+        // Build enough blocks on the genesis block for two coinbases to become spendable.
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase1 = rollingBlock.getTransactions().get(0);
+        rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase2 = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        chain.flushVerificationPipeline();
+        StoredBlock committed = chain.getChainHead();
+
+        // Block N spends the first coinbase correctly. Its changes stay in the open batch.
+        Block blockN = rollingBlock.createNextBlock(null);
+        Transaction good = new Transaction(params);
+        good.addOutput(new TransactionOutput(params, good, Utils.toNanoCoins(50, 0), outKey));
+        good.addSignedInput(new TransactionOutPoint(params, 0, coinbase1.getHash()),
+                coinbase1.getOutput(0).getScriptPubKey(), outKey);
+        blockN.addTransaction(good);
+        blockN.solve();
+        assertTrue(chain.add(blockN));
+
+        // Block N+1 spends the second coinbase with a script that doesn't satisfy it.
+        Block blockN1 = blockN.createNextBlock(null);
+        Transaction bad = new Transaction(params);
+        bad.addOutput(new TransactionOutput(params, bad, Utils.toNanoCoins(50, 0), outKey));
+        TransactionInput input = bad.addInput(coinbase2.getOutput(0));
+        input.setScriptBytes(new byte[] {});
+        blockN1.addTransaction(bad);
+        blockN1.solve();
+        boolean threw = false;
+        try {
+            chain.add(blockN1);
+            chain.flushVerificationPipeline();
+        } catch (VerificationException e) {
+            threw = true;
+        }
+        assertTrue(threw);
+
+        // The head is block N again, which was connected and committed a second time.
+        assertEquals(blockN.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(committed.getHeight() + 1, chain.getChainHead().getHeight());
+        assertEquals(blockN.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(coinbase1.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(good.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(coinbase2.getHash(), 0));
+        assertNull(store.getTransactionOutput(bad.getHash(), 0));
+
+        // And the chain carries on from there.
+        Block next = blockN.createNextBlock(null);
+        assertTrue(chain.add(next));
+        chain.flushVerificationPipeline();
+        assertEquals(next.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
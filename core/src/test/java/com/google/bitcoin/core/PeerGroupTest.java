@@ -37,6 +37,7 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
 
 
@@ -273,6 +274,161 @@ public class PeerGroupTest extends TestWithPeerGroup {
         peerGroup.stop();
     }
 
+    @Test
+    public void headersFirstDownload() throws Exception {
+        // Headers come from the download peer in one batch, then the blocks are fetched from both peers and added to
+        // the chain in order, whatever order they arrive in.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 4);
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+
+        Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < 4; i++) {
+            prev = TestUtils.makeSolvedTestBlock(prev);
+            blocks.put(prev.getHash(), prev);
+            headers.add(prev.cloneAsHeader());
+        }
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        InboundMessageQueuer download = peerGroup.getDownloadPeer() == p1.peer ? p1 : p2;
+        InboundMessageQueuer other = download == p1 ? p2 : p1;
+        assertTrue(outbound(download) instanceof GetHeadersMessage);
+        inbound(download, new HeadersMessage(params, headers.toArray(new Block[headers.size()])));
+        List<Block> fromDownload = requestedBlocks(download, blocks);
+        List<Block> fromOther = requestedBlocks(other, blocks);
+        assertFalse(fromDownload.isEmpty());
+        assertFalse(fromOther.isEmpty());
+        assertEquals(4, fromDownload.size() + fromOther.size());
+
+        // The blocks from the peer that wasn't asked for the first one wait for it, rather than becoming orphans.
+        InboundMessageQueuer second = fromDownload.contains(headers.get(0)) ? other : download;
+        InboundMessageQueuer first = second == download ? other : download;
+        for (Block block : second == download ? fromDownload : fromOther)
+            inbound(second, block);
+        pingAndWait(second);
+        assertEquals(0, blockChain.getBestChainHeight());
+        for (Block block : first == download ? fromDownload : fromOther) {
+            assertFalse(blockChain.isOrphan(block.getHash()));
+            inbound(first, block);
+        }
+        pingAndWait(first);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertEquals(prev.getHash(), blockChain.getChainHead().getHeader().getHash());
+        peerGroup.stop();
+    }
+
+    @Test
+    public void headersFirstDownloadOnlyKeepsBlocksInWindow() throws Exception {
+        // Blocks a peer sends of its own accord are kept only if they would soon be asked for, others are handled as
+        // they would be without a headers first download, which makes them orphans.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, HeadersFirstDownload.MAX_BLOCKS_AHEAD + 1);
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+
+        List<Block> blocks = new ArrayList<Block>();
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < HeadersFirstDownload.MAX_BLOCKS_AHEAD + 1; i++) {
+            prev = TestUtils.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            headers.add(prev.cloneAsHeader());
+        }
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, headers.toArray(new Block[headers.size()])));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(HeadersFirstDownload.MAX_BLOCKS_IN_FLIGHT_PER_PEER, getdata.getItems().size());
+
+        Block last = blocks.get(HeadersFirstDownload.MAX_BLOCKS_AHEAD);
+        Block lastInWindow = blocks.get(HeadersFirstDownload.MAX_BLOCKS_AHEAD - 1);
+        inbound(p1, lastInWindow);
+        inbound(p1, last);
+        pingAndWait(p1);
+        assertFalse(blockChain.isOrphan(lastInWindow.getHash()));
+        assertTrue(blockChain.isOrphan(last.getHash()));
+        assertEquals(0, blockChain.getBestChainHeight());
+        peerGroup.stop();
+    }
+
+    @Test
+    public void headersFirstDownloadAsksAnotherPeerForInvalidBlock() throws Exception {
+        // A peer that sends a block which doesn't match its header is disconnected, and the block is asked of another.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.startAndWait();
+        VersionMessage versionMessage = new VersionMessage(params, 2);
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+
+        Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < 2; i++) {
+            prev = TestUtils.makeSolvedTestBlock(prev);
+            blocks.put(prev.getHash(), prev);
+            headers.add(prev.cloneAsHeader());
+        }
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        InboundMessageQueuer download = peerGroup.getDownloadPeer() == p1.peer ? p1 : p2;
+        InboundMessageQueuer other = download == p1 ? p2 : p1;
+        assertTrue(outbound(download) instanceof GetHeadersMessage);
+        inbound(download, new HeadersMessage(params, headers.toArray(new Block[headers.size()])));
+        List<Block> fromDownload = requestedBlocks(download, blocks);
+        List<Block> fromOther = requestedBlocks(other, blocks);
+        assertEquals(1, fromDownload.size());
+        assertEquals(1, fromOther.size());
+        InboundMessageQueuer first = fromDownload.contains(headers.get(0)) ? download : other;
+        InboundMessageQueuer second = first == download ? other : download;
+
+        // The first block with a payment to the wallet added, so that its transactions are checked.
+        Block good = blocks.get(headers.get(0).getHash());
+        List<Transaction> transactions = new ArrayList<Transaction>(good.getTransactions());
+        transactions.add(TestUtils.createFakeTx(params, Utils.CENT, address));
+        Block bad = new Block(params, good.getVersion(), good.getPrevBlockHash(), good.getMerkleRoot(),
+                good.getTimeSeconds(), good.getDifficultyTarget(), good.getNonce(), transactions);
+        assertEquals(good.getHash(), bad.getHash());
+        inbound(first, bad);
+        assertEquals(first.peer, disconnectedPeers.take());
+        assertEquals(0, blockChain.getBestChainHeight());
+
+        Message m = outbound(second);
+        while (m != null && !(m instanceof GetDataMessage))
+            m = outbound(second);
+        assertNotNull(m);
+        assertEquals(good.getHash(), ((GetDataMessage) m).getItems().get(0).hash);
+        inbound(second, good);
+        for (Block block : second == download ? fromDownload : fromOther)
+            inbound(second, block);
+        pingAndWait(second);
+        assertEquals(2, blockChain.getBestChainHeight());
+        peerGroup.stop();
+    }
+
+    // Returns the blocks the peer asks for in its next getdata.
+    private List<Block> requestedBlocks(InboundMessageQueuer p, Map<Sha256Hash, Block> blocks) throws Exception {
+        Message getdata = outbound(p);
+        assertTrue(getdata instanceof GetDataMessage);
+        List<Block> result = new ArrayList<Block>();
+        for (InventoryItem item : ((GetDataMessage) getdata).getItems())
+            result.add(checkNotNull(blocks.get(item.hash)));
+        return result;
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
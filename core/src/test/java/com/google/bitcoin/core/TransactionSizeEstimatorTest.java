@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionSizeEstimatorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void signedSizes() throws Exception {
+        ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        Transaction previous = new Transaction(params);
+        previous.addOutput(Utils.CENT, key.toAddress(params));
+        previous.addOutput(Utils.CENT, key);
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT, new ECKey().toAddress(params));
+        tx.addInput(previous.getOutput(0));
+        tx.addInput(previous.getOutput(1));
+        assertEquals(tx.bitcoinSerialize().length, TransactionSizeEstimator.getSize(tx));
+
+        int estimate = TransactionSizeEstimator.getSize(tx);
+        for (TransactionOutput output : previous.getOutputs()) {
+            int scriptSig = TransactionSizeEstimator.getScriptSigSize(output.getScriptPubKey(),
+                    key.getPubKey().length, null);
+            estimate += TransactionSizeEstimator.getInputSize(scriptSig) - TransactionSizeEstimator.getInputSize(0);
+        }
+        tx.signInputs(Transaction.SigHash.ALL, wallet);
+        // Signatures are up to two bytes shorter than the largest possible one.
+        int size = tx.bitcoinSerialize().length;
+        assertEquals(size, TransactionSizeEstimator.getSize(tx));
+        assertTrue(size <= estimate);
+        assertTrue(size >= estimate - 4);
+    }
+
+    @Test
+    public void multiSigAndP2SH() throws Exception {
+        List<ECKey> keys = ImmutableList.of(new ECKey(), new ECKey(), new ECKey());
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        List<byte[]> signatures = new ArrayList<byte[]>();
+        signatures.add(new byte[73]);
+        signatures.add(new byte[73]);
+        Script multiSigInput = ScriptBuilder.createMultiSigInputScriptBytes(signatures);
+        assertEquals(multiSigInput.getProgram().length, TransactionSizeEstimator.getScriptSigSize(multiSig, 0, null));
+
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(Utils.sha256hash160(multiSig.getProgram()));
+        Script p2shInput = new ScriptBuilder()
+                .op(0).data(signatures.get(0)).data(signatures.get(1)).data(multiSig.getProgram())
+                .build();
+        assertEquals(p2shInput.getProgram().length, TransactionSizeEstimator.getScriptSigSize(p2sh, 0, multiSig));
+        try {
+            TransactionSizeEstimator.getScriptSigSize(p2sh, 0, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        Address address = new ECKey().toAddress(params);
+        Address scriptAddress = Address.fromP2SHScript(params, p2sh);
+        assertEquals(new TransactionOutput(params, null, Utils.CENT, address).bitcoinSerialize().length,
+                TransactionSizeEstimator.getOutputSize(address));
+        assertEquals(p2sh.getProgram().length + 9, TransactionSizeEstimator.getOutputSize(scriptAddress));
+    }
+}
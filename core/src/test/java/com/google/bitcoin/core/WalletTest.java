@@ -46,6 +46,8 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
@@ -1038,6 +1040,27 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterUpdatedIncrementally() throws Exception {
+        BloomFilter before = wallet.getBloomFilter(100, 1e-5, 1234);
+        ECKey key = new ECKey();
+        Address watched = new ECKey().toAddress(params);
+        wallet.addKey(key);
+        wallet.addWatchedAddress(watched);
+        BloomFilter incremental = wallet.getBloomFilter(100, 1e-5, 1234);
+        // Note that these have a 1e-5 chance of failing due to a false positive.
+        assertFalse(before.contains(key.getPubKeyHash()));
+        assertTrue(incremental.contains(key.getPubKey()));
+        assertTrue(incremental.contains(key.getPubKeyHash()));
+        assertTrue(incremental.contains(watched.getHash160()));
+
+        // Removing a key means building the filter from scratch, which gives the same result.
+        wallet.removeKey(key);
+        assertFalse(wallet.getBloomFilter(100, 1e-5, 1234).contains(key.getPubKey()));
+        wallet.addKey(key);
+        assertEquals(incremental, wallet.getBloomFilter(100, 1e-5, 1234));
+    }
+
     @Test
     public void autosaveImmediate() throws Exception {
         // Test that the wallet will save itself automatically when it changes.
@@ -1114,6 +1137,235 @@ public class WalletTest extends TestWithWallet {
         assertEquals(f, results[1]);
     }
 
+    @Test
+    public void autosaveJournal() throws Exception {
+        // Changes are appended to a journal, and the wallet file itself is only written when a snapshot is taken.
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.enableJournal(1, TimeUnit.HOURS);
+        File journal = WalletFiles.getJournalFile(f);
+        Sha256Hash snapshot = Sha256Hash.hashFileContents(f);
+        long journalLength = journal.length();
+
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        assertEquals(snapshot, Sha256Hash.hashFileContents(f));
+        assertTrue(journal.length() > journalLength);
+
+        sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.commitTx(send);
+        chain.add(createFakeBlock(blockStore).block);
+        files.saveNow();
+        assertEquals(snapshot, Sha256Hash.hashFileContents(f));
+
+        // Loading replays the journal on top of the snapshot.
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(wallet.getKeychainSize(), loaded.getKeychainSize());
+        assertTrue(loaded.hasKey(key));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        for (Transaction tx : wallet.getTransactions(true))
+            assertEquals(tx.getConfidence().getDepthInBlocks(),
+                    loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void compactHistory() throws Exception {
+        // Receive a coin, spend part of it, then spend the rest, so all three transactions end up spent.
+        Address other = new ECKey().toAddress(params);
+        Transaction t1 = sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t2 = wallet.createSend(other, toNanoCoins(0, 10));
+        wallet.commitTx(t2);
+        sendMoneyToWallet(t2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        SendRequest req = SendRequest.emptyWallet(other);
+        wallet.completeTx(req);
+        wallet.commitTx(req.tx);
+        Transaction t3 = sendMoneyToWallet(req.tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t4 = sendMoneyToWallet(toNanoCoins(0, 50), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger balance = wallet.getBalance();
+        int depth = t1.getConfidence().getDepthInBlocks();
+
+        assertEquals(3, wallet.compactHistory(1));
+        assertEquals(0, wallet.compactHistory(1));
+        assertEquals(balance, wallet.getBalance());
+        assertEquals(3, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(1, wallet.getPoolSize(Pool.UNSPENT));
+
+        // Compacted transactions are saved without being inflated.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        Wallet wallet2 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(4, wallet2.getTransactions(true).size());
+        assertTrue(wallet2.isConsistent());
+
+        // Asking for one brings back the ones it spends from and the ones spending it, connected to each other.
+        Transaction t2copy = wallet.getTransaction(t2.getHash());
+        assertNotSame(t2, t2copy);
+        Transaction t1copy = wallet.getTransaction(t1.getHash());
+        assertSame(t1copy, t2copy.getInput(0).getConnectedOutput().getParentTransaction());
+        Transaction t3copy = wallet.getTransaction(t3.getHash());
+        assertSame(t2copy, t3copy.getInput(0).getConnectedOutput().getParentTransaction());
+        assertEquals(depth, t1copy.getConfidence().getDepthInBlocks());
+        assertEquals(4, wallet.getTransactions(true).size());
+        assertTrue(wallet.isConsistent());
+        assertEquals(balance, wallet.getBalance());
+        assertSame(t4, wallet.getTransaction(t4.getHash()));
+    }
+
+    @Test
+    public void compactSpentBuildingTransaction() throws Exception {
+        // A building transaction that is fully spent is compacted, although nothing overrides it.
+        Transaction t1 = sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        SendRequest req = SendRequest.emptyWallet(new ECKey().toAddress(params));
+        wallet.completeTx(req);
+        wallet.commitTx(req.tx);
+        sendMoneyToWallet(req.tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, t1.getConfidence().getConfidenceType());
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        int depth = t1.getConfidence().getDepthInBlocks();
+
+        assertEquals(2, wallet.compactHistory(1));
+        assertEquals(2, wallet.getPoolSize(Pool.SPENT));
+        sendMoneyToWallet(toNanoCoins(0, 50), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+
+        Transaction copy = wallet.getTransaction(t1.getHash());
+        assertNotSame(t1, copy);
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, copy.getConfidence().getConfidenceType());
+        assertEquals(depth + 1, copy.getConfidence().getDepthInBlocks());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void readsFromSnapshot() throws Exception {
+        wallet.setReadsFromSnapshot(true);
+        // Nothing is read before the other thread takes the lock, so what is read then was published by the change.
+        final Transaction t1 = sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+
+        // Another thread receives a coin and keeps the lock, as if it were still busy with it.
+        final CountDownLatch changed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Transaction t2 = createFakeTx(params, toNanoCoins(0, 50), myAddress);
+        final ECKey key = new ECKey();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    wallet.addKey(key);
+                    wallet.receivePending(t2, null);
+                    changed.countDown();
+                    release.await();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        changed.await();
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertSame(t1, wallet.getTransaction(t1.getHash()));
+        assertNull(wallet.getTransaction(t2.getHash()));
+        assertEquals(1, wallet.getKeys().size());
+        // Finding keys doesn't use the snapshot.
+        assertTrue(wallet.isPubKeyMine(key.getPubKey()));
+
+        release.countDown();
+        writer.join();
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertEquals(toNanoCoins(1, 50), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertSame(t2, wallet.getTransaction(t2.getHash()));
+        assertEquals(2, wallet.getKeys().size());
+
+        // Our own change becomes available once peers announce it, which the snapshot has to show too.
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.commitTx(send);
+        BigInteger change = send.getValueSentToMe(wallet);
+        assertEquals(BigInteger.ZERO, getBalanceWhileLocked());
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        send.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        Threading.waitForUserCode();
+        assertEquals(change, getBalanceWhileLocked());
+    }
+
+    // Reads the AVAILABLE balance while another thread holds the wallet lock, so it is answered from the snapshot.
+    private BigInteger getBalanceWhileLocked() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        holder.start();
+        locked.await();
+        try {
+            return wallet.getBalance();
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void receiveBlock() throws Exception {
+        // The block chain hands the wallet a whole block at once, and the events that follow each transaction are
+        // sent once for the block.
+        final int[] walletChanged = new int[1];
+        final int[] coinsReceived = new int[1];
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                coinsReceived[0]++;
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged[0]++;
+            }
+        });
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        Transaction t2 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        Block block = createFakeBlock(blockStore, t1, t2).block;
+        assertTrue(chain.add(block));
+        Threading.waitForUserCode();
+        assertEquals(1, walletChanged[0]);
+        assertEquals(2, coinsReceived[0]);
+        assertEquals(toNanoCoins(3, 0), wallet.getBalance());
+        assertEquals(block.getHash(), wallet.getLastBlockSeenHash());
+        Transaction t1copy = wallet.getTransaction(t1.getHash());
+        Transaction t2copy = wallet.getTransaction(t2.getHash());
+        assertEquals(1, t1copy.getConfidence().getDepthInBlocks());
+        assertEquals(1, t2copy.getConfidence().getDepthInBlocks());
+        // They keep their order within the block.
+        int offset1 = t1copy.getAppearsInHashes().get(block.getHash());
+        int offset2 = t2copy.getAppearsInHashes().get(block.getHash());
+        assertTrue(offset1 < offset2);
+
+        // A block without anything for the wallet still moves it along.
+        chain.add(createFakeBlock(blockStore).block);
+        Threading.waitForUserCode();
+        assertEquals(2, walletChanged[0]);
+        assertEquals(2, t1copy.getConfidence().getDepthInBlocks());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -1176,6 +1428,91 @@ public class WalletTest extends TestWithWallet {
         assertEquals(0, wallet.getPoolSize(Pool.UNSPENT));
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey key = new ECKey();
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        wallet.addKey(key);
+        assertEquals(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertEquals(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.hasKey(key));
+        // Lookups give the encrypted keys once the wallet is encrypted, and the decrypted ones again afterwards.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubKey(key.getPubKey()).isEncrypted());
+        assertTrue(wallet.removeKey(key));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertFalse(wallet.hasKey(key));
+    }
+
+    @Test
+    public void cachedBalances() throws Exception {
+        // Balances are only worked out again when something changes, including confidence changes that nobody told
+        // the wallet about.
+        BigInteger v1 = toNanoCoins(1, 0);
+        Transaction t1 = sendMoneyToWallet(wallet, v1, myAddress, null);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(v1, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        sendMoneyToWallet(wallet, t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(v1, wallet.getBalance());
+
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.commitTx(spend);
+        BigInteger change = spend.getValueSentToMe(wallet);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(change, wallet.getBalance());
+
+        // Candidates handed out are copies, so changing them doesn't change the wallet.
+        wallet.calculateAllSpendCandidates(true).clear();
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+
+        // Watched outputs follow newly watched scripts.
+        assertTrue(wallet.getWatchedOutputs(false).isEmpty());
+        wallet.addWatchedAddress(myAddress);
+        assertEquals(1, wallet.getWatchedOutputs(false).size());
+    }
+
+    @Test
+    public void depthEvents() throws Exception {
+        // Transactions get a depth event per block until they reach the threshold, and after that only while somebody
+        // listens to their confidence. Their depth keeps up regardless.
+        wallet.setDepthEventThreshold(2);
+        Transaction tx = sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Threading.waitForUserCode();
+        final List<Transaction> changed = Collections.synchronizedList(new ArrayList<Transaction>());
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                changed.add(tx);
+            }
+        }, Threading.SAME_THREAD);
+        Address notMyAddr = new ECKey().toAddress(params);
+
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 2));
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        assertEquals(1, changed.size());
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 3));
+        assertEquals(3, tx.getConfidence().getDepthInBlocks());
+        assertEquals(1, changed.size());
+
+        ListenableFuture<Transaction> future = tx.getConfidence().getDepthFuture(5, Threading.SAME_THREAD);
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 4));
+        assertFalse(future.isDone());
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 5));
+        assertTrue(future.isDone());
+        assertEquals(3, changed.size());
+        // The future stopped listening, so that was the last one.
+        wallet.notifyNewBestBlock(new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 6));
+        assertEquals(6, tx.getConfidence().getDepthInBlocks());
+        assertEquals(3, changed.size());
+    }
+
     @Test
     public void encryptionDecryptionBasic() throws Exception {
         encryptionDecryptionBasicCommon(encryptedWallet);
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void reuse() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(200000);
+        ByteBuffer a = pool.acquire(5000);
+        assertEquals(0, a.position());
+        assertEquals(5000, a.limit());
+        assertEquals(8192, a.capacity());
+        assertTrue(a.hasArray());
+        a.put(new byte[100]);
+        pool.release(a);
+        // Any size that rounds up to the same power of two gets the same buffer back, ready to use.
+        ByteBuffer b = pool.acquire(7000);
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(7000, b.limit());
+        assertNotSame(b, pool.acquire(7000));
+
+        // Buffers beyond the limit on pooled bytes are dropped.
+        ByteBuffer big = pool.acquire(70000);
+        ByteBuffer big2 = pool.acquire(70000);
+        pool.release(big);
+        pool.release(big2);
+        assertSame(big, pool.acquire(70000));
+        assertNotSame(big2, pool.acquire(70000));
+    }
+}
@@ -16,11 +16,17 @@
 
 package com.google.bitcoin.net;
 
+import java.io.DataInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.bitcoin.core.Utils;
@@ -44,7 +50,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -55,12 +62,16 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            // Several selectors, which hand the parsing of what they read to a thread pool.
+            channels = new ShardedNioClientManager(2, Executors.newFixedThreadPool(3));
+            channels.startAndWait();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -156,6 +167,80 @@ public class NetworkAbstractionTests {
         assertFalse(server.isRunning());
     }
 
+    @Test
+    public void flowControlTest() throws Exception {
+        // Tests that a connection the remote end doesn't read from stops being writable instead of overflowing, that
+        // it becomes writable again once read from, and that messages with priority overtake queued ones
+        if (clientType != 0 && clientType != 4)
+            return; // Only the NIO client managers queue what is written
+
+        ServerSocket serverSocket = new ServerSocket(4243, 1, InetAddress.getByName("localhost"));
+        final SettableFuture<MessageWriteTarget> writeTarget = SettableFuture.create();
+        channels.openConnection(new InetSocketAddress("localhost", 4243), new StreamParser() {
+            @Override public void connectionClosed() { }
+            @Override public void connectionOpened() { }
+
+            @Override
+            public int receiveBytes(ByteBuffer buff) {
+                buff.position(buff.limit());
+                return buff.position();
+            }
+
+            @Override
+            public void setWriteTarget(MessageWriteTarget target) {
+                writeTarget.set(target);
+            }
+
+            @Override
+            public int getMaxMessageSize() {
+                return 1000;
+            }
+        });
+        Socket socket = serverSocket.accept();
+        FlowControlledWriteTarget target = (FlowControlledWriteTarget) writeTarget.get();
+        final LinkedBlockingQueue<Boolean> writabilityChanges = new LinkedBlockingQueue<Boolean>();
+        target.setWatermarks(10000, 100000);
+        target.setWritabilityListener(new FlowControlledWriteTarget.Listener() {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                writabilityChanges.add(writable);
+            }
+        });
+
+        // Write bulk messages until the socket buffers are full and plenty are left queued.
+        byte[] bulk = new byte[1000];
+        Arrays.fill(bulk, (byte) 1);
+        int bulkCount = 0;
+        while (target.getQueuedMessageCount() < 100) {
+            for (int i = 0; i < 200; i++, bulkCount++)
+                target.writeBytes(new ByteBuffer[] { ByteBuffer.wrap(bulk) }, false);
+            Thread.sleep(20);
+        }
+        assertFalse(target.isWritable());
+        assertTrue(target.getQueuedBytes() > 100000);
+        assertFalse(writabilityChanges.take());
+        writabilityChanges.clear();
+
+        // A message with priority is sent ahead of the bulk messages which are still queued, but not in one.
+        target.writeBytes(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 2, 2, 2, 2 }) }, true);
+        byte[] received = new byte[bulkCount * 1000 + 4];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        int priorityIndex = 0;
+        while (received[priorityIndex] != 2)
+            priorityIndex++;
+        assertEquals(0, priorityIndex % 1000);
+        assertTrue(priorityIndex < bulkCount * 1000);
+        assertArrayEquals(new byte[] { 2, 2, 2, 2 }, Arrays.copyOfRange(received, priorityIndex, priorityIndex + 4));
+
+        assertTrue(writabilityChanges.take());
+        assertTrue(target.isWritable());
+        assertTrue(target.getBytesWritten() > 100000);
+
+        target.closeConnection();
+        socket.close();
+        serverSocket.close();
+    }
+
     @Test
     public void basicTimeoutTest() throws Exception {
         // Tests various timeout scenarios
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache cache;
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature sig;
+    private byte[] sigBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SignatureCache(2);
+        key = new ECKey();
+        hash = Sha256Hash.create(new byte[] {1, 2, 3});
+        sig = key.sign(hash);
+        sigBytes = sig.encodeToDER();
+    }
+
+    @Test
+    public void validSignatureIsCached() throws Exception {
+        assertTrue(cache.verify(hash, sig, sigBytes, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, sig, sigBytes, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidSignatureIsNotCached() throws Exception {
+        byte[] otherPubKey = new ECKey().getPubKey();
+        assertFalse(cache.verify(hash, sig, sigBytes, otherPubKey));
+        assertFalse(cache.verify(hash, sig, sigBytes, otherPubKey));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+        // A cached valid entry must not make a different hash pass.
+        assertTrue(cache.verify(hash, sig, sigBytes, key.getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.create(new byte[] {4}), sig, sigBytes, key.getPubKey()));
+    }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Sha256Hash h = Sha256Hash.create(new byte[] {(byte) i});
+            ECKey.ECDSASignature s = key.sign(h);
+            assertTrue(cache.verify(h, s, s.encodeToDER(), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 2);
+    }
+}
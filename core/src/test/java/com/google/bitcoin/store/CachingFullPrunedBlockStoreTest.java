@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.bitcoin.utils.TestUtils.createFakeTx;
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private Address to;
+    private CountingStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    // Counts the output lookups that get past the cache.
+    private static class CountingStore extends MemoryFullPrunedBlockStore {
+        int lookups;
+
+        CountingStore(NetworkParameters params) {
+            super(params, 10);
+        }
+
+        @Override
+        public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+            lookups++;
+            return super.getTransactionOutput(hash, index);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        to = new ECKey().toAddress(params);
+        backing = new CountingStore(params);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 100);
+    }
+
+    // Returns the payment output of a new transaction, as the chain would store it at height 1.
+    private StoredTransactionOutput createOutput() throws Exception {
+        Transaction tx = createFakeTx(params, Utils.CENT, to);
+        return new StoredTransactionOutput(tx.getHash(), tx.getOutput(0), 1, false);
+    }
+
+    @Test
+    public void createdThenSpentNeverReachesBackingStore() throws Exception {
+        StoredTransactionOutput out = createOutput();
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 2));
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 2));
+        store.flush();
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void flushWritesThrough() throws Exception {
+        StoredTransactionOutput a = createOutput(), b = createOutput();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.flush();
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, backing.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(0, store.getPendingBytes());
+
+        // Spending an output that is already in the backing store removes it on the next flush.
+        store.removeUnspentTransactionOutput(a);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNotNull(backing.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 2));
+        store.flush();
+        assertNull(backing.getTransactionOutput(a.getHash(), a.getIndex()));
+
+        // And putting it back (as a re-org would) adds it again.
+        store.addUnspentTransactionOutput(a);
+        store.flush();
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), a.getIndex()));
+    }
+
+    @Test
+    public void abortDiscardsBatch() throws Exception {
+        StoredTransactionOutput a = createOutput(), b = createOutput();
+        store.addUnspentTransactionOutput(a);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.abortDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+    }
+
+    @Test
+    public void readCacheAvoidsBackingLookups() throws Exception {
+        StoredTransactionOutput a = createOutput(), b = createOutput();
+        backing.addUnspentTransactionOutput(a);
+        backing.addUnspentTransactionOutput(b);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 1);
+        backing.lookups = 0;
+
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(1, backing.lookups);
+        // With room for one output, reading another evicts the first.
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(3, backing.lookups);
+        // Spending a cached output doesn't have to look it up again.
+        store.removeUnspentTransactionOutput(a);
+        assertEquals(3, backing.lookups);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(3, backing.lookups);
+        store.flush();
+        assertNull(backing.getTransactionOutput(a.getHash(), a.getIndex()));
+    }
+
+    @Test
+    public void batchIsOnlyVisibleToItsThread() throws Exception {
+        final StoredTransactionOutput out = createOutput();
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        final AtomicReference<StoredTransactionOutput> seen = new AtomicReference<StoredTransactionOutput>(out);
+        final AtomicReference<BlockStoreException> error = new AtomicReference<BlockStoreException>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen.set(store.getTransactionOutput(out.getHash(), out.getIndex()));
+                    store.beginDatabaseBatchWrite();
+                } catch (BlockStoreException e) {
+                    error.set(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        // The other thread can't see the output, nor open a batch of its own.
+        assertNull(seen.get());
+        assertNotNull(error.get());
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void blocksAndChainHeadsWaitForFlush() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredUndoableBlock undo = new StoredUndoableBlock(b1.getHeader().getHash(), new TransactionOutputChanges(
+                new ArrayList<StoredTransactionOutput>(), new ArrayList<StoredTransactionOutput>()));
+        store.beginDatabaseBatchWrite();
+        store.put(b1, undo);
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(undo, store.getUndoBlock(b1.getHeader().getHash()));
+        assertEquals(genesis, backing.getChainHead());
+        assertNull(backing.get(b1.getHeader().getHash()));
+
+        store.flush();
+        assertEquals(b1, backing.getChainHead());
+        assertEquals(b1, backing.getVerifiedChainHead());
+        assertEquals(b1, backing.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+    }
+
+    @Test
+    public void flushesWhenOverBudget() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 1000, 100);
+        StoredTransactionOutput[] outputs = new StoredTransactionOutput[10];
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = createOutput();
+            store.addUnspentTransactionOutput(outputs[i]);
+        }
+        store.commitDatabaseBatchWrite();
+        assertEquals(0, store.getPendingBytes());
+        for (StoredTransactionOutput out : outputs)
+            assertEquals(out, backing.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+}
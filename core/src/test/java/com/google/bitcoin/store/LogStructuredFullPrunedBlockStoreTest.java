@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredFullPrunedBlockStoreTest {
+    // Small enough for a few tens of thousands of outputs to fill several segments.
+    private static final int SEGMENT_SIZE = 2 * 1024 * 1024;
+
+    private NetworkParameters params;
+    private File dir;
+    private LogStructuredFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        dir = File.createTempFile("logblockstore", null);
+        dir.delete();
+        store = new LogStructuredFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    // Returns the outputs of a transaction with count outputs, as the chain would store them at height 1.
+    private List<StoredTransactionOutput> createOutputs(int count) {
+        Transaction tx = new Transaction(params);
+        Address to = new ECKey().toAddress(params);
+        for (int i = 0; i < count; i++)
+            tx.addOutput(Utils.CENT, to);
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < count; i++) {
+            TransactionOutput out = tx.getOutput(i);
+            outputs.add(new StoredTransactionOutput(tx.getHash(), i, out.getValue(), 1, false, out.getScriptBytes()));
+        }
+        return outputs;
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = new LogStructuredFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+    }
+
+    @Test
+    public void genesis() throws Exception {
+        StoredBlock head = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), head.getHeader().getHash());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+        reopen();
+        assertEquals(head, store.getChainHead());
+    }
+
+    @Test
+    public void committedChangesSurviveReopen() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        List<StoredTransactionOutput> outputs = createOutputs(2);
+        StoredTransactionOutput a = outputs.get(0), b = outputs.get(1);
+
+        store.beginDatabaseBatchWrite();
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), new TransactionOutputChanges(
+                new ArrayList<StoredTransactionOutput>(), new ArrayList<StoredTransactionOutput>())));
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(b);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+
+        reopen();
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        StoredTransactionOutput read = store.getTransactionOutput(a.getHash(), a.getIndex());
+        assertEquals(a, read);
+        assertEquals(a.getValue(), read.getValue());
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+
+        store.removeUnspentTransactionOutput(a);
+        reopen();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 2));
+    }
+
+    @Test
+    public void abortedAndUncommittedChangesAreDiscarded() throws Exception {
+        List<StoredTransactionOutput> outputs = createOutputs(2);
+        StoredTransactionOutput a = outputs.get(0), b = outputs.get(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        // Closing with an open batch is like crashing before the commit.
+        reopen();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+    }
+
+    @Test
+    public void tornTailIsIgnored() throws Exception {
+        List<StoredTransactionOutput> outputs = createOutputs(2);
+        StoredTransactionOutput a = outputs.get(0), b = outputs.get(1);
+        store.addUnspentTransactionOutput(a);
+        store.close();
+        // Simulate a crash half way through writing a record.
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "00000001.log"), "rw");
+        long end = 4;
+        file.seek(end);
+        for (int length = file.readInt(); length != 0; length = file.readInt()) {
+            end += length + 8;
+            file.seek(end);
+        }
+        file.seek(end);
+        file.write(new byte[] {0, 0, 0, 50, 1, 2, 3});
+        file.close();
+
+        store = new LogStructuredFullPrunedBlockStore(params, dir, 10, SEGMENT_SIZE);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        store.addUnspentTransactionOutput(b);
+        reopen();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+    }
+
+    @Test
+    public void compactionKeepsLiveRecords() throws Exception {
+        List<StoredTransactionOutput> outputs = createOutputs(50000);
+        for (int i = 0; i < outputs.size(); i += 1000) {
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outputs.subList(i, i + 1000))
+                store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+        }
+        assertTrue(segmentFiles() >= 3);
+        // Spend three out of four, which leaves too little live data in the log.
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < outputs.size(); i++)
+            if (i % 4 != 0)
+                store.removeUnspentTransactionOutput(outputs.get(i));
+        store.commitDatabaseBatchWrite();
+
+        store.compact();
+        assertFalse(new File(dir, "00000001.log").exists());
+        reopen();
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        for (int i = 0; i < outputs.size(); i++) {
+            StoredTransactionOutput out = outputs.get(i);
+            if (i % 4 == 0)
+                assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+            else
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        }
+    }
+
+    private int segmentFiles() {
+        return dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        }).length;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private OffHeapFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new OffHeapFullPrunedBlockStore(params, 10, 0);
+    }
+
+    // Returns outputs with the given scripts, three to a transaction so that outpoints share hashes. Every other one
+    // is from a coinbase, at a height of its position in the list.
+    private List<StoredTransactionOutput> createOutputs(byte[]... scripts) {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < scripts.length; i += 3) {
+            Transaction tx = new Transaction(params);
+            int end = Math.min(scripts.length, i + 3);
+            for (int j = i; j < end; j++)
+                tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(j + 1), scripts[j]));
+            for (int j = i; j < end; j++)
+                outputs.add(new StoredTransactionOutput(tx.getHash(), j - i, BigInteger.valueOf(j + 1), j, j % 2 == 0,
+                        scripts[j]));
+        }
+        return outputs;
+    }
+
+    private List<StoredTransactionOutput> createOutputs(int count, byte[] script) {
+        byte[][] scripts = new byte[count][];
+        Arrays.fill(scripts, script);
+        return createOutputs(scripts);
+    }
+
+    private void assertStored(StoredTransactionOutput expected) throws BlockStoreException {
+        StoredTransactionOutput out = store.getTransactionOutput(expected.getHash(), expected.getIndex());
+        assertEquals(expected, out);
+        assertArrayEquals(expected.getScriptBytes(), out.getScriptBytes());
+        assertEquals(expected.getValue(), out.getValue());
+        assertEquals(expected.getHeight(), out.getHeight());
+    }
+
+    @Test
+    public void scriptsRoundTrip() throws Exception {
+        ECKey key = new ECKey();
+        List<StoredTransactionOutput> outputs = createOutputs(
+                ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram(),
+                ScriptBuilder.createOutputScript(key).getProgram(),
+                ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram(),
+                new byte[] {1, 2, 3},
+                new byte[0]);
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : outputs)
+            assertStored(out);
+    }
+
+    @Test
+    public void growAndRemove() throws Exception {
+        List<StoredTransactionOutput> outputs = createOutputs(10000, new byte[] {1, 2, 3});
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        assertEquals(10000, store.getUnspentOutputCount());
+        for (int i = 0; i < outputs.size(); i += 2)
+            store.removeUnspentTransactionOutput(outputs.get(i));
+        assertEquals(5000, store.getUnspentOutputCount());
+        for (int i = 0; i < outputs.size(); i++) {
+            StoredTransactionOutput out = outputs.get(i);
+            if (i % 2 == 0)
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+            else
+                assertStored(out);
+        }
+    }
+
+    @Test
+    public void removalKeepsProbeChainsIntact() throws Exception {
+        // Fill the initial table almost up to where it would grow, so that many outputs are away from their home slot
+        // and removals have to shift the rest of their probe chains back.
+        List<StoredTransactionOutput> outputs = createOutputs(700, new byte[] {1, 2, 3});
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        List<StoredTransactionOutput> removed = new ArrayList<StoredTransactionOutput>(outputs);
+        Collections.shuffle(removed, new Random(1));
+        removed = removed.subList(0, 350);
+        for (StoredTransactionOutput out : removed) {
+            store.removeUnspentTransactionOutput(out);
+            assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        }
+        for (StoredTransactionOutput out : outputs) {
+            if (removed.contains(out))
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+            else
+                assertStored(out);
+        }
+        // The freed slots can be used again.
+        for (StoredTransactionOutput out : removed)
+            store.addUnspentTransactionOutput(out);
+        assertEquals(700, store.getUnspentOutputCount());
+        for (StoredTransactionOutput out : outputs)
+            assertStored(out);
+    }
+
+    @Test
+    public void scriptsSurviveArenaCompaction() throws Exception {
+        // Enough script data that spending most of it makes the arena copy the rest into fresh chunks.
+        byte[][] scripts = new byte[700][];
+        for (int i = 0; i < scripts.length; i++) {
+            scripts[i] = new byte[100 * 1000];
+            Arrays.fill(scripts[i], (byte) i);
+        }
+        List<StoredTransactionOutput> outputs = createOutputs(scripts);
+        scripts = null;
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        List<StoredTransactionOutput> kept = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < outputs.size(); i++) {
+            if (i % 100 == 0)
+                kept.add(outputs.get(i));
+            else
+                store.removeUnspentTransactionOutput(outputs.get(i));
+        }
+        outputs = null;
+        for (StoredTransactionOutput out : kept)
+            assertStored(out);
+        StoredTransactionOutput added = createOutputs(new byte[] {4, 5, 6}).get(0);
+        store.addUnspentTransactionOutput(added);
+        assertStored(added);
+        assertEquals(kept.size() + 1, store.getUnspentOutputCount());
+    }
+
+    @Test
+    public void batchesCommitAndAbort() throws Exception {
+        List<StoredTransactionOutput> outputs = createOutputs(4, new byte[] {1, 2, 3});
+        // Two outputs of different transactions.
+        StoredTransactionOutput a = outputs.get(1), b = outputs.get(3);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 3));
+        store.abortDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertNull(store.getTransactionOutput(b.getHash(), b.getIndex()));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), a.getIndex()));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), b.getIndex()));
+        assertEquals(1, store.getUnspentOutputCount());
+    }
+}
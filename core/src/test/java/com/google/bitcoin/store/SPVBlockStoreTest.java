@@ -24,8 +24,12 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +62,139 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void ringWrapsAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        Address to = new ECKey().toAddress(params);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock first = null, last = genesis;
+        for (int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS + 10; i++) {
+            last = last.build(last.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(last);
+            if (first == null)
+                first = last;
+        }
+        store.setChainHead(last);
+        // The oldest headers were overwritten.
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertNull(store.get(first.getHeader().getHash()));
+        assertEquals(last, store.get(last.getHeader().getHash()));
+        store.close();
+
+        // The index is rebuilt from the ring when the store is opened again.
+        store = new SPVBlockStore(params, f);
+        assertNull(store.get(first.getHeader().getHash()));
+        assertEquals(last, store.get(last.getHeader().getHash()));
+        assertEquals(last, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void resizeAndArchive() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        File archiveFile = File.createTempFile("spvblockstore", ".archive");
+        f.delete();
+        archiveFile.delete();
+        f.deleteOnExit();
+        archiveFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10, archiveFile);
+        Address to = new ECKey().toAddress(params);
+        StoredBlock[] blocks = new StoredBlock[26];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i <= 15; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        // The ring has wrapped around, but the archive still has everything.
+        HeaderArchive archive = store.getArchive();
+        assertNotNull(archive);
+        assertEquals(0, archive.getBaseHeight());
+        assertEquals(15, archive.getTipHeight());
+        assertEquals(blocks[3], archive.getByHeight(3));
+        assertEquals(blocks[0], store.get(blocks[0].getHeader().getHash()));
+
+        // Growing the ring keeps the headers it holds, and the oldest of them are still the first to go.
+        store.resize(20);
+        assertEquals(20, store.getNumHeaders());
+        for (int i = 16; i <= 25; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        assertEquals(blocks[6], store.get(blocks[6].getHeader().getHash()));
+        assertEquals(blocks[25], store.get(blocks[25].getHeader().getHash()));
+        assertEquals(blocks[25], store.getChainHead());
+        store.close();
+
+        // Asking for a smaller ring when opening the store keeps the bigger one.
+        store = new SPVBlockStore(params, f, 5, archiveFile);
+        assertEquals(20, store.getNumHeaders());
+        assertEquals(blocks[25], store.getChainHead());
+        assertEquals(blocks[6], store.get(blocks[6].getHeader().getHash()));
+        assertEquals(blocks[1], store.get(blocks[1].getHeader().getHash()));
+        assertEquals(25, store.getArchive().getTipHeight());
+        // The height index is rebuilt from the chain head, and older heights come from the archive.
+        assertEquals(blocks[20], store.getByHeight(20));
+        assertEquals(blocks[1], store.getByHeight(1));
+        assertNull(store.getByHeight(26));
+        store.close();
+    }
+
+    @Test
+    public void resizeWhilePutting() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 10, null);
+        final Address to = new ECKey().toAddress(params);
+        final StoredBlock[] blocks = new StoredBlock[501];
+        blocks[0] = store.getChainHead();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 1; i < blocks.length; i++) {
+                        blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+                        store.put(blocks[i]);
+                        store.setChainHead(blocks[i]);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        start.countDown();
+        // Grow the ring while the writer keeps wrapping around it.
+        for (int n = 11; n <= 60; n++) {
+            store.resize(n);
+            Thread.yield();
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(blocks[500], store.getChainHead());
+        // The newest headers made it into the ring, whichever mapping was current when they were written.
+        for (int i = 491; i <= 500; i++)
+            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+        assertEquals(60, store.getNumHeaders());
+        store.close();
+
+        SPVBlockStore reopened = new SPVBlockStore(params, f, 10, null);
+        assertEquals(60, reopened.getNumHeaders());
+        assertEquals(blocks[500], reopened.getChainHead());
+        for (int i = 491; i <= 500; i++)
+            assertEquals(blocks[i], reopened.get(blocks[i].getHeader().getHash()));
+        reopened.close();
+    }
 }
@@ -9,6 +9,7 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
 import org.junit.Before;
@@ -22,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
 import static org.junit.Assert.*;
@@ -263,6 +265,51 @@ public class WalletProtobufSerializerTest {
                 wallet1.findKeyFromPubHash(myKey.getPubKeyHash()).getCreationTimeSeconds());
     }
 
+    @Test
+    public void lazyLoading() throws Exception {
+        // A spent transaction and the pending one that spends it.
+        Transaction t1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = myWallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 10));
+        myWallet.commitTx(t2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        // Holds back the task that finishes loading in the background, but not the decoding, which is submitted.
+        final CountDownLatch release = new CountDownLatch(1);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer() {
+            @Override
+            ExecutorService createExecutor() {
+                return new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+                    @Override
+                    protected void beforeExecute(Thread t, Runnable r) {
+                        if (!(r instanceof Future))
+                            Uninterruptibles.awaitUninterruptibly(release);
+                    }
+                };
+            }
+        };
+        serializer.setLazyLoading(true);
+        serializer.setLoadingThreads(2);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertTrue(wallet1.isLoading());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(myWallet.getBalance(), wallet1.getBalance());
+        assertNotNull(wallet1.getTransaction(t2.getHash()));
+        assertTrue(wallet1.isLoading());
+
+        release.countDown();
+        wallet1.finishLoading();
+        assertFalse(wallet1.isLoading());
+        assertEquals(2, wallet1.getTransactions(true).size());
+        assertTrue(wallet1.isConsistent());
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        TransactionOutput spent = wallet1.getTransaction(t2.getHash()).getInput(0).getConnectedOutput();
+        assertNotNull(spent);
+        assertSame(t1copy, spent.getParentTransaction());
+        assertFalse(spent.isAvailableForSpending());
+    }
+
     @Test
     public void coinbaseTxns() throws Exception {
         // Covers issue 420 where the outpoint index of a coinbase tx input was being mis-serialized.
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static TransactionOutput output(int cents, int height) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT.multiply(BigInteger.valueOf(cents)), new ECKey().toAddress(params));
+        if (height >= 0)
+            tx.getConfidence().setAppearedAtChainHeight(height);
+        else
+            tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        return tx.getOutput(0);
+    }
+
+    private static BigInteger cents(int cents) {
+        return Utils.CENT.multiply(BigInteger.valueOf(cents));
+    }
+
+    @Test
+    public void selection() throws Exception {
+        TransactionOutput seven = output(7, 1);
+        TransactionOutput five = output(5, 2);
+        TransactionOutput three = output(3, 3);
+        TransactionOutput two = output(2, 4);
+        TransactionOutput pending = output(1, -1);
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        candidates.add(two);
+        candidates.add(pending);
+        candidates.add(five);
+        candidates.add(seven);
+        candidates.add(three);
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+
+        // An exact match, so no change is needed.
+        CoinSelection selection = selector.select(cents(10), candidates);
+        assertEquals(cents(10), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+        assertTrue(selection.gathered.contains(seven));
+        assertTrue(selection.gathered.contains(three));
+
+        // No match, so the smallest output that covers the target.
+        selection = selector.select(cents(4), candidates);
+        assertEquals(cents(5), selection.valueGathered);
+
+        // No match and no single output covers it, so the largest ones.
+        selection = selector.select(cents(11).add(BigInteger.valueOf(500000)), candidates);
+        assertEquals(cents(12), selection.valueGathered);
+
+        // Everything that can be spent, which isn't the pending output from somebody else.
+        selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+        assertEquals(cents(17), selection.valueGathered);
+        assertFalse(selection.gathered.contains(pending));
+
+        // Outputs that are gone aren't used any more.
+        candidates.remove(seven);
+        selection = selector.select(cents(10), candidates);
+        assertEquals(cents(10), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+        assertFalse(selection.gathered.contains(seven));
+    }
+}
@@ -50,7 +50,11 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        BlockImportPipeline pipeline = new BlockImportPipeline(chain);
+        try {
+            pipeline.importBlocks(loader);
+        } finally {
+            pipeline.shutdown();
+        }
     }
 }
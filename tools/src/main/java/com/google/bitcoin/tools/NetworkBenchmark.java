@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.net.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Generates load against a local {@link NioServer} to compare client connection managers. Each client connection
+ * keeps a number of frames in flight to the server, which echoes them back, and does some hashing for each frame it
+ * gets back, much as a peer checks the messages it receives. The benchmark prints how many frames per second all
+ * connections got through.</p>
+ */
+public class NetworkBenchmark {
+    private static final int FRAMES_IN_FLIGHT = 4;
+    private static final int HASH_ROUNDS = 20;
+    private static final int MAX_FRAME_SIZE = 65536;
+
+    private static final Random random = new Random(1);
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: NetworkBenchmark [connections] [seconds] [frame size] [port]");
+        System.out.println("       runs each client manager with the given number of connections (default 200) for the given");
+        System.out.println("       number of seconds (default 10), with frames of the given size (default 1024) against a");
+        System.out.println("       server listening on localhost from the given port on (default 18555)");
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int frameSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 18555;
+        if (frameSize + 4 > MAX_FRAME_SIZE) {
+            System.err.println("Frames can be at most " + (MAX_FRAME_SIZE - 4) + " bytes");
+            return;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        run("NioClientManager", new NioClientManager(), connections, seconds, frameSize, port);
+        run("ShardedNioClientManager, " + cores + " selectors", new ShardedNioClientManager(cores, null),
+                connections, seconds, frameSize, port + 1);
+        ExecutorService workers = Executors.newFixedThreadPool(cores);
+        try {
+            run("ShardedNioClientManager, 2 selectors, " + cores + " workers",
+                    new ShardedNioClientManager(2, workers), connections, seconds, frameSize, port + 2);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private static void run(String name, ClientConnectionManager manager, int connections, int seconds,
+                            int frameSize, int port) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new EchoParser();
+            }
+        }, address);
+        server.startAndWait();
+        manager.startAndWait();
+        AtomicLong frames = new AtomicLong();
+        LoadParser[] parsers = new LoadParser[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                parsers[i] = new LoadParser(frames, frameSize);
+                manager.openConnection(address, parsers[i]);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (manager.getConnectedClientCount() < connections && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            if (manager.getConnectedClientCount() < connections)
+                System.err.println("Only " + manager.getConnectedClientCount() + " connections opened");
+
+            // Warm up, then count the frames that come back in the given time.
+            Thread.sleep(2000);
+            long start = System.nanoTime();
+            long startFrames = frames.get();
+            Thread.sleep(seconds * 1000L);
+            long count = frames.get() - startFrames;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-50s %10.0f frames/s", name, count / elapsed));
+        } finally {
+            for (LoadParser parser : parsers)
+                if (parser != null)
+                    parser.stopped = true;
+            manager.stopAndWait();
+            server.stopAndWait();
+        }
+    }
+
+    // Reads the frames, which are a four byte length followed by that many bytes, from buff. Returns the number of
+    // bytes read, which leaves any partial frame for the next call.
+    private static abstract class FrameParser implements StreamParser {
+        protected MessageWriteTarget writeTarget;
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            while (buff.remaining() >= 4) {
+                int length = Integer.reverseBytes(buff.getInt(buff.position()));
+                if (buff.remaining() < 4 + length)
+                    break;
+                byte[] frame = new byte[4 + length];
+                buff.get(frame);
+                frameReceived(frame);
+            }
+            return buff.position();
+        }
+
+        protected abstract void frameReceived(byte[] frame) throws IOException;
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return MAX_FRAME_SIZE;
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+
+    private static class EchoParser extends FrameParser {
+        @Override
+        protected void frameReceived(byte[] frame) throws IOException {
+            writeTarget.writeBytes(frame);
+        }
+    }
+
+    private static class LoadParser extends FrameParser {
+        private final AtomicLong frames;
+        private final byte[] frame;
+        volatile boolean stopped;
+
+        LoadParser(AtomicLong frames, int frameSize) {
+            this.frames = frames;
+            this.frame = new byte[4 + frameSize];
+            random.nextBytes(frame);
+            Utils.uint32ToByteArrayLE(frameSize, frame, 0);
+        }
+
+        @Override
+        public void connectionOpened() {
+            try {
+                for (int i = 0; i < FRAMES_IN_FLIGHT; i++)
+                    writeTarget.writeBytes(frame);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected void frameReceived(byte[] frame) throws IOException {
+            for (int i = 0; i < HASH_ROUNDS; i++)
+                Utils.doubleDigest(frame);
+            frames.incrementAndGet();
+            if (!stopped)
+                writeTarget.writeBytes(this.frame);
+        }
+    }
+}
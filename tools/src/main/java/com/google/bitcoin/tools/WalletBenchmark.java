@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.wallet.BranchAndBoundCoinSelector;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times wallet operations that get slower as wallets get bigger. Each benchmark warms up first, then prints the
+ * average time per operation.
+ */
+public class WalletBenchmark {
+    private static final NetworkParameters params = MainNetParams.get();
+    private static final Random random = new Random(1);
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: WalletBenchmark bloom [keys]");
+        System.out.println("       bloom: builds the Bloom filter of a wallet with the given number of keys (default 20000)");
+        System.out.println("              from scratch, then adds keys one at a time and gets the filter after each");
+        System.out.println("       relevance: checks whether transactions paying to other people are relevant to wallets of");
+        System.out.println("              1000, 10000 and 100000 keys");
+        System.out.println("       coins [outputs]: selects coins for random amounts from the given number of outputs (default");
+        System.out.println("              50000) with the default and the branch and bound coin selectors");
+        if (args.length < 1)
+            return;
+        if (args[0].equals("bloom")) {
+            bloom(args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+        } else if (args[0].equals("relevance")) {
+            relevance();
+        } else if (args[0].equals("coins")) {
+            coins(args.length > 1 ? Integer.parseInt(args[1]) : 50000);
+        } else {
+            System.err.println("Unknown benchmark " + args[0]);
+        }
+    }
+
+    // Keys with random public keys, which are much quicker to make than real ones and hash the same way.
+    static List<ECKey> fakeKeys(int count) {
+        List<ECKey> keys = new ArrayList<ECKey>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] pubKey = new byte[33];
+            random.nextBytes(pubKey);
+            pubKey[0] = 2;
+            keys.add(new ECKey((byte[]) null, pubKey));
+        }
+        return keys;
+    }
+
+    private static void bloom(int numKeys) {
+        Wallet wallet = new Wallet(params);
+        wallet.addKeys(fakeKeys(numKeys));
+        int elements = wallet.getBloomFilterElementCount() + 100;
+        double fpRate = 0.0005;
+
+        // A different tweak each time means the wallet can't reuse the filter it built last.
+        long tweak = 0;
+        for (int i = 0; i < 5; i++)
+            wallet.getBloomFilter(elements, fpRate, tweak++);
+        int rounds = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            wallet.getBloomFilter(elements, fpRate, tweak++);
+        report("Full rebuild, " + numKeys + " keys", start, rounds);
+
+        List<ECKey> newKeys = fakeKeys(1100);
+        for (int i = 0; i < 100; i++) {
+            wallet.addKey(newKeys.get(i));
+            wallet.getBloomFilter(elements, fpRate, tweak);
+        }
+        rounds = 1000;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            wallet.addKey(newKeys.get(100 + i));
+            wallet.getBloomFilter(elements, fpRate, tweak);
+        }
+        report("Add a key and get the filter again", start, rounds);
+    }
+
+    private static void relevance() throws ScriptException {
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 1000; i++) {
+            Transaction tx = new Transaction(params);
+            for (int j = 0; j < 2; j++) {
+                byte[] hash160 = new byte[20];
+                random.nextBytes(hash160);
+                tx.addOutput(Utils.CENT, new Address(params, hash160));
+            }
+            txns.add(tx);
+        }
+        for (int numKeys : new int[] {1000, 10000, 100000}) {
+            Wallet wallet = new Wallet(params);
+            wallet.addKeys(fakeKeys(numKeys));
+            for (Transaction tx : txns)
+                wallet.isTransactionRelevant(tx);
+            int rounds = 10;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                for (Transaction tx : txns)
+                    wallet.isTransactionRelevant(tx);
+            report("isTransactionRelevant, " + numKeys + " keys", start, rounds * txns.size());
+        }
+    }
+
+    private static void coins(int numOutputs) {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < numOutputs; i++) {
+            Transaction tx = new Transaction(params);
+            byte[] hash160 = new byte[20];
+            random.nextBytes(hash160);
+            // Between 0.0001 and 10 BTC, with most of them small.
+            long value = (long) (10000 * Math.pow(100000, random.nextDouble()));
+            tx.addOutput(BigInteger.valueOf(value), new Address(params, hash160));
+            tx.getConfidence().setAppearedAtChainHeight(random.nextInt(250000));
+            candidates.add(tx.getOutput(0));
+        }
+        long[] targets = new long[100];
+        for (int i = 0; i < targets.length; i++)
+            targets[i] = (long) (100000 * Math.pow(10000, random.nextDouble()));
+        selectCoins("DefaultCoinSelector", new DefaultCoinSelector(), candidates, targets);
+        selectCoins("BranchAndBoundCoinSelector", new BranchAndBoundCoinSelector(), candidates, targets);
+    }
+
+    private static void selectCoins(String name, CoinSelector selector, LinkedList<TransactionOutput> candidates,
+                                    long[] targets) {
+        for (int i = 0; i < 3; i++)
+            selector.select(BigInteger.valueOf(targets[i]), candidates);
+        // Like completeTx working out the fee, select a few times for slightly different amounts.
+        long start = System.nanoTime();
+        long selected = 0, change = 0;
+        for (long target : targets) {
+            for (int fee = 0; fee < 3; fee++) {
+                BigInteger value = BigInteger.valueOf(target + fee * 10000);
+                CoinSelection selection = selector.select(value, candidates);
+                selected += selection.gathered.size();
+                change += selection.valueGathered.subtract(value).longValue();
+            }
+        }
+        int rounds = targets.length * 3;
+        report(name + ", " + candidates.size() + " outputs", start, rounds);
+        System.out.println(String.format("    %.1f outputs and %s BTC change per selection", (double) selected / rounds,
+                Utils.bitcoinValueToFriendlyString(BigInteger.valueOf(change / rounds))));
+    }
+
+    private static void report(String name, long startNanos, int rounds) {
+        double millis = (System.nanoTime() - startNanos) / 1e6 / rounds;
+        System.out.println(String.format("%-50s %10.3f ms/op", name, millis));
+    }
+}